@@ -0,0 +1,197 @@
+package cmview;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import cmview.datasources.LoadHandle;
+import cmview.datasources.Model;
+import cmview.datasources.ModelConstructionError;
+import cmview.datasources.ModelLoader;
+
+/**
+ * Renders the contact maps of a job list to png files without starting the
+ * GUI (command line option -B). The jobs are run in parallel, each one loading
+ * its model and rendering it with a {@link ContactMapRenderer}. The models are
+ * loaded for rendering only (see {@link ModelLoader#forRendering}), so that only
+ * the models of the running jobs are kept in memory.
+ * <p>
+ * The job list has one job per line with the whitespace separated fields
+ * <pre>
+ * source [chain [size [overlays [output]]]]
+ * </pre>
+ * where source is a PDB code or a file (as for option -f), chain the pdb chain
+ * code, size the image size in pixels, overlays a comma separated list of
+ * background overlays (see ContactMapRenderer, e.g. distance,bottom:density)
+ * and output the png file. Missing fields or fields given as - take default
+ * values: the first chain, the initial screen size, no overlays and
+ * &lt;source&gt;&lt;chain&gt;.png in the current directory. Empty lines and
+ * lines starting with # are ignored.
+ */
+public class BatchRenderer {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final String DEFAULT = "-";
+
+	/*--------------------------- member variables --------------------------*/
+	private String contactType;
+	private double cutoff;
+	private int minSeqSep;
+	private int maxSeqSep;
+	private int threads;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a renderer loading structures with the given contact definition.
+	 * @param threads the number of jobs run at the same time
+	 */
+	public BatchRenderer(String contactType, double cutoff, int minSeqSep, int maxSeqSep, int threads) {
+		this.contactType = contactType;
+		this.cutoff = cutoff;
+		this.minSeqSep = minSeqSep;
+		this.maxSeqSep = maxSeqSep;
+		this.threads = Math.max(1, threads);
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Runs all jobs of the given job list and waits for them. Failed jobs are
+	 * reported on stderr, the other jobs are run anyway.
+	 * @return the number of failed jobs
+	 * @throws IOException if the job list can not be read
+	 */
+	public int run(String jobListFile) throws IOException {
+		List<Job> jobs = readJobList(jobListFile);
+		System.out.println("Rendering " + jobs.size() + " contact maps using " + threads + " threads");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		for(final Job job:jobs) {
+			results.add(executor.submit(new Callable<File>() {
+				public File call() throws Exception {
+					return render(job);
+				}
+			}));
+		}
+		int failed = 0;
+		for(int k = 0; k < jobs.size(); k++) {
+			Job job = jobs.get(k);
+			try {
+				System.out.println("Image written to " + results.get(k).get());
+			} catch (ExecutionException e) {
+				System.err.println("Error in line " + job.line + " (" + job.source + "): " + e.getCause().getMessage());
+				failed++;
+			} catch (InterruptedException e) {
+				System.err.println("Interrupted while rendering " + job.source);
+				failed++;
+			}
+		}
+		executor.shutdown();
+		System.out.println((jobs.size() - failed) + " of " + jobs.size() + " contact maps rendered");
+		return failed;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Loads the model of the job in the current thread, renders it and writes the
+	 * image file.
+	 * @return the image file
+	 */
+	private File render(Job job) throws IOException, ModelConstructionError, InterruptedException {
+		// not registered or cached, so the model can be collected after rendering
+		LoadHandle.Job loadJob = ModelLoader.forRendering(job.source, job.chainCode, contactType, cutoff, minSeqSep, maxSeqSep);
+		LoadHandle handle = new LoadHandle(job.source, loadJob);
+		handle.run();
+		Model mod = handle.getModel();
+
+		ContactMapRenderer renderer = new ContactMapRenderer(mod, job.size);
+		for(String overlay:job.overlays) {
+			try {
+				renderer.addOverlay(overlay);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+		File parent = job.output.getAbsoluteFile().getParentFile();
+		if(!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		if(!ImageIO.write(renderer.render(), "png", job.output)) {
+			throw new IOException("No png writer available");
+		}
+		return job.output;
+	}
+
+	/**
+	 * Parses the job list.
+	 */
+	private static List<Job> readJobList(String jobListFile) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		BufferedReader in = new BufferedReader(new FileReader(jobListFile));
+		try {
+			String line;
+			int lineNum = 0;
+			while((line = in.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				Job job = new Job();
+				job.line = lineNum;
+				job.source = fields[0];
+				job.chainCode = getField(fields, 1);
+				String size = getField(fields, 2);
+				try {
+					job.size = (size == null) ? Start.INITIAL_SCREEN_SIZE : Integer.parseInt(size);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid image size in line " + lineNum + " of " + jobListFile + ": " + size);
+				}
+				String overlays = getField(fields, 3);
+				job.overlays = (overlays == null) ? new String[0] : overlays.split(",");
+				String output = getField(fields, 4);
+				if(output == null) {
+					output = new File(job.source).getName().replaceFirst("\\.[^.]*$", "") + (job.chainCode == null ? "" : job.chainCode) + ".png";
+				}
+				job.output = new File(output);
+				jobs.add(job);
+			}
+		} finally {
+			in.close();
+		}
+		return jobs;
+	}
+
+	/**
+	 * Returns the given field or null if it is missing or -.
+	 */
+	private static String getField(String[] fields, int index) {
+		if(index >= fields.length || fields[index].equals(DEFAULT)) return null;
+		return fields[index];
+	}
+
+	/*---------------------------- nested classes --------------------------*/
+
+	/**
+	 * A line of the job list.
+	 */
+	private static class Job {
+		int line;
+		String source;
+		String chainCode;		// null for the first chain
+		int size;
+		String[] overlays;
+		File output;
+	}
+}
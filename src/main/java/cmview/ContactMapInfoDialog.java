@@ -19,6 +19,7 @@ import javax.swing.JPanel;
 import owl.core.sequence.alignment.MultipleSequenceAlignment;
 
 
+import cmview.datasources.ContactComparison;
 import cmview.datasources.Model;
 
 /**
@@ -86,7 +87,7 @@ public class ContactMapInfoDialog extends JDialog implements ActionListener {
 		String seq2 = null;
 		String s1 = seq.length() <= showSeqLen?(seq.length()==0?"Unknown":seq):seq.substring(0,showSeqLen) + "...";
 		String s2 = "";
-		int numSelectedContacts = cmPane.getSelContacts().size();
+		int numSelectedContacts = cmPane.getSelContactsCount();
 		if( mod2 != null ) {
 			// settings if mod2 is present
 			seq2 = mod2.getSequence();
@@ -140,16 +141,16 @@ public class ContactMapInfoDialog extends JDialog implements ActionListener {
 			contactOrder2 = String.format("%5.2f",mod2.getGraph().getContactOrder());
 			directed2 = (mod2.isDirected()?"Yes":"No");
 			secStrucSrc2 = mod2.getSecondaryStructure().getComment();
-			int commonContacts = cmPane.getCommonContacts().size();
+			ContactComparison comparison = cmPane.getContactComparison();
+			int commonContacts = comparison.getNumCommon();
 			commonContactsStr = Integer.toString(commonContacts);
-			uniqueContactsStr1 = Integer.toString(mod.getNumberOfContacts() - commonContacts);
-			uniqueContactsStr2 = Integer.toString(mod2.getNumberOfContacts() - commonContacts);
-			int unionContacts = mod.getNumberOfContacts() + mod2.getNumberOfContacts() - commonContacts;
+			uniqueContactsStr1 = Integer.toString(comparison.getNumOnlyFirst());
+			uniqueContactsStr2 = Integer.toString(comparison.getNumOnlySecond());
 			double cmo = 0;
 			double acc = 0;
 			double cov = 0;
 			if(commonContacts > 0) {
-				cmo = 1.0 * commonContacts/unionContacts;
+				cmo = comparison.getJaccardIndex();
 				acc = 1.0 * commonContacts / mod2.getNumberOfContacts();
 				cov = 1.0 * commonContacts / mod.getNumberOfContacts();
 			} // else cmo, acc and cov should be zero
@@ -6,15 +6,23 @@ import java.awt.Event;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferedImage;
 import java.awt.event.ComponentListener;
 import java.awt.event.ComponentEvent;
 import java.sql.SQLException;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -25,12 +33,19 @@ import javax.swing.border.Border;
 import owl.core.sequence.alignment.MultipleSequenceAlignment;
 import owl.core.structure.features.SecStrucElement;
 import owl.core.structure.graphs.RIGCommonNbhood;
+import owl.core.structure.graphs.RIGEdge;
 import owl.core.structure.graphs.RIGNbhood;
 import owl.core.structure.graphs.RIGNode;
 import owl.core.structure.scoring.ResidueContactScoringFunction;
 import owl.core.util.IntPairSet;
 import owl.core.util.Interval;
 
+import cmview.datasources.CommonNbhSizeMatrix;
+import cmview.datasources.ContactComparison;
+import cmview.datasources.ContactDensityMap;
+import cmview.datasources.ContactSet;
+import cmview.datasources.ContactWeights;
+import cmview.datasources.DistanceMatrix;
 import cmview.datasources.Model;
 import edu.uci.ics.jung.graph.util.Pair;
 
@@ -38,7 +53,7 @@ import edu.uci.ics.jung.graph.util.Pair;
  * The panel containing the contact map and associated event handling.
  */
 public class ContactMapPane extends JPanel
-implements MouseListener, MouseMotionListener, ComponentListener {
+implements MouseListener, MouseMotionListener, MouseWheelListener, ComponentListener {
 
 	/*------------------------------ constants ------------------------------*/
 
@@ -53,8 +68,10 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 													// background 
 
 	protected enum ContactSelSet {COMMON, ONLY_FIRST, ONLY_SECOND}; 
+	private enum Layer {TOP_BACKGROUND, BOTTOM_BACKGROUND, CONTACTS, USER_COLORS};	// in drawing order
 	protected static final int FIRST = 0;
 	protected static final int SECOND = 1;
+	private static final int HEATMAP_LEVELS = 256;	// number of precomputed colors of continuous heat maps
 	
 	/*--------------------------- member variables --------------------------*/
 	
@@ -133,22 +150,20 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	// selections 
 	// NOTE: in compare mode contacts use alignment indexing starting from 1
-	private IntPairSet allContacts; 		// all contacts from the underlying
+	private ContactSet allContacts; 		// all contacts from the underlying
 											// contact map model (all first structure 
 											// contacts in compare mode)
-	private IntPairSet selContacts; 		// permanent list of currently selected
+	private ContactSet selContacts; 		// permanent list of currently selected
 											// contacts
-	private IntPairSet tmpContacts; 		// transient list of contacts selected
+	private ContactSet tmpContacts; 		// transient list of contacts selected
 											// while dragging
 	
-	private IntPairSet allSecondContacts; 	// all second structure contacts
-
-	private IntPairSet commonContacts;			// common contacts 
-	private IntPairSet uniqueToFirstContacts;	// contacts unique to first structure
-	private IntPairSet uniqueToSecondContacts;	// contacts unique to second structure
+	private ContactSet allSecondContacts; 	// all second structure contacts
 
-	private IntPairSet bothStrucContacts;		// i.e. uniqueToFirst+uniqueToSecond+common
-	private IntPairSet allButCommonContacts;	// i.e. uniqueToFirst+uniqueToSecond
+	private ContactComparison contactComparison;	// bit matrices of the contacts of both structures, giving the
+													// common and unique contacts (compare mode only)
+	private ContactWeights contactWeights;			// edge weights of allContacts, null if not computed yet
+	private ContactWeights secondContactWeights;	// edge weights of allSecondContacts, null if not computed yet
 	
 	private TreeSet<Integer> selHorNodes;			// current horizontal residue
 													// selection
@@ -159,17 +174,42 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	private Hashtable<Pair<Integer>,Color> userContactColors;  	// user defined colors
 																// for individual
 																// contacts
-	private double[][] densityMatrix; 					 // matrix of contact
-														// density
+	private ContactDensityMap densityMap; 				 // contact density, kept up to date
+														 // by the model
 	private double[][] deltaRankMatrix;					// delta rank matrix (0-1)
+	private double[] deltaRankRange;					// min and max of the delta rank matrix, null if not computed yet
 	
-	private HashMap<Pair<Integer>,Integer> comNbhSizes;		// matrix of common
+	private CommonNbhSizeMatrix comNbhSizes;		// matrix of common
 															// neighbourhood sizes
-	private HashMap<Pair<Integer>,Double> diffDistMap;		// difference distance map (in comparison mode)
+	private DistanceMatrix diffDistMap;		// difference distance map (in comparison mode)
+	private HashMap<Color,Color[]> alphaPalettes = new HashMap<Color,Color[]>();	// a color at each quantized weight level as alpha
+	private Color[] heatmapPalette;			// heat map color at each quantized weight level
+	private int[] scoreHeatmapPalette;		// scaled heat map rgb of scores in [0,1] at HEATMAP_LEVELS levels
+	private int[] nbhContactColors = new int[0];	// rgb of each common neighbourhood size for contacts
+	private int[] nbhNonContactColors = new int[0];	// and for non-contacts
 
 	// buffers for triple buffering
 	private ScreenBuffer screenBuffer;		// buffer containing the more or
-											// less static background image
+											// less static background image,
+											// composited from the layers
+	private EnumMap<Layer,ScreenBuffer> layers = new EnumMap<Layer,ScreenBuffer>(Layer.class);	// transparent
+	private EnumMap<Layer,List<Object>> layerInputs = new EnumMap<Layer,List<Object>>(Layer.class);	// gui state and colors the layers were drawn for
+	private EnumSet<Layer> staleLayers = EnumSet.allOf(Layer.class);	// layers whose data changed
+	private int layerOutputSize;			// the output size the layers were drawn for
+	private ContactMapRaster raster = new ContactMapRaster();	// writes cells into the screen buffer
+	private boolean drawingToRaster;		// whether cells are written to the raster
+	private ContactMapPyramid contactLod;	// levels of detail of the contacts and background maps for
+	private ContactMapPyramid distanceLod;	// cells smaller than a pixel, built when first needed and
+	private ContactMapPyramid densityLod;	// reset when the contacts or maps change; only accessed
+	private ContactMapPyramid diffDistLod;	// while holding the lock of this pane, like all drawing
+	private Rectangle renderBounds;			// the part of the map (in map pixels) being rendered
+
+	// zooming
+	private int zoom = 1;					// magnification, outputSize is the size of the zoomed map
+	private Point viewOrigin = new Point();	// map pixel shown at the upper left corner
+	private Point panPos;					// last mouse position while panning
+	private ContactMapTileCache tileCache = new ContactMapTileCache(Start.TILE_CACHE_SIZE);	// tiles of the zoomed map
+	private boolean screenBufferStale;		// whether data changed while zoomed in
 
 	// drawing colors (being set in the constructor)
 	private Color backgroundColor;	  		// background color
@@ -220,6 +260,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		this.view = view;
 		addMouseListener(this);
 		addMouseMotionListener(this);
+		addMouseWheelListener(this);
 		addComponentListener(this);
 		this.setOpaque(true); // make this component opaque
 		this.setBorder(BorderFactory.createLineBorder(Color.black));
@@ -260,16 +301,19 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		this.mod = mod;
 		this.ali = ali;
 		this.allContacts = mapContactSetToAlignment(mod.getLoadedGraphID(),mod.getContacts());
-		this.selContacts = new IntPairSet();
-		this.tmpContacts = new IntPairSet();
+		this.contactWeights = null;
+		this.selContacts = new ContactSet();
+		this.tmpContacts = new ContactSet();
 		this.selHorNodes = new TreeSet<Integer>();
 		this.selVertNodes = new TreeSet<Integer>();
-		this.commonContacts = new IntPairSet();
-		this.uniqueToFirstContacts = new IntPairSet();
-		this.uniqueToSecondContacts = new IntPairSet();
+		this.contactComparison = null;
 
 		this.contactMapSize = ali.getAlignmentLength(); // Note: this used to be mod.getMatrixSize() before we introduced the alignment also for 1 model 
 		// initializes outputSize, ratio and contactSquareSize
+		this.zoom = 1;
+		this.viewOrigin = new Point();
+		tileCache.clear();
+		this.staleLayers = EnumSet.allOf(Layer.class);
 		setOutputSize(Math.min(screenSize.height, screenSize.width)); 		
 		
 		this.dragging = false;
@@ -277,7 +321,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		this.showCommonNbs = false;
 		this.showRulerCoord = false;
 		this.userContactColors = new Hashtable<Pair<Integer>, Color>();
-		this.densityMatrix = null;
+		this.densityMap = null;
 		this.comNbhSizes = null;
 		this.diffDistMap = null;
 
@@ -298,52 +342,27 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 		// re-mapping new structure through alignment
 		this.allContacts = mapContactSetToAlignment(mod.getLoadedGraphID(),mod.getContacts());
+		this.contactWeights = null;
 		// getting all contacts of the second structure, mapping through alignment
 		this.allSecondContacts = mapContactSetToAlignment(mod2.getLoadedGraphID(),mod2.getContacts());
+		this.secondContactWeights = null;
 
-		// resetting all other sets
-		commonContacts = new IntPairSet();
-		uniqueToFirstContacts = new IntPairSet();
-		uniqueToSecondContacts = new IntPairSet();
-		bothStrucContacts = new IntPairSet();
-		allButCommonContacts = new IntPairSet();
-		
-		// now getting the 3 sets: common, uniqueToFirst, uniqueToSecond
-		
-		for (Pair<Integer> cont2:allSecondContacts){
-			// contacts in second and also in first are common
-			if (allContacts.contains(cont2)) {
-				commonContacts.add(cont2);
-			}
-			// contacts in second and not in first are uniqueToSecond
-			else if(!allContacts.contains(cont2)){
-				uniqueToSecondContacts.add(cont2);
-			}
-		}
-
-		// contacts in first and not in second are uniqueToFirst
-		for (Pair<Integer> cont:allContacts){
-			if (!allSecondContacts.contains(cont)){
-				uniqueToFirstContacts.add(cont);
-			}
-		}
-
-		// bothStrucContacts = uniqueToFirst+uniqueToSecond+common
-		bothStrucContacts.addAll(uniqueToFirstContacts);
-		bothStrucContacts.addAll(uniqueToSecondContacts);
-		bothStrucContacts.addAll(commonContacts);
-
-		// allButCommon = uniqueToFirst+uniqueToSecond
-		allButCommonContacts.addAll(uniqueToFirstContacts);
-		allButCommonContacts.addAll(uniqueToSecondContacts);
+		// now getting the sets: common, uniqueToFirst, uniqueToSecond, both, allButCommon
+		contactComparison = new ContactComparison(ali.getAlignmentLength());
+		contactComparison.setFirstContacts(allContacts);
+		contactComparison.setSecondContacts(allSecondContacts);
 
 		// finally resetting things  
 		this.contactMapSize = ali.getAlignmentLength();
 		// initializes outputSize, ratio and contactSquareSize
+		this.zoom = 1;
+		this.viewOrigin = new Point();
+		tileCache.clear();
+		this.staleLayers = EnumSet.allOf(Layer.class);
 		setOutputSize(Math.min(screenSize.height, screenSize.width)); 
 
-		this.selContacts = new IntPairSet();
-		this.tmpContacts = new IntPairSet();
+		this.selContacts = new ContactSet();
+		this.tmpContacts = new ContactSet();
 		this.selHorNodes = new TreeSet<Integer>();
 		this.selVertNodes = new TreeSet<Integer>();
 
@@ -352,26 +371,49 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		this.showCommonNbs = false;
 		this.showRulerCoord = false;
 		this.userContactColors = new Hashtable<Pair<Integer>, Color>();
-		this.densityMatrix = null;
+		this.densityMap = null;
 		this.comNbhSizes = null;
 		this.diffDistMap = null;
 		this.deltaRankMatrix = null;
+		this.deltaRankRange = null;
 		
 		selContactsChanged(); // not sure if we need this call here but just in
 		tmpContactsChanged(); // case sel- or tmpContact had some value before
 
 	}
 
+	/**
+	 * Adds and removes the contacts in which the old and new contacts of a
+	 * structure differ to/from the contact comparison, only flipping the bits of
+	 * the changed contacts. The compare mode contact sets are rebuilt when used
+	 * next.
+	 */
+	private void updateContactComparison(ContactSet oldContacts, ContactSet newContacts, boolean secondModel) {
+		int[] pairs = oldContacts.getPairs();
+		for (int k = 0; k < pairs.length; k += 2) {
+			if (!newContacts.contains(pairs[k], pairs[k+1])) {
+				contactComparison.setContact(secondModel, pairs[k], pairs[k+1], false);
+			}
+		}
+		pairs = newContacts.getPairs();
+		for (int k = 0; k < pairs.length; k += 2) {
+			if (!oldContacts.contains(pairs[k], pairs[k+1])) {
+				contactComparison.setContact(secondModel, pairs[k], pairs[k+1], true);
+			}
+		}
+	}
+
 	/**
 	 * Given a set of contacts with sequence indexing returns a new set of 
 	 * contacts with alignment indexing
 	 * @param contacts
 	 * @param tag 
 	 */
-	private IntPairSet mapContactSetToAlignment(String tag, IntPairSet contacts) {
-		IntPairSet aliContacts = new IntPairSet();
-		for (Pair<Integer> cont:contacts) {
-			aliContacts.add(new Pair<Integer>(mapSeq2Al(tag,cont.getFirst()),mapSeq2Al(tag,cont.getSecond())));
+	private ContactSet mapContactSetToAlignment(String tag, ContactSet contacts) {
+		ContactSet aliContacts = new ContactSet(contacts.size());
+		int[] pairs = contacts.getPairs();
+		for (int k = 0; k < pairs.length; k += 2) {
+			aliContacts.add(mapSeq2Al(tag,pairs[k]),mapSeq2Al(tag,pairs[k+1]));
 		}
 		return aliContacts;
 	}
@@ -382,10 +424,11 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param contacts
 	 * @param tag 
 	 */
-	private IntPairSet mapContactSetToSequence(String tag, IntPairSet contacts) {
+	private IntPairSet mapContactSetToSequence(String tag, ContactSet contacts) {
 		IntPairSet aliContacts = new IntPairSet();
-		for (Pair<Integer> cont:contacts) {
-			aliContacts.add(new Pair<Integer>(mapAl2Seq(tag,cont.getFirst()),mapAl2Seq(tag,cont.getSecond())));
+		int[] pairs = contacts.getPairs();
+		for (int k = 0; k < pairs.length; k += 2) {
+			aliContacts.add(new Pair<Integer>(mapAl2Seq(tag,pairs[k]),mapAl2Seq(tag,pairs[k+1])));
 		}
 		return aliContacts;
 	}
@@ -493,8 +536,11 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		
 		Graphics2D g2d = (Graphics2D) g.create();
 
-		// draw screen buffer
-		if(screenBuffer==null) {
+		// draw screen buffer or the visible tiles of the zoomed map
+		if(zoom > 1) {
+			drawTiles(g2d);
+			g2d.translate(-viewOrigin.x, -viewOrigin.y);	// everything else is drawn in map pixels
+		} else if(screenBuffer==null) {
 			screenBuffer = new ScreenBuffer(this);
 			updateScreenBuffer();
 		} else {
@@ -571,7 +617,55 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		//((Graphics2D) g).drawImage(bufferImage, null, this);
 		
 		// update loupe (without crosshair)
-		if(mouseIn) view.loupePanel.updateLoupe(screenBuffer.getImage(), mousePos, contactSquareSize, this);
+		if(mouseIn && zoom == 1) view.loupePanel.updateLoupe(screenBuffer.getImage(), mousePos, contactSquareSize, this);
+	}
+
+	/**
+	 * Draws the visible part of the zoomed map from the tile cache, rendering
+	 * the tiles which are not in the cache.
+	 */
+	private void drawTiles(Graphics2D g2d) {
+		g2d.setColor(backgroundColor);
+		if (isOpaque()) {
+			g2d.fillRect(0, 0, getWidth(), getHeight());
+		}
+		int tileSize = ContactMapTileCache.TILE_SIZE;
+		int xEnd = Math.min(viewOrigin.x + getWidth(), outputSize);
+		int yEnd = Math.min(viewOrigin.y + getHeight(), outputSize);
+		for (int tileY = viewOrigin.y / tileSize; tileY * tileSize < yEnd; tileY++) {
+			for (int tileX = viewOrigin.x / tileSize; tileX * tileSize < xEnd; tileX++) {
+				BufferedImage tile = tileCache.get(outputSize, tileX, tileY);
+				if (tile == null) {
+					tile = renderTile(tileX, tileY);
+					tileCache.put(outputSize, tileX, tileY, tile);
+				}
+				g2d.drawImage(tile, tileX * tileSize - viewOrigin.x, tileY * tileSize - viewOrigin.y, this);
+			}
+		}
+	}
+
+	/**
+	 * Renders the maps into the given tile of the zoomed map, only drawing the
+	 * cells on the tile.
+	 */
+	private BufferedImage renderTile(int tileX, int tileY) {
+		int tileSize = ContactMapTileCache.TILE_SIZE;
+		BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = tile.createGraphics();
+		g2d.translate(-tileX * tileSize, -tileY * tileSize);
+		raster.setImage(tile);
+		raster.setOrigin(tileX * tileSize, tileY * tileSize);
+		raster.setCellSize(contactMapSize, ratio, contactSquareSize);
+		raster.fill(backgroundColor.getRGB());
+		renderBounds = new Rectangle(tileX * tileSize, tileY * tileSize, tileSize, tileSize);
+		drawingToRaster = true;
+		try {
+			drawMaps(g2d);
+		} finally {
+			drawingToRaster = false;
+			g2d.dispose();
+		}
+		return tile;
 	}
 
 	private void drawHorizontalNodeSelection(Graphics2D g2d, Interval residues) {
@@ -593,11 +687,26 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		// this actually contains all cells in matrix so is doing a
 		// full loop on all cells
 		//TODO indices here refer to sequence, while on screen we have alignment indices. This is fine for single mode, but needs to be changed if we allow distance map in compare mode
-		HashMap<Pair<Integer>,Double> distMatrix = mod.getDistMatrix();
-		for (Pair<Integer> cont:distMatrix.keySet()){
-			Color c = colorMapScaledHeatmap(distMatrix.get(cont), scaledDistCutoff);
-			g2d.setColor(c);
-			drawContact(g2d, cont,secondMap);
+		DistanceMatrix distMatrix = mod.getDistMatrix();
+		if (useLevelOfDetail()) {
+			if (distanceLod == null || distanceLod.getSource() != distMatrix) {
+				distanceLod = ContactMapPyramid.forMatrix(distMatrix);
+			}
+			float[] pixels = getLodPixels(distanceLod, secondMap);
+			for (int k = 0; k < pixels.length; k++) {
+				if (Float.isNaN(pixels[k])) continue;
+				fillLodPixel(k, colorMapScaledHeatmap(pixels[k], scaledDistCutoff).getRGB(), secondMap);
+			}
+			return;
+		}
+		int size = distMatrix.getSize();
+		int[] range = getCellRange(secondMap);
+		for (int i = Math.max(1, range[0]); i <= Math.min(size - 1, range[1]); i++) {
+			for (int j = Math.max(i + 1, range[2]); j <= Math.min(size, range[3]); j++) {
+				float dist = distMatrix.get(i, j);
+				if (Float.isNaN(dist)) continue;
+				fillCell(g2d, i, j, colorMapScaledHeatmap(dist, scaledDistCutoff), secondMap, false);
+			}
 		}
 	}
 	
@@ -607,19 +716,34 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 */
 	private void drawNbhSizeMap(Graphics2D g2d, boolean secondMap) {
 		// showing common neighbourhood sizes
-		for (Pair<Integer> cont:comNbhSizes.keySet()){
-			int size = comNbhSizes.get(cont);
-			if (allContacts.contains(cont)) {
-				// coloring pinks when the cell is a contact, 1/size is simply
-				// doing the color grading: lower size lighter than higher size
-				g2d.setColor(new Color(1.0f/(float) Math.sqrt(size), 0.0f, 1.0f/(float) Math.sqrt(size)));
-			} else {
-				// coloring greens when the cell is not a contact, 1/size is
-				// simply doing the color grading: lower size lighter than
-				// higher size
-				g2d.setColor(new Color(0.0f, 1.0f/size,0.0f));
+		int matrixSize = comNbhSizes.getSize();
+		int[] range = getCellRange(secondMap);
+		for (int i = Math.max(1, range[0]); i <= Math.min(matrixSize - 1, range[1]); i++) {
+			for (int j = Math.max(i + 1, range[2]); j <= Math.min(matrixSize, range[3]); j++) {
+				int size = comNbhSizes.get(i, j);
+				if (size == 0) continue;
+				if (size >= nbhContactColors.length) {
+					computeNbhSizeColors(size);
+				}
+				int rgb = allContacts.contains(i, j) ? nbhContactColors[size] : nbhNonContactColors[size];
+				fillCell(g2d, i, j, rgb, secondMap, false);
 			}
-			drawContact(g2d, cont,secondMap);
+		}
+	}
+
+	/**
+	 * Computes the colors of the common neighbourhood size map for all sizes up
+	 * to at least the given one.
+	 */
+	private void computeNbhSizeColors(int maxSize) {
+		int n = Math.max(maxSize + 1, 2 * nbhContactColors.length);
+		nbhContactColors = new int[n];
+		nbhNonContactColors = new int[n];
+		for (int size = 1; size < n; size++) {
+			// coloring pinks when the cell is a contact, greens when it is not, 1/size
+			// is simply doing the color grading: lower size lighter than higher size
+			nbhContactColors[size] = new Color(1.0f/(float) Math.sqrt(size), 0.0f, 1.0f/(float) Math.sqrt(size)).getRGB();
+			nbhNonContactColors[size] = new Color(0.0f, 1.0f/size, 0.0f).getRGB();
 		}
 	}
 	
@@ -629,28 +753,27 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 */
 	private void drawContactMap(Graphics2D g2d) {
 		if (!view.getGUIState().getCompareMode()) { // single contact map mode
-			for (Pair<Integer> cont:allContacts){
-				// in single contact map mode we can also have contacts colored by user
-				if(userContactColors.containsKey(cont)) {
-					g2d.setColor(userContactColors.get(cont)); 
-				} else {
-					g2d.setColor(contactColor);
-					if (Start.USE_EXPERIMENTAL_FEATURES && Start.SHOW_WEIGHTED_CONTACTS) {
-						double weight = mod.getGraph().getEdgeFromSerials(cont.getFirst(), cont.getSecond()).getWeight();
-						float truncWeight = (float) Math.max(0, Math.min(1, weight)); // truncated weight (if weights are off the (0,1) interval)
-						if (Start.SHOW_WEIGHTS_IN_COLOR) {
-							g2d.setColor(colorMapHeatmap(1.0f - truncWeight));
-						} else { // gray shades
-							float colorWeight = 1.0f - truncWeight;
-							//g2d.setColor(new Color(colorWeight, colorWeight, colorWeight));	// w/o alpha channel (faster?)
-							g2d.setColor(new Color(0f,0f,0f, 1.0f-colorWeight));	// use alpha channel
-						}
-
-					}
+			boolean weighted = Start.USE_EXPERIMENTAL_FEATURES && Start.SHOW_WEIGHTED_CONTACTS;
+			ContactWeights weights = weighted?getContactWeights(1):null;
+			Color[] palette = weighted?getWeightPalette():null;
+			boolean small = view.getGUIState().getShowBackground();
+			boolean smallBottom = view.getGUIState().getShowBottomBackground();
+			if (useLevelOfDetail() && !weighted) {
+				drawContactMapLod(g2d, small, smallBottom);
+				return;
+			}
+			int[] pairs = allContacts.getPairs();
+			for (int m = 0; m < 2; m++) {
+				boolean secondMap = (m == 1);
+				int[] range = getCellRange(secondMap);
+				for (int k = findFirstPair(pairs, range[0]); k < pairs.length && pairs[k] <= range[1]; k += 2){
+					int i = pairs[k];
+					int j = pairs[k+1];
+					if (j < range[2] || j > range[3]) continue;
+					// contacts colored by user are drawn on top, see drawUserContactColors
+					Color c = weighted?palette[weights.getLevel(i,j)]:contactColor;
+					fillCell(g2d, i, j, c, secondMap, secondMap?smallBottom:small);
 				}
-
-				drawContact(g2d, cont,false,view.getGUIState().getShowBackground());
-				drawContact(g2d, cont,true,view.getGUIState().getShowBottomBackground());
 			}
 		} else { // compare mode
 
@@ -658,48 +781,48 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 				// 1) common=0, first=0, second=1
 				if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == true){
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,true);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,false);
 				}
 				// 2) common=0, first=1, second=0 
 				else if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == false){
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,true);
 				}
 				// 3) common=0, first=1, second=1
 				else if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == true){
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,true);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,true);
 				}
 				// 4) common=1, first=0, second=0
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == false){
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,false);
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,true);
 				}
 				// 5) common=1, first=0, second=1
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == true){
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,false);
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,true);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,true);
 				}
 				// 6) common=1, first=1, second=0
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == false){
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,false);
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,true);
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,true);
 				}
 				// 7) common=1, first=1, second=1
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == true) {
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,false);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,false);
-					drawWeightedContacts(g2d,commonContacts,3,commonContactsColor,true);
-					drawWeightedContacts(g2d,uniqueToFirstContacts,1,uniqueToFirstContactsColor,true);
-					drawWeightedContacts(g2d,uniqueToSecondContacts,2,uniqueToSecondContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,false);
+					drawWeightedContacts(g2d,contactComparison.getCommonContacts(),3,commonContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlyFirstContacts(),1,uniqueToFirstContactsColor,true);
+					drawWeightedContacts(g2d,contactComparison.getOnlySecondContacts(),2,uniqueToSecondContactsColor,true);
 					// 8) common=0, first=0, second=0
 				} else { 
 					// do nothing
@@ -709,48 +832,48 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				
 				// 1) common=0, first=0, second=1
 				if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == true){
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,true);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,false);
 				}
 				// 2) common=0, first=1, second=0 
 				else if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == false){
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,false);
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,true);
 				}
 				// 3) common=0, first=1, second=1
 				else if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == true){
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,false);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,false);
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,true);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,true);
 				}
 				// 4) common=1, first=0, second=0
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == false){
-					drawContacts(g2d,commonContacts,commonContactsColor,false);
-					drawContacts(g2d,commonContacts,commonContactsColor,true);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,false);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,true);
 				}
 				// 5) common=1, first=0, second=1
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == true){
-					drawContacts(g2d,commonContacts,commonContactsColor,false);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,false);
-					drawContacts(g2d,commonContacts,commonContactsColor,true);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,true);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,false);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,true);
 				}
 				// 6) common=1, first=1, second=0
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == false){
-					drawContacts(g2d,commonContacts,commonContactsColor,false);
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,false);
-					drawContacts(g2d,commonContacts,commonContactsColor,true);
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,true);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,false);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,true);
 				}
 				// 7) common=1, first=1, second=1
 				else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == true) {
-					drawContacts(g2d,commonContacts,commonContactsColor,false);
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,false);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,false);
-					drawContacts(g2d,commonContacts,commonContactsColor,true);
-					drawContacts(g2d,uniqueToFirstContacts,uniqueToFirstContactsColor,true);
-					drawContacts(g2d,uniqueToSecondContacts,uniqueToSecondContactsColor,true);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,false);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,false);
+					drawContacts(g2d,contactComparison.getCommonContacts(),commonContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlyFirstContacts(),uniqueToFirstContactsColor,true);
+					drawContacts(g2d,contactComparison.getOnlySecondContacts(),uniqueToSecondContactsColor,true);
 				// 8) common=0, first=0, second=0
 				} else { 
 					// do nothing
@@ -759,16 +882,59 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		}
 	}
 	
+	/**
+	 * Draws the single contact map when cells are smaller than a pixel: each
+	 * pixel is shaded by the number of contacts on it relative to the number of
+	 * residues it spans (full for a line of contacts through it), so that
+	 * contacts don't get lost by drawing many cells to the same pixel.
+	 */
+	private void drawContactMapLod(Graphics2D g2d, boolean small, boolean smallBottom) {
+		if (contactLod == null || contactLod.getSource() != allContacts) {
+			contactLod = ContactMapPyramid.forContacts(allContacts, contactMapSize);
+		}
+		ContactMapPyramid lod = contactLod;
+		int rgb = contactColor.getRGB() & 0xffffff;
+		for (int m = 0; m < 2; m++) {
+			boolean secondMap = (m == 1);
+			float[] pixels = getLodPixels(lod, secondMap);
+			for (int k = 0; k < pixels.length; k++) {
+				if (pixels[k] == 0) continue;
+				int alpha = (int) Math.max(1, Math.min(255, Math.round(255*pixels[k]*ratio)));
+				fillLodPixel(k, (alpha << 24) | rgb, secondMap);
+			}
+		}
+	}
+
+	/**
+	 * Draws the contacts with a user defined color (single contact map mode
+	 * only).
+	 */
+	private void drawUserContactColors(Graphics2D g2d) {
+		if (view.getGUIState().getCompareMode()) return;
+		boolean small = view.getGUIState().getShowBackground();
+		boolean smallBottom = view.getGUIState().getShowBottomBackground();
+		for (Pair<Integer> cont:userContactColors.keySet()) {
+			if (!allContacts.contains(cont)) continue;
+			Color c = userContactColors.get(cont);
+			fillCell(g2d, cont.getFirst(), cont.getSecond(), c, false, small);
+			fillCell(g2d, cont.getFirst(), cont.getSecond(), c, true, smallBottom);
+		}
+	}
+
 	/**
 	 * Draws contacts for the given contact set in the given color
 	 * @param g2d
 	 * @param contactSet
 	 * @param color
 	 */
-	protected void drawContacts(Graphics2D g2d, IntPairSet contactSet, Color color, boolean secondMap) {
+	protected void drawContacts(Graphics2D g2d, ContactSet contactSet, Color color, boolean secondMap) {
 		g2d.setColor(color);
-		for(Pair<Integer> cont:contactSet){
-			drawContact(g2d, cont, secondMap,(view.getGUIState().getShowBackground() && !secondMap) || (view.getGUIState().getShowBottomBackground() && secondMap) );
+		boolean small = (view.getGUIState().getShowBackground() && !secondMap) || (view.getGUIState().getShowBottomBackground() && secondMap);
+		int[] pairs = contactSet.getPairs();
+		int[] range = getCellRange(secondMap);
+		for(int k = findFirstPair(pairs, range[0]); k < pairs.length && pairs[k] <= range[1]; k += 2){
+			if (pairs[k+1] < range[2] || pairs[k+1] > range[3]) continue;
+			drawContact(g2d, pairs[k], pairs[k+1], secondMap, small);
 		}	
 	}
 
@@ -778,41 +944,97 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param contactSet
 	 * @param color
 	 */
-	private void drawWeightedContacts(Graphics2D g2d, IntPairSet contactSet, int modNum, Color color, boolean secondMap) {
-		for(Pair<Integer> cont:contactSet){
-			double weight;
+	private void drawWeightedContacts(Graphics2D g2d, ContactSet contactSet, int modNum, Color color, boolean secondMap) {
+		ContactWeights weights1 = (modNum == 2)?null:getContactWeights(1);
+		ContactWeights weights2 = (modNum == 1)?null:getContactWeights(2);
+		Color[] palette = getAlphaPalette(color);
+		boolean small = (view.getGUIState().getShowBackground() && !secondMap) || (view.getGUIState().getShowBottomBackground() && secondMap);
+		int[] pairs = contactSet.getPairs();
+		int[] range = getCellRange(secondMap);
+		for(int k = findFirstPair(pairs, range[0]); k < pairs.length && pairs[k] <= range[1]; k += 2){
+			int i = pairs[k];
+			int j = pairs[k+1];
+			if (j < range[2] || j > range[3]) continue;
+			int level;
 			if(modNum == 1) {
-				weight = mod.getGraph().getEdgeFromSerials(mapAl2Seq(mod.getLoadedGraphID(),cont.getFirst()), mapAl2Seq(mod.getLoadedGraphID(),cont.getSecond())).getWeight();
+				level = weights1.getLevel(i,j);
 			} else if(modNum == 2) {
-				weight = mod2.getGraph().getEdgeFromSerials(mapAl2Seq(mod2.getLoadedGraphID(),cont.getFirst()), mapAl2Seq(mod2.getLoadedGraphID(),cont.getSecond())).getWeight();
+				level = weights2.getLevel(i,j);
 			} else { // both
-				double weight1 = mod.getGraph().getEdgeFromSerials(mapAl2Seq(mod.getLoadedGraphID(),cont.getFirst()), mapAl2Seq(mod.getLoadedGraphID(),cont.getSecond())).getWeight();
-				double weight2 = mod2.getGraph().getEdgeFromSerials(mapAl2Seq(mod2.getLoadedGraphID(),cont.getFirst()), mapAl2Seq(mod2.getLoadedGraphID(),cont.getSecond())).getWeight();
-				weight = Math.max(weight1, weight2);
-			}
-			float truncWeight = (float) Math.max(0, Math.min(1, weight)); // truncated weight (if weights are off the (0,1) interval)
-			Color newColor = new Color(color.getRed(), color.getGreen(), color.getBlue(), Math.round(255 * truncWeight));
-			g2d.setColor(newColor);
-			drawContact(g2d, cont, secondMap,(view.getGUIState().getShowBackground() && !secondMap) || (view.getGUIState().getShowBottomBackground() && secondMap) );
+				level = Math.max(weights1.getLevel(i,j), weights2.getLevel(i,j));
+			}
+			g2d.setColor(palette[level]);
+			drawContact(g2d, i, j, secondMap, small);
 		}	
 	}
 
 	/**
-	 * Draws the given contact cont to the given graphics object g2d using the
-	 * global contactSquareSize and g2d current painting color.
+	 * Returns the edge weights of the first (modNum 1) or second (modNum 2)
+	 * model in alignment indexing, building them once per set of contacts.
 	 */
-	private void drawContact(Graphics2D g2d, Pair<Integer> cont, boolean secondMap) {
-		int x,y;
-		if (secondMap) {
-			x = getCellUpperLeft(cont).y;
-			y = getCellUpperLeft(cont).x;
+	private ContactWeights getContactWeights(int modNum) {
+		if(modNum == 1) {
+			if(contactWeights == null) contactWeights = getAlignedContactWeights(mod);
+			return contactWeights;
 		} else {
-			x = getCellUpperLeft(cont).x;
-			y = getCellUpperLeft(cont).y;
+			if(secondContactWeights == null) secondContactWeights = getAlignedContactWeights(mod2);
+			return secondContactWeights;
+		}
+	}
+
+	/**
+	 * Collects the weights of all edges of the given model's graph, mapped
+	 * through the alignment.
+	 */
+	private ContactWeights getAlignedContactWeights(Model model) {
+		String tag = model.getLoadedGraphID();
+		ContactWeights weights = new ContactWeights(model.getGraph().getEdgeCount());
+		for(RIGEdge edge:model.getGraph().getEdges()) {
+			Pair<RIGNode> nodes = model.getGraph().getEndpoints(edge);
+			weights.put(mapSeq2Al(tag,nodes.getFirst().getResidueSerial()), mapSeq2Al(tag,nodes.getSecond().getResidueSerial()), (float) edge.getWeight());
 		}
-		g2d.drawRect(x,y,contactSquareSize,contactSquareSize);
-		g2d.fillRect(x,y,contactSquareSize,contactSquareSize);
+		return weights;
+	}
+
+	/**
+	 * Returns the given color with an alpha value for each quantized weight
+	 * level, i.e. transparent for weight 0 and opaque for weight 1.
+	 */
+	private Color[] getAlphaPalette(Color color) {
+		Color[] palette = alphaPalettes.get(color);
+		if(palette == null) {
+			palette = new Color[ContactWeights.LEVELS];
+			for(int level = 0; level < palette.length; level++) {
+				palette[level] = new Color(color.getRed(), color.getGreen(), color.getBlue(), Math.round(255f * level / (palette.length - 1)));
+			}
+			alphaPalettes.put(color, palette);
+		}
+		return palette;
+	}
+
+	/**
+	 * Returns the colors for the quantized weight levels in single contact map
+	 * mode: heat map colors or shades of gray (black with alpha).
+	 */
+	private Color[] getWeightPalette() {
+		if(!Start.SHOW_WEIGHTS_IN_COLOR) {
+			return getAlphaPalette(Color.BLACK);
+		}
+		if(heatmapPalette == null) {
+			heatmapPalette = new Color[ContactWeights.LEVELS];
+			for(int level = 0; level < heatmapPalette.length; level++) {
+				heatmapPalette[level] = colorMapHeatmap(1.0 - (double) level / (heatmapPalette.length - 1));
+			}
+		}
+		return heatmapPalette;
+	}
 
+	/**
+	 * Draws the given contact cont to the given graphics object g2d using the
+	 * global contactSquareSize and g2d current painting color.
+	 */
+	private void drawContact(Graphics2D g2d, Pair<Integer> cont, boolean secondMap) {
+		drawContact(g2d, cont.getFirst(), cont.getSecond(), secondMap, false);
 	}
 
 	/**
@@ -820,13 +1042,25 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * global contactSquareSize and g2d current painting color.
 	 */
 	private void drawContact(Graphics2D g2d, Pair<Integer> cont, boolean secondMap,boolean small) {
+		drawContact(g2d, cont.getFirst(), cont.getSecond(), secondMap, small);
+	}
+
+	/**
+	 * Draws contact (i,j) like {@link #drawContact(Graphics2D, Pair, boolean, boolean)}
+	 * without creating any objects.
+	 */
+	private void drawContact(Graphics2D g2d, int i, int j, boolean secondMap,boolean small) {
+		if (drawingToRaster) {
+			fillCell(g2d, i, j, g2d.getColor(), secondMap, small);
+			return;
+		}
 		int x,y;
 		if (secondMap) {
-			x = getCellUpperLeft(cont).y;
-			y = getCellUpperLeft(cont).x;
+			x = (int) Math.round((i-1)*ratio);
+			y = (int) Math.round((j-1)*ratio);
 		} else {
-			x = getCellUpperLeft(cont).x;
-			y = getCellUpperLeft(cont).y;
+			x = (int) Math.round((j-1)*ratio);
+			y = (int) Math.round((i-1)*ratio);
 		}
 		if (small) {
 			g2d.drawRect(1+x+contactSquareSize/3,1+y+contactSquareSize/3,contactSquareSize/3,contactSquareSize/3);
@@ -838,22 +1072,152 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	}
 
+	/**
+	 * Returns whether the maps are drawn from their levels of detail, i.e. when
+	 * cells are smaller than a pixel and the screen buffer is being updated.
+	 */
+	private boolean useLevelOfDetail() {
+		return drawingToRaster && contactSquareSize == 0;
+	}
+
+	/**
+	 * Returns the pixels of the given level of detail pyramid for the part of
+	 * the map being rendered, transposed for the second map.
+	 */
+	private float[] getLodPixels(ContactMapPyramid lod, boolean secondMap) {
+		Rectangle b = renderBounds;
+		if (secondMap) {
+			return lod.getPixels(ratio, b.y, b.x, b.width);
+		} else {
+			return lod.getPixels(ratio, b.x, b.y, b.width);
+		}
+	}
+
+	/**
+	 * Fills pixel k of the pixels returned by {@link #getLodPixels(ContactMapPyramid, boolean)}
+	 * with the given color, mirrored to the lower triangle for the second map.
+	 */
+	private void fillLodPixel(int k, int argb, boolean secondMap) {
+		Rectangle b = renderBounds;
+		if (secondMap) {
+			raster.fillPixel(b.y + k % b.width, b.x + k / b.width, argb);
+		} else {
+			raster.fillPixel(b.y + k / b.width, b.x + k % b.width, argb);
+		}
+	}
+
+	/**
+	 * Returns the range of cells (i,j) which may be drawn on the part of the map
+	 * being rendered, or the visible part when drawing directly to the screen, as
+	 * {first i, last i, first j, last j}.
+	 */
+	private int[] getCellRange(boolean secondMap) {
+		Rectangle b = renderBounds;
+		if (!drawingToRaster) {
+			b = new Rectangle(viewOrigin.x, viewOrigin.y, outputSize / zoom, outputSize / zoom);
+		}
+		int rowBeg = getCellAt(b.y - contactSquareSize - 1);
+		int rowEnd = getCellAt(b.y + b.height);
+		int colBeg = getCellAt(b.x - contactSquareSize - 1);
+		int colEnd = getCellAt(b.x + b.width);
+		if (secondMap) {
+			return new int[] {colBeg, colEnd, rowBeg, rowEnd};
+		} else {
+			return new int[] {rowBeg, rowEnd, colBeg, colEnd};
+		}
+	}
+
+	/**
+	 * Returns the index in the given contacts (as returned by
+	 * {@link ContactSet#getPairs()}, sorted by i) of the first contact (i,j)
+	 * with i not smaller than the given one.
+	 */
+	private static int findFirstPair(int[] pairs, int i) {
+		int lo = 0;
+		int hi = pairs.length / 2;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (pairs[2*mid] < i) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return 2 * lo;
+	}
+
+	/**
+	 * Returns the index of the cell at the given pixel row or column, clamped to
+	 * the map.
+	 */
+	private int getCellAt(int pixel) {
+		return Math.max(1, Math.min(contactMapSize, (int) Math.floor(pixel / ratio) + 1));
+	}
+
+	/**
+	 * Fills the cell of contact (i,j) with the given color. While the screen
+	 * buffer is updated the pixels are written directly to its raster, otherwise
+	 * the contact is drawn to g2d.
+	 */
+	private void fillCell(Graphics2D g2d, int i, int j, Color color, boolean secondMap, boolean small) {
+		if (drawingToRaster) {
+			if (secondMap) {
+				raster.fillCell(j, i, color.getRGB(), small);
+			} else {
+				raster.fillCell(i, j, color.getRGB(), small);
+			}
+		} else {
+			g2d.setColor(color);
+			drawContact(g2d, i, j, secondMap, small);
+		}
+	}
+
+	/**
+	 * Fills the cell of contact (i,j) with the given (a)rgb value, like
+	 * {@link #fillCell(Graphics2D, int, int, Color, boolean, boolean)}.
+	 */
+	private void fillCell(Graphics2D g2d, int i, int j, int argb, boolean secondMap, boolean small) {
+		if (drawingToRaster) {
+			if (secondMap) {
+				raster.fillCell(j, i, argb, small);
+			} else {
+				raster.fillCell(i, j, argb, small);
+			}
+		} else {
+			g2d.setColor(new Color(argb, true));
+			drawContact(g2d, i, j, secondMap, small);
+		}
+	}
+
 	
 	/**
 	 * @param g2d
 	 */
 	private void drawDensityMap(Graphics2D g2d, boolean secondMap) {
 		// assuming that density matrix has values from [0,1]
-		int size = densityMatrix.length;
-		for(int i = 0; i < size; i++) {
-			for(int j = i; j < size; j++) {
-				Color c = colorMapRedBlue(densityMatrix[i][j]);
+		if (useLevelOfDetail()) {
+			if (densityLod == null || densityLod.getSource() != densityMap) {
+				densityLod = ContactMapPyramid.forDensityMap(densityMap);
+			}
+			float[] pixels = getLodPixels(densityLod, secondMap);
+			for (int k = 0; k < pixels.length; k++) {
+				if (Float.isNaN(pixels[k])) continue;
+				Color c = colorMapRedBlue(pixels[k]);
+				if (!c.equals(backgroundColor)) {
+					fillLodPixel(k, c.getRGB(), secondMap);
+				}
+			}
+			return;
+		}
+		int size = densityMap.getSize();
+		int[] range = getCellRange(secondMap);
+		for(int i = Math.max(0, range[0] - 1); i < Math.min(size, range[1]); i++) {
+			for(int j = Math.max(i, range[2] - 1); j < Math.min(size, range[3]); j++) {
+				Color c = colorMapRedBlue(densityMap.getDensity(i+1,j+1));
 				if(!c.equals(backgroundColor)) {
-					g2d.setColor(c);
-					Pair<Integer> cont = new Pair<Integer>(i+1,j+1);
-					drawContact(g2d, cont,secondMap);
+					fillCell(g2d, i+1, j+1, c, secondMap, false);
 				}
-//				double val = (double)Math.round(100*densityMatrix[i][j])/100;
+//				double val = (double)Math.round(100*densityMap.getDensity(i+1,j+1))/100;
 //				System.out.print(val+"\t");
 			}
 //			System.out.println();
@@ -869,8 +1233,9 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		// assuming that delta Rank matrix has values from [-38,38], -100 indicates no data 
 		Color c;
 		int size = deltaRankMatrix.length;
-		for(int i = 0; i < size; i++) {
-			for(int j = i; j < size; j++) {
+		int[] range = getCellRange(secondMap);
+		for(int i = Math.max(0, range[0] - 1); i < Math.min(size, range[1]); i++) {
+			for(int j = Math.max(i, range[2] - 1); j < Math.min(size, range[3]); j++) {
 				if (deltaRankMatrix[i][j] < -80) {
 					c = Color.LIGHT_GRAY;
 				} else {
@@ -878,9 +1243,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				}
 				
 				if(!c.equals(backgroundColor)) {
-					g2d.setColor(c);
-					Pair<Integer> cont = new Pair<Integer>(i+1,j+1);
-					drawContact(g2d, cont, secondMap);
+					fillCell(g2d, i+1, j+1, c, secondMap, false);
 				}
 			}
 		}
@@ -891,37 +1254,68 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param g2d
 	 */
 	private void drawResidueScoringFunctionMap(Graphics2D g2d, boolean bottom) {
-		// assuming that delta Rank matrix has values from [-38,38], -100 indicates no data 
-		Color c;
+		// scores are expected in [0,1], -1 indicates no data
 		double v;
+		int rgb;
+		int background = backgroundColor.getRGB();
 		int size = this.contactMapSize;
-		for(int i = 0; i < size; i++) {
-			for(int j = i; j < size; j++) {
-				String fn = view.getGUIState().getResidueScoringFunctionName(bottom);
-				ResidueContactScoringFunction f = statusBar.getScoringFunctionWithName(fn);
+		String fn = view.getGUIState().getResidueScoringFunctionName(bottom);
+		ResidueContactScoringFunction f = statusBar.getScoringFunctionWithName(fn);
+		int[] palette = getScoreHeatmapPalette();
+		int[] range = getCellRange(bottom);
+		for(int i = Math.max(0, range[0] - 1); i < Math.min(size, range[1]); i++) {
+			for(int j = Math.max(i, range[2] - 1); j < Math.min(size, range[3]); j++) {
 				v = f.getScore(i, j);
-				if (v == -1) {
-					c= backgroundColor;
+				if (v == -1) continue;
+				if (v >= 0 && v <= 1) {
+					rgb = palette[(int) Math.round(v * (HEATMAP_LEVELS - 1))];
 				} else {
-					c = colorMapScaledHeatmap(v,0.5);
+					rgb = colorMapScaledHeatmap(v,0.5).getRGB();
 				}
-				if(!c.equals(backgroundColor)) {
-					g2d.setColor(c);
-					Pair<Integer> cont = new Pair<Integer>(i+1,j+1);
-					drawContact(g2d, cont, bottom);
+				if(rgb != background) {
+					fillCell(g2d, i+1, j+1, rgb, bottom, false);
 				}
 			}
 		}
 	}
+
+	/**
+	 * Returns the rgb values of the heat map scaled around 0.5 at HEATMAP_LEVELS
+	 * evenly spaced values from 0 to 1.
+	 */
+	private int[] getScoreHeatmapPalette() {
+		if (scoreHeatmapPalette == null) {
+			scoreHeatmapPalette = new int[HEATMAP_LEVELS];
+			for (int level = 0; level < HEATMAP_LEVELS; level++) {
+				scoreHeatmapPalette[level] = colorMapScaledHeatmap((double) level / (HEATMAP_LEVELS - 1), 0.5).getRGB();
+			}
+		}
+		return scoreHeatmapPalette;
+	}
 	
 	
 	private void drawDiffDistMap(Graphics2D g2d, boolean secondMap) {
 		// this actually contains all cells in matrix so is doing a
 		// full loop on all cells
-		for (Pair<Integer> cont:diffDistMap.keySet()){
-			Color c = colorMapHeatmap(1-diffDistMap.get(cont));
-			g2d.setColor(c);
-			drawContact(g2d, cont, secondMap);
+		if (useLevelOfDetail()) {
+			if (diffDistLod == null || diffDistLod.getSource() != diffDistMap) {
+				diffDistLod = ContactMapPyramid.forMatrix(diffDistMap);
+			}
+			float[] pixels = getLodPixels(diffDistLod, secondMap);
+			for (int k = 0; k < pixels.length; k++) {
+				if (Float.isNaN(pixels[k])) continue;
+				fillLodPixel(k, colorMapHeatmap(1-pixels[k]).getRGB(), secondMap);
+			}
+			return;
+		}
+		int size = diffDistMap.getSize();
+		int[] range = getCellRange(secondMap);
+		for (int i = Math.max(1, range[0]); i <= Math.min(size - 1, range[1]); i++) {
+			for (int j = Math.max(i + 1, range[2]); j <= Math.min(size, range[3]); j++) {
+				float diff = diffDistMap.get(i, j);
+				if (Float.isNaN(diff)) continue;
+				fillCell(g2d, i, j, colorMapHeatmap(1-diff), secondMap, false);
+			}
 		}
 	}
 	
@@ -933,33 +1327,29 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			TransferFunctionBar tfBar = this.view.tfDialog.getTransfFctBar();
 			String[] inputValTypes = tfBar.getInputValTypes();
 			// assuming that density matrix has values from [0,1]
-			int size = densityMatrix.length;
-			HashMap<Pair<Integer>,Double> distMatrix = mod.getDistMatrix();
+			int size = densityMap.getSize();
+			DistanceMatrix distMatrix = mod.getDistMatrix();
 			
 			// get min and max of delta rank matrix
 			double minDR = 0, maxDR = 0;
 			if (this.view.isDatabaseConnectionAvailable()){ // tfBar.useDeltaRank()){
-				minDR=0; maxDR=0;
-				for(int i = 0; i < size; i++) {
-					for(int j = i; j < size; j++) {
-						if (deltaRankMatrix[i][j] < minDR)
-							minDR = deltaRankMatrix[i][j];
-						if (deltaRankMatrix[i][j] > maxDR)
-							maxDR = deltaRankMatrix[i][j];
-					}
-				}
+				double[] rangeDR = getDeltaRankRange();
+				minDR = rangeDR[0];
+				maxDR = rangeDR[1];
 			}
 			
-			for(int i = 0; i < size; i++) {
-				for(int j = i; j < size; j++) {
-					Pair<Integer> cont = new Pair<Integer>(i+1,j+1);
+			int background = backgroundColor.getRGB();
+			double[] inputVal = new double[inputValTypes.length];	// reused for all cells, getColor() doesn't keep it
+			int[] range = getCellRange(secondMap);
+			for(int i = Math.max(0, range[0] - 1); i < Math.min(size, range[1]); i++) {
+				for(int j = Math.max(i, range[2] - 1); j < Math.min(size, range[3]); j++) {
 					// collect all available values and hand them over to TFDialog
-					double[] inputVal = new double[inputValTypes.length];
+					Arrays.fill(inputVal, 0);
 					for(int type=0; type<inputVal.length; type++){
 						if (inputValTypes[type] == View.BgOverlayType.COMMON_NBH.label){
-							if (this.comNbhSizes.containsKey(cont)){
-								int sizeNbh = comNbhSizes.get(cont);
-								if (allContacts.contains(cont)) 
+							int sizeNbh = (i+1 <= comNbhSizes.getSize() && j+1 <= comNbhSizes.getSize()) ? comNbhSizes.get(i+1, j+1) : 0;
+							if (sizeNbh > 0){
+								if (allContacts.contains(i+1, j+1)) 
 									inputVal[type] = 1.0/Math.sqrt((double)sizeNbh);
 								else 
 									inputVal[type] = 1.0/(double)sizeNbh;
@@ -968,12 +1358,12 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 								inputVal[type] = 0;
 						}
 						if (inputValTypes[type] == View.BgOverlayType.DENSITY.label){
-							inputVal[type] = Math.abs(densityMatrix[i][j]);
+							inputVal[type] = Math.abs(densityMap.getDensity(i+1,j+1));
 						}
 						if (inputValTypes[type] == View.BgOverlayType.DISTANCE.label){
 							// available to use: scaledDistCutoff
-							if (distMatrix.containsKey(cont))
-								inputVal[type] = distMatrix.get(cont);
+							if (i+1 <= distMatrix.getSize() && j+1 <= distMatrix.getSize() && distMatrix.isDefined(i+1, j+1))
+								inputVal[type] = distMatrix.get(i+1, j+1);
 							else
 								inputVal[type] = 0;
 						}
@@ -994,10 +1384,9 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 							System.out.println("Invalid value: "+inputVal[type]+" for "+inputValTypes[type]);
 					}
 					// get respective colour
-					Color c = tfBar.getColor(inputVal); //colorMapRedBlue(densityMatrix[i][j]);
-					if(!c.equals(backgroundColor)) {
-						g2d.setColor(c);
-						drawContact(g2d, cont,secondMap);
+					int rgb = tfBar.getColor(inputVal).getRGB(); //colorMapRedBlue(densityMap.getDensity(i+1,j+1));
+					if(rgb != background) {
+						fillCell(g2d, i+1, j+1, rgb, secondMap, false);
 					}
 				}
 			}			
@@ -1005,6 +1394,28 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		
 	}
 
+	/**
+	 * Returns the minimum (at most 0) and maximum (at least 0) of the upper
+	 * triangle of the delta rank matrix, computed once per matrix, so that the
+	 * transfer function map can be drawn in tiles.
+	 */
+	private double[] getDeltaRankRange() {
+		if (deltaRankRange == null) {
+			int size = densityMap.getSize();
+			double minDR = 0, maxDR = 0;
+			for(int i = 0; i < size; i++) {
+				for(int j = i; j < size; j++) {
+					if (deltaRankMatrix[i][j] < minDR)
+						minDR = deltaRankMatrix[i][j];
+					if (deltaRankMatrix[i][j] > maxDR)
+						maxDR = deltaRankMatrix[i][j];
+				}
+			}
+			deltaRankRange = new double[] {minDR, maxDR};
+		}
+		return deltaRankRange;
+	}
+
 	/**
 	 * NOT USED ANYMORE. NOW, COORDINATES ARE SHOWN IN STATUS BAR.
 	 * Draws coordinates for all registered models.
@@ -1040,7 +1451,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param modContacts  all contacts of mod2 or null if not in compare mode 
 	 * @param rulerMode if in ruler mode, show only coordinate(s) of either i or j
 	 */
-	protected void drawCoordinates(Model mod, Model mod2, IntPairSet modContacts, IntPairSet mod2Contacts, boolean rulerMode) {
+	protected void drawCoordinates(Model mod, Model mod2, ContactSet modContacts, ContactSet mod2Contacts, boolean rulerMode) {
 		Pair<Integer> currentCell = screen2cm(mousePos);
 
 		// alignment indices
@@ -1643,6 +2054,8 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		// This is called when the user presses the mouse anywhere
 		// in the frame
 
+		panPos = evt.getPoint();	// the middle button pans the zoomed map
+		evt = toMapCoordinates(evt);
 		lastMouseButtonPressed = evt.getButton();
 		mousePressedPos = evt.getPoint();
 		if(lastMouseButtonPressed == MouseEvent.BUTTON2) dragging = false;
@@ -1656,6 +2069,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	public void mouseReleased(MouseEvent evt) {
 		// Called whenever the user releases the mouse button.
 		// TODO: Move much of this to MouseClicked and pull up Contact cont = screen2cm...
+		evt = toMapCoordinates(evt);
 		hitcounter++;
 		if (evt.isPopupTrigger()) {
 			showPopup(evt);
@@ -1732,14 +2146,14 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 							if(isControlDown(evt)) {
 								selContacts.remove(clicked);
 							} else {
-								selContacts = new IntPairSet();
+								selContacts = new ContactSet();
 								selContacts.add(clicked);
 							}
 						} else {
 							// if clicked position is a contact but not
 							// selected, select it
 							if(!isControlDown(evt)) {
-								selContacts = new IntPairSet();
+								selContacts = new ContactSet();
 							}
 							selContacts.add(clicked);
 						}
@@ -1753,7 +2167,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 					if (isControlDown(evt)){
 						selContacts.addAll(tmpContacts);
 					} else{
-						selContacts = new IntPairSet();
+						selContacts = new ContactSet();
 						selContacts.addAll(tmpContacts);
 					}
 				}
@@ -1819,7 +2233,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 					if (isControlDown(evt)){
 						selContacts.addAll(tmpContacts);
 					} else{
-						selContacts = new IntPairSet();
+						selContacts = new ContactSet();
 						selContacts.addAll(tmpContacts);
 					}
 				}
@@ -1842,6 +2256,11 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		// Called whenever the user moves the mouse
 		// while a mouse button is held down.
 
+		if(lastMouseButtonPressed == MouseEvent.BUTTON2) {
+			pan(panPos.x - evt.getX(), panPos.y - evt.getY());
+			panPos = evt.getPoint();
+		}
+		evt = toMapCoordinates(evt);
 		if(lastMouseButtonPressed == MouseEvent.BUTTON1) {
 			dragging = true;
 			mouseDraggingPos = evt.getPoint();
@@ -1854,7 +2273,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				break;
 			}	
 		}
-		mouseMoved(evt); // TODO is this necessary? I tried getting rid of it
+		handleMouseMoved(evt); // TODO is this necessary? I tried getting rid of it
 		// but wasn't quite working
 	} 
 
@@ -1881,6 +2300,25 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	}
 
 	public void mouseMoved(MouseEvent evt) {
+		evt = toMapCoordinates(evt);
+		handleMouseMoved(evt);
+	}
+
+	/**
+	 * Zooms in (wheel rotated up) or out at the mouse position.
+	 */
+	public void mouseWheelMoved(MouseWheelEvent evt) {
+		if(evt.getWheelRotation() < 0) {
+			zoomIn(evt.getPoint());
+		} else {
+			zoomOut(evt.getPoint());
+		}
+	}
+
+	/**
+	 * Handles a mouse move with the position in map pixels.
+	 */
+	private void handleMouseMoved(MouseEvent evt) {
 		mousePos = evt.getPoint();
 		mouseCell = screen2cm(mousePos);
 		this.repaint();
@@ -1933,7 +2371,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	protected void selContactsChanged() {
 		if(view.getGUIState().getShowRealTimeContacts() && Start.isPyMolConnectionAvailable()) {
 			if(!this.hasSecondModel()) {
-				Start.getPyMolAdaptor().showCurrentSelection(mod, selContacts);
+				Start.getPyMolAdaptor().showCurrentSelection(mod, selContacts.toIntPairSet());
 			} else {
 				Start.getPyMolAdaptor().showCurrentSelections(mod, mod2, mapContactSetToSequence(mod.getLoadedGraphID(),selContacts), mapContactSetToSequence(mod2.getLoadedGraphID(),selContacts));
 			}
@@ -1954,7 +2392,8 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	public void componentResized(ComponentEvent evt) {
 		// TODO: do everything here that has to be performed only when resized
 		screenSize = new Dimension(getWidth(),getHeight());
-		setOutputSize(Math.min(screenSize.height, screenSize.width));
+		setOutputSize(Math.min(screenSize.height, screenSize.width) * zoom);
+		setViewOrigin(viewOrigin.x, viewOrigin.y);
 		updateScreenBuffer();
 		this.view.topRul.repaint();
 		this.view.leftRul.repaint();
@@ -1974,10 +2413,114 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * changed.
 	 */
 	public synchronized void updateScreenBuffer() {
+		staleLayers = EnumSet.allOf(Layer.class);
+		tileCache.clear();
+		renderScreenBuffer();
+	}
+
+	/**
+	 * Repaints the screen buffer after the shown maps have been changed or the
+	 * data of the given layers has changed, only redrawing the affected layers.
+	 */
+	private synchronized void updateLayers(Layer... changed) {
+		for (Layer layer:changed) {
+			staleLayers.add(layer);
+		}
+		if (!getChangedLayers().isEmpty()) {
+			tileCache.clear();
+		}
+		renderScreenBuffer();
+	}
+
+	/**
+	 * Returns the layers which have to be redrawn, because their data or the
+	 * maps shown in them have changed.
+	 */
+	private EnumSet<Layer> getChangedLayers() {
+		if (outputSize != layerOutputSize) {
+			return EnumSet.allOf(Layer.class);
+		}
+		EnumSet<Layer> changed = EnumSet.copyOf(staleLayers);
+		for (Layer layer:Layer.values()) {
+			List<Object> inputs = layerInputs.get(layer);
+			if (inputs == null || !inputs.equals(getLayerInputs(layer))) {
+				changed.add(layer);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns the parts of the gui state (as bit flags) and the colors a layer
+	 * depends on. Changes of the data shown and of the transfer function have to
+	 * be signalled with {@link #updateLayers(Layer...)}.
+	 */
+	private List<Object> getLayerInputs(Layer layer) {
+		GUIState state = view.getGUIState();
+		boolean compare = state.getCompareMode();
+		switch (layer) {
+		case TOP_BACKGROUND:
+			return Arrays.<Object>asList(getFlags(state.getShowDistanceMap(), state.getShowDensityMap(), state.getShowDeltaRankMap(),
+					state.getShowResidueScoringMap(), state.getShowNbhSizeMap(), compare && state.getShowDiffDistMap()),
+					state.getResidueScoringFunctionName(false));
+		case BOTTOM_BACKGROUND:
+			return Arrays.<Object>asList(getFlags(state.getShowBottomDistanceMap(), state.getShowBottomDensityMap(), state.getShowBottomDeltaRankMap(),
+					state.getShowBottomResidueScoringMap(), state.getShowBottomNbhSizeMap(), compare && state.getShowBottomDiffDistMap(),
+					state.getShowBottomTFFctMap() && view.tfDialog.isDisplayable()),
+					state.getResidueScoringFunctionName(true));
+		case CONTACTS:
+			return Arrays.<Object>asList(getFlags(compare, state.getShowCommon(), state.getShowFirst(), state.getShowSecond(),
+					state.getShowBackground(), state.getShowBottomBackground(),
+					Start.USE_EXPERIMENTAL_FEATURES && Start.SHOW_WEIGHTED_CONTACTS, Start.SHOW_WEIGHTS_IN_COLOR),
+					contactColor, commonContactsColor, uniqueToFirstContactsColor, uniqueToSecondContactsColor);
+		default:
+			return Arrays.<Object>asList(getFlags(compare, state.getShowBackground(), state.getShowBottomBackground()));
+		}
+	}
+
+	private static int getFlags(boolean... flags) {
+		int bits = 0;
+		for (int k = 0; k < flags.length; k++) {
+			if (flags[k]) bits |= 1 << k;
+		}
+		return bits;
+	}
+
+	/**
+	 * Renders the screen buffer unless zoomed in, keeping the tiles of the
+	 * zoomed map. Only the changed layers are redrawn.
+	 */
+	private synchronized void renderScreenBuffer() {
 
 		if(screenBuffer == null) {
 			screenBuffer = new ScreenBuffer(this);
 		}
+		if(zoom > 1) {
+			// only the visible tiles are rendered when painting
+			screenBufferStale = true;
+			updateStatusBar();
+			repaint();
+			return;
+		}
+		screenBufferStale = false;
+		EnumSet<Layer> changed = getChangedLayers();
+		for (Layer layer:changed) {
+			renderLayer(layer);
+			layerInputs.put(layer, getLayerInputs(layer));
+		}
+		layerOutputSize = outputSize;
+		staleLayers.clear();
+		if (!changed.isEmpty() || screenBuffer.getImage() == null) {
+			compositeLayers();
+		}
+		updateStatusBar();
+		repaint();
+	}
+
+	/**
+	 * Draws the layers on top of the background into the screen buffer.
+	 */
+	private void compositeLayers() {
 		screenBuffer.clear();
 		Graphics2D g2d = screenBuffer.getGraphics();
 
@@ -1996,7 +2539,85 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		if (isOpaque()) {
 			g2d.fillRect(0, 0, bgSizeX, bgSizeY);
 		}
+		for (Layer layer:Layer.values()) {
+			g2d.drawImage(layers.get(layer).getImage(), 0, 0, null);
+		}
+	}
+
+	/**
+	 * Redraws the given layer.
+	 */
+	private void renderLayer(Layer layer) {
+		ScreenBuffer buffer = layers.get(layer);
+		if (buffer == null) {
+			buffer = new ScreenBuffer(this, true);
+			layers.put(layer, buffer);
+		}
+		buffer.clear();
+
+		// the cells of the maps are written directly to the pixels of the buffer
+		raster.setImage(buffer.getImage());
+		raster.setOrigin(0, 0);
+		raster.setCellSize(contactMapSize, ratio, contactSquareSize);
+		renderBounds = new Rectangle(0, 0, outputSize, outputSize);
+		drawingToRaster = true;
+		try {
+			drawLayer(buffer.getGraphics(), layer);
+		} finally {
+			drawingToRaster = false;
+		}
+	}
+
+	/**
+	 * Updates the parts of the status bar and the delta rank bar depending on
+	 * the shown maps.
+	 */
+	private void updateStatusBar() {
+		if (view.getGUIState().getShowBottomDeltaRankMap() || view.getGUIState().getShowDeltaRankMap()) {
+			statusBar.setDeltaRank(ContactMapPane.Round((float)mod.getDeltaRankScore(),2));
+			statusBar.showDeltaRankGroup(true);
+			deltaRankBar.setSequence(mod.getSequence());
+			deltaRankBar.setVectors(mod.getDeltaRankVectors());
+			deltaRankBar.setProbabilities(mod.getDeltaRankProbabilities());
+			deltaRankBar.repaint();
+		}
+		statusBar.updateScoringFunctions();
+	}
+
+	/**
+	 * Draws all layers, i.e. the background maps and the contact map.
+	 */
+	private void drawMaps(Graphics2D g2d) {
+		for (Layer layer:Layer.values()) {
+			drawLayer(g2d, layer);
+		}
+	}
+
+	/**
+	 * Draws the maps of the given layer.
+	 */
+	private void drawLayer(Graphics2D g2d, Layer layer) {
+		switch (layer) {
+		case TOP_BACKGROUND:
+			drawTopBackground(g2d);
+			break;
+		case BOTTOM_BACKGROUND:
+			drawBottomBackground(g2d);
+			break;
+		case CONTACTS:
+			// draw contact map if necessary (single or comparison)
+			drawContactMap(g2d);
+			break;
+		case USER_COLORS:
+			drawUserContactColors(g2d);
+			break;
+		}
+	}
 
+	/**
+	 * Draws the background maps shown in the upper right half.
+	 */
+	private void drawTopBackground(Graphics2D g2d) {
 		// distance map
 		if (view.getGUIState().getShowDistanceMap()){
 			drawDistanceMap(g2d, false);
@@ -2025,7 +2646,12 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		if(view.getGUIState().getCompareMode() && view.getGUIState().getShowDiffDistMap()) {
 			drawDiffDistMap(g2d, false);
 		}
-		
+	}
+
+	/**
+	 * Draws the background maps shown in the lower left half.
+	 */
+	private void drawBottomBackground(Graphics2D g2d) {
 		// distance map
 		if (view.getGUIState().getShowBottomDistanceMap()){
 			drawDistanceMap(g2d, true);
@@ -2050,11 +2676,6 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			drawNbhSizeMap(g2d, true);
 		}
 
-		// draw difference distance map (in comparison mode)
-		if(view.getGUIState().getCompareMode() && view.getGUIState().getShowDiffDistMap()) {
-			drawDiffDistMap(g2d, false);
-		}
-		
 		// draw difference distance map (in comparison mode)
 		if(view.getGUIState().getCompareMode() && view.getGUIState().getShowBottomDiffDistMap()) {
 			drawDiffDistMap(g2d, true);
@@ -2064,21 +2685,6 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		if(view.getGUIState().getShowBottomTFFctMap() && view.tfDialog.isDisplayable()){
 			drawTFFctMap(g2d, true);
 		}
-		
-		// draw contact map if necessary (single or comparison)
-		//if(!view.getGUIState().getShowNbhSizeMap() && !view.getGUIState().getShowDistanceMap()) {
-			drawContactMap(g2d);			
-		//}
-		if (view.getGUIState().getShowBottomDeltaRankMap() || view.getGUIState().getShowDeltaRankMap()) {
-			statusBar.setDeltaRank(ContactMapPane.Round((float)mod.getDeltaRankScore(),2));
-			statusBar.showDeltaRankGroup(true);
-			deltaRankBar.setSequence(mod.getSequence());
-			deltaRankBar.setVectors(mod.getDeltaRankVectors());
-			deltaRankBar.setProbabilities(mod.getDeltaRankProbabilities());
-			deltaRankBar.repaint();
-		}
-		statusBar.updateScoringFunctions();
-		repaint();
 	}
 
 	/**
@@ -2089,7 +2695,10 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			public void run() {
 				registerThread(true);
 				//TODO indices in comNbhSizes matrix refer to sequence, while on screen we have alignment indices. This is fine for single mode, but needs to be changed if we allow com nbh sizes in compare mode				
-				comNbhSizes = mod.getAllCommonNbhSizes();
+				CommonNbhSizeMatrix newComNbhSizes = mod.getAllCommonNbhSizes();
+				synchronized (ContactMapPane.this) {
+					comNbhSizes = newComNbhSizes;
+				}
 				// updateScreenBuffer();
 				registerThread(false);
 			}
@@ -2104,7 +2713,11 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			public void run() {
 				registerThread(true);
 				//TODO indices in density matrix refer to sequence, while on screen we have alignment indices. This is fine for single model, but needs to be changed if we allow density map in compare mode
-				densityMatrix = mod.getDensityMatrix();
+				ContactDensityMap newDensityMap = mod.getDensityMap();
+				synchronized (ContactMapPane.this) {
+					densityMap = newDensityMap;
+					densityLod = null;
+				}
 				// updateScreenBuffer();
 				registerThread(false);
 			}
@@ -2119,6 +2732,9 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			public void run() {
 				registerThread(true);
 				mod.initDistMatrix();
+				synchronized (ContactMapPane.this) {
+					distanceLod = null;
+				}
 				// updateScreenBuffer();
 				registerThread(false);
 			}
@@ -2132,7 +2748,11 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		new Thread() {
 			public void run() {
 				registerThread(true);
-				diffDistMap = mod.getDiffDistMatrix(ali,mod2);
+				DistanceMatrix newDiffDistMap = mod.getDiffDistMatrix(ali,mod2);
+				synchronized (ContactMapPane.this) {
+					diffDistMap = newDiffDistMap;
+					diffDistLod = null;
+				}
 				// updateScreenBuffer();
 				registerThread(false);
 			}
@@ -2147,7 +2767,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				updateNbhSizeMapBg();
 //				System.out.println("Preloading...");
 //				view.statusBar.setText("Preloading density map...");
-//				densityMatrix = mod.getDensityMatrix();
+//				densityMap = mod.getDensityMap();
 //				view.statusBar.setText("Preloading nbh size map...");
 //				comNbhSizes = mod.getAllEdgeNbhSizes();
 //				view.statusBar.setText("Preloading distance map...");
@@ -2163,13 +2783,18 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 */
 	public synchronized void updateNbhSizeMap() {
 		comNbhSizes = mod.getAllCommonNbhSizes();
+		staleLayers.add(Layer.TOP_BACKGROUND);
+		staleLayers.add(Layer.BOTTOM_BACKGROUND);
 	}
 
 	/**
 	 * Triggers the density map to be updated
 	 */
 	public synchronized void updateDensityMap() {
-		densityMatrix = mod.getDensityMatrix();
+		densityMap = mod.getDensityMap();
+		densityLod = null;	// the density map may have been changed in place
+		staleLayers.add(Layer.TOP_BACKGROUND);
+		staleLayers.add(Layer.BOTTOM_BACKGROUND);
 	}
 	
 	/**
@@ -2178,6 +2803,9 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	
 	public synchronized void updateDeltaRankMap() {
 		deltaRankMatrix = mod.getDeltaRankMatrix();
+		deltaRankRange = null;	// the matrix may have been changed in place
+		staleLayers.add(Layer.TOP_BACKGROUND);
+		staleLayers.add(Layer.BOTTOM_BACKGROUND);
 	}
 	
 	
@@ -2186,7 +2814,10 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 */
 	public synchronized void updateDistanceMap() {
 		scaledDistCutoff = mod.initDistMatrix();
+		distanceLod = null;
 		// System.out.println("Scaled distance cutoff: " + scaledDistCutoff);
+		staleLayers.add(Layer.TOP_BACKGROUND);
+		staleLayers.add(Layer.BOTTOM_BACKGROUND);
 	}
 
 	/**
@@ -2194,6 +2825,8 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 */
 	public synchronized void updateDiffDistMap() {
 		diffDistMap = mod.getDiffDistMatrix(ali,mod2);
+		staleLayers.add(Layer.TOP_BACKGROUND);
+		staleLayers.add(Layer.BOTTOM_BACKGROUND);
 	}	
 
 	/**
@@ -2204,45 +2837,24 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		boolean doResetCursor = false;
 		
 		// reloading contacts of 1st structure (or single)
+		ContactSet oldContacts = this.allContacts;
 		this.allContacts = mapContactSetToAlignment(mod.getLoadedGraphID(),mod.getContacts());
+		this.contactWeights = null;
+		synchronized (this) {
+			contactLod = null;
+		}
 		
 		// reloading contacts of 2nd structure if it's present
 		// this is not used at the moment, since delete contacts is not 
 		// allowed in compare mode, but it's good to keep it here in case 
 		// we allow any modification of the second model in the future
 		if (this.hasSecondModel()) {
+			ContactSet oldSecondContacts = this.allSecondContacts;
 			this.allSecondContacts = mapContactSetToAlignment(mod2.getLoadedGraphID(),mod2.getContacts());
-			// resetting all other sets
-			commonContacts = new IntPairSet();
-			uniqueToFirstContacts = new IntPairSet();
-			uniqueToSecondContacts = new IntPairSet();
-			bothStrucContacts = new IntPairSet();
-			allButCommonContacts = new IntPairSet();
-
-			// now getting the 3 sets: common, uniqueToFirst, uniqueToSecond
-			for (Pair<Integer> cont2:allSecondContacts){
-				// contacts in second and also in first are common
-				if (allContacts.contains(cont2)) {
-					commonContacts.add(cont2);
-				}
-				// contacts in second and not in first are uniqueToSecond
-				else if(!allContacts.contains(cont2)){
-					uniqueToSecondContacts.add(cont2);
-				}
-			}
-			// contacts in first and not in second are uniqueToFirst
-			for (Pair<Integer> cont:allContacts){
-				if (!allSecondContacts.contains(cont)){
-					uniqueToFirstContacts.add(cont);
-				}
-			}
-			// bothStrucContacts = uniqueToFirst+uniqueToSecond+common
-			bothStrucContacts.addAll(uniqueToFirstContacts);
-			bothStrucContacts.addAll(uniqueToSecondContacts);
-			bothStrucContacts.addAll(commonContacts);
-			// allButCommon = uniqueToFirst+uniqueToSecond
-			allButCommonContacts.addAll(uniqueToFirstContacts);
-			allButCommonContacts.addAll(uniqueToSecondContacts);
+			this.secondContactWeights = null;
+			// updating the comparison for the changed contacts only
+			updateContactComparison(oldContacts, allContacts, false);
+			updateContactComparison(oldSecondContacts, allSecondContacts, true);
 		}
 		
 		// updating maps
@@ -2283,34 +2895,160 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			
 		} 
 
-		updateScreenBuffer();		// always repaint to show new contact map
+		// always repaint to show new contact map, only the tiles of the changed
+		// contacts are affected unless a map depending on the contacts is shown
+		GUIState state = view.getGUIState();
+		if(!hasSecondModel() && !state.getShowDensityMap() && !state.getShowBottomDensityMap()
+				&& !state.getShowNbhSizeMap() && !state.getShowBottomNbhSizeMap()
+				&& !state.getShowDeltaRankMap() && !state.getShowBottomDeltaRankMap()
+				&& !state.getShowResidueScoringMap() && !state.getShowBottomResidueScoringMap()
+				&& !state.getShowTFFctMap() && !state.getShowBottomTFFctMap()) {
+			invalidateTiles(oldContacts, allContacts);
+			invalidateTiles(allContacts, oldContacts);
+			staleLayers.add(Layer.CONTACTS);
+			staleLayers.add(Layer.USER_COLORS);
+			renderScreenBuffer();
+		} else {
+			updateScreenBuffer();
+		}
 		if(doResetCursor) {
 			getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 		}
 	}
 
+	/**
+	 * Removes the tiles of the zoomed map showing the contacts of the first set
+	 * which are not in the second one.
+	 */
+	private void invalidateTiles(ContactSet contacts, ContactSet others) {
+		int[] pairs = contacts.getPairs();
+		double cell = 1.0 / contactMapSize;
+		for (int k = 0; k < pairs.length; k += 2) {
+			int i = pairs[k];
+			int j = pairs[k+1];
+			if (others.contains(i, j)) continue;
+			// with a margin of one cell for rounding
+			tileCache.invalidate((j-2)*cell, (i-2)*cell, (j+1)*cell, (i+1)*cell);
+			tileCache.invalidate((i-2)*cell, (j-2)*cell, (i+1)*cell, (j+1)*cell);
+		}
+	}
+
 	/**
 	 * Print this ContactMapPane to the given graphics2D object using the given
-	 * width and height.
+	 * width and height. The whole map is printed, also if zoomed in.
 	 */
 	public void print(double width, double height, Graphics2D g2d) {
 		int printSize = (int) Math.min(width, height);
 		int oldSize = getOutputSize();				// save old size
+		int oldZoom = zoom;							// save zoom
+		Point oldViewOrigin = viewOrigin;
 		Border saveBorder = getBorder();			// save border
 		setBorder(null);							// set new border
+		zoom = 1;
+		viewOrigin = new Point();
 		setOutputSize(printSize);					// set new size
+		if (screenBufferStale) {
+			renderScreenBuffer();					// data changed while zoomed in
+		}
 		paintComponent(g2d);						// paint using new values
 		g2d.setColor(contactColor);					// TODO: is this ok?
 		g2d.drawRect(0, 0, printSize, printSize);	// paint rectangle
+		zoom = oldZoom;								// restore zoom
+		viewOrigin = oldViewOrigin;
 		setOutputSize(oldSize);						// restore size
 		setBorder(saveBorder);						// restore border
 		repaint();									// restore screen
 	}
 
+	/**
+	 * Returns the magnification of the map, 1 if the whole map is shown.
+	 */
+	public int getZoom() {
+		return zoom;
+	}
+
+	/**
+	 * Returns the map pixel shown at the upper left corner of this component.
+	 */
+	public Point getViewOrigin() {
+		return new Point(viewOrigin);
+	}
+
+	/**
+	 * Sets the magnification of the map (a power of 2 up to Start.MAX_ZOOM),
+	 * keeping the map pixel at the given point of this component in place.
+	 */
+	public synchronized void setZoom(int newZoom, Point anchor) {
+		newZoom = Math.max(1, Math.min(Start.MAX_ZOOM, newZoom));
+		if (newZoom == zoom) return;
+		int visibleSize = outputSize / zoom;
+		double scale = (double) newZoom / zoom;
+		int x = (int) Math.round((viewOrigin.x + anchor.x) * scale) - anchor.x;
+		int y = (int) Math.round((viewOrigin.y + anchor.y) * scale) - anchor.y;
+		zoom = newZoom;
+		setOutputSize(visibleSize * zoom);
+		setViewOrigin(x, y);
+		if (zoom == 1 && screenBufferStale) {
+			renderScreenBuffer();
+		}
+		mousePos = new Point((int) Math.round(mousePos.x * scale), (int) Math.round(mousePos.y * scale));
+		mouseCell = screen2cm(mousePos);
+		repaintRulers();
+		repaint();
+	}
+
+	/**
+	 * Doubles the magnification, keeping the given point in place.
+	 */
+	public void zoomIn(Point anchor) {
+		setZoom(zoom * 2, anchor);
+	}
+
+	/**
+	 * Halves the magnification, keeping the given point in place.
+	 */
+	public void zoomOut(Point anchor) {
+		setZoom(zoom / 2, anchor);
+	}
+
+	/**
+	 * Moves the visible part of the zoomed map by the given number of pixels.
+	 */
+	public synchronized void pan(int dx, int dy) {
+		setViewOrigin(viewOrigin.x + dx, viewOrigin.y + dy);
+		repaintRulers();
+		repaint();
+	}
+
+	/**
+	 * Sets the map pixel shown at the upper left corner, keeping the visible
+	 * part within the map.
+	 */
+	private void setViewOrigin(int x, int y) {
+		int maxOrigin = outputSize - outputSize / zoom;
+		viewOrigin = new Point(Math.max(0, Math.min(maxOrigin, x)), Math.max(0, Math.min(maxOrigin, y)));
+	}
+
+	private void repaintRulers() {
+		if (view.topRul != null) view.topRul.repaint();
+		if (view.leftRul != null) view.leftRul.repaint();
+	}
+
+	/**
+	 * Returns a copy of the given mouse event with its position translated from
+	 * this component to map pixels. The given event is left unchanged, as it is
+	 * passed on to the other listeners.
+	 */
+	private MouseEvent toMapCoordinates(MouseEvent evt) {
+		return new MouseEvent(evt.getComponent(), evt.getID(), evt.getWhen(), evt.getModifiersEx(),
+				evt.getX() + viewOrigin.x, evt.getY() + viewOrigin.y, evt.getXOnScreen(), evt.getYOnScreen(),
+				evt.getClickCount(), evt.isPopupTrigger(), evt.getButton());
+	}
+
 	/** Called by view to reset the user defined contact colors */
 	public void resetUserContactColors() {
 		userContactColors = new Hashtable<Pair<Integer>, Color>();
-		updateScreenBuffer();
+		updateLayers(Layer.USER_COLORS);
 	}
 
 	/** Called by ResidueRuler to enable display of ruler coordinates */
@@ -2355,13 +3093,13 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		for(Pair<Integer> cont:selContacts) {
 			userContactColors.put(cont, paintingColor);
 		}
-		updateScreenBuffer();
+		updateLayers(Layer.USER_COLORS);
 		this.repaint();
 	}
 
 	/** Called by view to select all contacts */
 	public void selectAllContacts() {
-		selContacts = new IntPairSet();
+		selContacts = new ContactSet();
 
 		selContacts.addAll(getCurrentContactSet());
 
@@ -2372,7 +3110,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	/** Called by view to select all helix-helix contacts */
 	public void selectHelixHelix() {
-		selContacts = new IntPairSet();
+		selContacts = new ContactSet();
 		for(Pair<Integer> e:allContacts) {
 			SecStrucElement ss1 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getFirst()));
 			SecStrucElement ss2 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getSecond()));
@@ -2387,7 +3125,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	/** Called by view to select all strand-strand contacts */
 	public void selectBetaBeta() {
-		selContacts = new IntPairSet();
+		selContacts = new ContactSet();
 		for(Pair<Integer> e:allContacts) {
 			SecStrucElement ss1 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getFirst()));
 			SecStrucElement ss2 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getSecond()));
@@ -2402,7 +3140,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	/** Called by view to select all contacts between secondary structure elements */
 	public void selectInterSsContacts() {
-		selContacts = new IntPairSet();
+		selContacts = new ContactSet();
 		for(Pair<Integer> e:allContacts) {
 			SecStrucElement ss1 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getFirst()));
 			SecStrucElement ss2 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getSecond()));
@@ -2417,7 +3155,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	/** Called by view to select all contacts within secondary structure elements */
 	public void selectIntraSsContacts() {
-		selContacts = new IntPairSet();
+		selContacts = new ContactSet();
 		for(Pair<Integer> e:allContacts) {
 			SecStrucElement ss1 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getFirst()));
 			SecStrucElement ss2 = mod.getSecondaryStructure().getSecStrucElement(mapAl2Seq(mod.getLoadedGraphID(),e.getSecond()));
@@ -2443,7 +3181,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		if(!Interval.isValidSelectionString(selStr)) return -1;
 		TreeSet<Integer> nodeSet1 = Interval.parseSelectionString(selStr);
 		TreeSet<Integer> nodeSet2 = Interval.parseSelectionString(selStr);
-		selContacts = new IntPairSet();
+		selContacts = new ContactSet();
 		for(Pair<Integer> e:allContacts) { 
 			if(nodeSet1.contains(mapAl2Seq(mod.getLoadedGraphID(),e.getFirst())) && nodeSet2.contains(mapAl2Seq(mod.getLoadedGraphID(),e.getSecond()))) {
 				selContacts.add(e);
@@ -2522,7 +3260,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		if (state == false) { //we are hiding a set of contacts: we reset selection 
 			this.resetSelections();
 		}
-		this.updateScreenBuffer(); // takes care of redrawing contact map
+		updateLayers(); // takes care of redrawing contact map
 	}
 	
 	/**
@@ -2536,14 +3274,14 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				} else {
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.WAIT_CURSOR));
 					updateNbhSizeMap();
-					updateScreenBuffer();		// will repaint
+					updateLayers();		// will repaint
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 				}
 			} else {
-				updateScreenBuffer();
+				updateLayers();
 			}
 		} else {
-			updateScreenBuffer();			// will repaint
+			updateLayers();			// will repaint
 		}
 	}	
 
@@ -2552,21 +3290,21 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 */
 	protected void toggleDensityMap(boolean state) {
 		if(state) {
-			if(densityMatrix == null) {
+			if(densityMap == null) {
 				if(BACKGROUND_LOADING) {
 					updateDensityMapBg();		// will update screen buffer
 					// when done
 				} else {
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.WAIT_CURSOR));
 					updateDensityMap();
-					updateScreenBuffer();		// will repaint
+					updateLayers();		// will repaint
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 				}
 			} else {
-				updateScreenBuffer();
+				updateLayers();
 			}
 		} else {
-			updateScreenBuffer();			// will repaint
+			updateLayers();			// will repaint
 		}
 	}
 
@@ -2574,10 +3312,10 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		if(state) {
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.WAIT_CURSOR));
 					updateDeltaRankMap();
-					updateScreenBuffer();		// will repaint
+					updateLayers();		// will repaint
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 		} else {
-			updateScreenBuffer();			// will repaint
+			updateLayers();			// will repaint
 		}
 		
 	}
@@ -2596,14 +3334,14 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				} else {
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.WAIT_CURSOR));			
 					updateDistanceMap();
-					updateScreenBuffer();		// will repaint
+					updateLayers();		// will repaint
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 				}
 			} else {
-				updateScreenBuffer();			// will repaint
+				updateLayers();			// will repaint
 			}
 		} else {
-			updateScreenBuffer();
+			updateLayers();
 		}
 	}		
 
@@ -2618,14 +3356,14 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				} else {
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.WAIT_CURSOR));
 					updateDiffDistMap();
-					updateScreenBuffer();		// will repaint
+					updateLayers();		// will repaint
 					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 				}
 			} else {
-				updateScreenBuffer();
+				updateLayers();
 			}
 		} else {
-			updateScreenBuffer();			// will repaint
+			updateLayers();			// will repaint
 		}
 	}
 	
@@ -2639,11 +3377,11 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			String[] inputValTypes = tfBar.getInputValTypes();			
 			if (inputValTypes[inputValTypes.length-1] == View.BgOverlayType.DELTA_RANK.label)
 				updateDeltaRankMap();
-			if (mod.getDistMatrix()==null || densityMatrix==null || comNbhSizes==null) {
+			if (mod.getDistMatrix()==null || densityMap==null || comNbhSizes==null) {
 				if(BACKGROUND_LOADING) {
 					if (mod.getDistMatrix()==null)
 						updateDistanceMapBg();		// will update screen buffer
-					if (densityMatrix==null)
+					if (densityMap==null)
 						updateDensityMapBg();		// will update screen buffer
 					if (comNbhSizes==null)
 						updateNbhSizeMapBg();
@@ -2651,24 +3389,20 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 //					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.WAIT_CURSOR));
 					if (mod.getDistMatrix()==null)
 						updateDistanceMap();		
-					if (densityMatrix==null)
+					if (densityMap==null)
 						updateDensityMap();		
 					if (comNbhSizes==null)
 						updateNbhSizeMap();
-					updateScreenBuffer();		// will repaint
+					updateLayers(Layer.BOTTOM_BACKGROUND);		// will repaint
 //					getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 				}
 			} else {
-				updateScreenBuffer();
+				// the transfer function may have changed, which the layer inputs don't cover
+				updateLayers(Layer.BOTTOM_BACKGROUND);
 			}
 			getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 		} else {
-			updateScreenBuffer();			// will repaint
-		}
-
-		if(state) {
-		} else {
-			updateScreenBuffer();			// will repaint
+			updateLayers(Layer.BOTTOM_BACKGROUND);			// will repaint
 		}
 	}
 
@@ -2677,7 +3411,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	}
 
 	private void markDensityMapAsDirty() {
-		densityMatrix = null;
+		densityMap = null;
 	}
 
 //	/**
@@ -2698,12 +3432,12 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * Update tmpContact with the contacts contained in the rectangle given by
 	 * the upperLeft and lowerRight.
 	 */
-	private void squareSelect(IntPairSet contacts){
+	private void squareSelect(ContactSet contacts){
 		Pair<Integer> upperLeft = screen2cm(mousePressedPos);
 		Pair<Integer> lowerRight = screen2cm(mouseDraggingPos);
 		// we reset the tmpContacts list so every new mouse selection starts
 		// from a blank list
-		tmpContacts = new IntPairSet();
+		tmpContacts = new ContactSet();
 
 		int imin = Math.min(upperLeft.getFirst(),lowerRight.getFirst());
 		int jmin = Math.min(upperLeft.getSecond(),lowerRight.getSecond());
@@ -2712,9 +3446,12 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		// we loop over all contacts so time is o(number of contacts) instead of
 		// looping over the square (o(n2) being n size of square)
 
-		for (Pair<Integer> cont:contacts){
-			if (cont.getFirst()<=imax && cont.getFirst()>=imin && cont.getSecond()<=jmax && cont.getSecond()>=jmin){
-				tmpContacts.add(cont);
+		int[] pairs = contacts.getPairs();
+		for (int k = 0; k < pairs.length; k += 2){
+			int i = pairs[k];
+			int j = pairs[k+1];
+			if (i<=imax && i>=imin && j<=jmax && j>=jmin){
+				tmpContacts.add(i,j);
 			}
 		}
 	}
@@ -2723,19 +3460,21 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * Update tmpContacts with the contacts contained in the range selection
 	 * (selection by diagonals)
 	 */
-	private void rangeSelect(IntPairSet contacts){
+	private void rangeSelect(ContactSet contacts){
 		Pair<Integer> startContact = screen2cm(mousePressedPos);
 		Pair<Integer> endContact = screen2cm(mouseDraggingPos);
 		// we reset the tmpContacts list so every new mouse selection starts
 		// from a blank list
-		tmpContacts = new IntPairSet();
+		tmpContacts = new ContactSet();
 		int rangeMin = Math.min(getRange(startContact), getRange(endContact));
 		int rangeMax = Math.max(getRange(startContact), getRange(endContact));
 		// we loop over all contacts so time is o(number of contacts) instead of
 		// looping over the square (o(n2) being n size of square)
-		for (Pair<Integer> cont:contacts){
-			if (getRange(cont)<=rangeMax && getRange(cont)>=rangeMin){
-				tmpContacts.add(cont);
+		int[] pairs = contacts.getPairs();
+		for (int k = 0; k < pairs.length; k += 2){
+			int range = getRange(pairs[k],pairs[k+1]);
+			if (range<=rangeMax && range>=rangeMin){
+				tmpContacts.add(pairs[k],pairs[k+1]);
 			}
 		}
 	}
@@ -2749,7 +3488,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 *            tmpContacts first and then copy to selContacts (if we want
 	 *            this behaviour)
 	 */
-	private void fillSelect(IntPairSet contacts, Pair<Integer> cont){
+	private void fillSelect(ContactSet contacts, Pair<Integer> cont){
 		int i = cont.getFirst();
 		int j = cont.getSecond();
 		if ((i < 1) || (j < 1) || (i > contactMapSize) || (j > contactMapSize)) {
@@ -2803,24 +3542,24 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 *   showCommon, showFirst, showSecond
 	 * @return
 	 */
-	private IntPairSet getCurrentContactSet() {
+	private ContactSet getCurrentContactSet() {
 		// pairwise comparison mode
 		if (this.hasSecondModel()){
 			// 1) common=0, first=0, second=1
 			if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == true){
-				return uniqueToSecondContacts;
+				return contactComparison.getOnlySecondContacts();
 			}
 			// 2) common=0, first=1, second=0
 			else if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == false){
-				return uniqueToFirstContacts;
+				return contactComparison.getOnlyFirstContacts();
 			}
 			// 3) common=0, first=1, second=1
 			else if (view.getGUIState().getShowCommon() == false && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == true){
-				return allButCommonContacts;
+				return contactComparison.getAllButCommonContacts();
 			}
 			// 4) common=1, first=0, second=0
 			else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == false){
-				return commonContacts;
+				return contactComparison.getCommonContacts();
 			}
 			// 5) common=1, first=0, second=1
 			else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == false && view.getGUIState().getShowSecond() == true){
@@ -2832,9 +3571,9 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			}
 			// 7) common=1, first=1, second=1
 			else if (view.getGUIState().getShowCommon() == true && view.getGUIState().getShowFirst() == true && view.getGUIState().getShowSecond() == true){
-				return bothStrucContacts;
+				return contactComparison.getBothContacts();
 			}
-			return new IntPairSet(); // in case common=0, first=0, second=0, we return an empty set
+			return new ContactSet(); // in case common=0, first=0, second=0, we return an empty set
 		// single contact map mode
 		} else {
 			return allContacts;
@@ -2861,7 +3600,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 
 	/** Resets the current contact selection */
 	protected void resetContactSelection() {
-		this.selContacts = new IntPairSet();
+		this.selContacts = new ContactSet();
 		selContactsChanged();
 	}
 	
@@ -2963,9 +3702,19 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		return outputSize;
 	}
 
-	/** Return the selContacts variable */
+	/** Return a copy of the selContacts variable */
 	public IntPairSet getSelContacts(){
-		return selContacts;
+		return selContacts.toIntPairSet();
+	}
+
+	/** Returns whether any contacts are selected, without copying the selection */
+	public boolean hasSelectedContacts() {
+		return !selContacts.isEmpty();
+	}
+
+	/** Returns the number of selected contacts, without copying the selection */
+	public int getSelContactsCount() {
+		return selContacts.size();
 	}
 
 	/**
@@ -3006,14 +3755,14 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		int pos1,pos2;
 
 		for (Pair<Integer> cont : selContacts) {
-			if (commonContacts.contains(cont)) {
+			if (contactComparison.isCommon(cont.getFirst(), cont.getSecond())) {
 				common[FIRST].add(new Pair<Integer>(mapAl2Seq(mod.getLoadedGraphID(),cont.getFirst()), 
 						mapAl2Seq(mod.getLoadedGraphID(), cont.getSecond())));
 				common[SECOND].add(new Pair<Integer>(mapAl2Seq(mod2.getLoadedGraphID(),cont.getFirst()),
 						mapAl2Seq(mod2.getLoadedGraphID(), cont.getSecond())));
 			}
 
-			else if (uniqueToFirstContacts.contains(cont)) {
+			else if (contactComparison.isOnlyFirst(cont.getFirst(), cont.getSecond())) {
 
 				firstOnly[FIRST].add(new Pair<Integer>(mapAl2Seq(mod.getLoadedGraphID(),cont.getFirst()),
 						mapAl2Seq(mod.getLoadedGraphID(), cont.getSecond())));
@@ -3026,7 +3775,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 				}
 			}
 
-			else if (uniqueToSecondContacts.contains(cont)) {
+			else if (contactComparison.isOnlySecond(cont.getFirst(), cont.getSecond())) {
 				secondOnly[SECOND].add(new Pair<Integer>(mapAl2Seq(mod2.getLoadedGraphID(),cont.getFirst()),
 						mapAl2Seq(mod2.getLoadedGraphID(), cont.getSecond())));
 
@@ -3068,7 +3817,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param positions  contains the alignment columns incident to the 
 	 *  contacts in <code>contacts</code>
 	 */
-	public void getAlignmentColumnsFromContacts(IntPairSet contacts, TreeSet<Integer> positions) {
+	public void getAlignmentColumnsFromContacts(Iterable<Pair<Integer>> contacts, TreeSet<Integer> positions) {
 		for( Pair<Integer> cont : contacts ) {
 			positions.add(cont.getFirst());
 			positions.add(cont.getSecond());
@@ -3102,7 +3851,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 			threadCounter--;
 			if(threadCounter == 0) {
 				// no more threads running
-				updateScreenBuffer();
+				updateLayers(Layer.TOP_BACKGROUND, Layer.BOTTOM_BACKGROUND);
 				getTopLevelAncestor().setCursor(java.awt.Cursor.getPredefinedCursor(java.awt.Cursor.DEFAULT_CURSOR));
 			}
 		}
@@ -3128,7 +3877,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	}
 
 	/** Given a number between zero and one, returns a color from a gradient. */
-	private Color colorMapRedBlue(double val) {
+	static Color colorMapRedBlue(double val) {
 		// TODO: Move this and the following to a class ColorGradient
 		if(val == 0) {
 			return Color.white;
@@ -3151,7 +3900,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param middle the value around which colors are green
 	 * @return the Color for the given value
 	 */
-	private Color colorMapScaledHeatmap(double val, double middle) {
+	static Color colorMapScaledHeatmap(double val, double middle) {
 		if(val <= middle) {
 			val = val * 0.5/middle;
 		} else {
@@ -3174,7 +3923,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @param val the value for which a color is returned
 	 * @return the Color for the given value
 	 */
-	private Color colorMapHeatmap(double val) {
+	static Color colorMapHeatmap(double val) {
 		// matlab-style color map
 		double bc = 6/8f;
 		double gc = 4/8f;
@@ -3198,7 +3947,7 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 		}if(view.sphereP != null) {
 			view.sphereP.setText(String.format(View.LABEL_SHOW_SPHERES_POPUP_3D,mapAl2Seq(mod.getLoadedGraphID(),rightClickCont.getFirst()),mapAl2Seq(mod.getLoadedGraphID(),rightClickCont.getSecond())));
 		}
-		view.popup.show(e.getComponent(), e.getX(), e.getY());
+		view.popup.show(e.getComponent(), e.getX() - viewOrigin.x, e.getY() - viewOrigin.y);
 	}
 
 	/**
@@ -3262,19 +4011,35 @@ implements MouseListener, MouseMotionListener, ComponentListener {
 	 * @return the set of common contacts corresponding, null if there's no 
 	 * second model 
 	 */
-	public IntPairSet getCommonContacts() {
+	public ContactSet getCommonContacts() {
 		if(this.hasSecondModel()) {
-			return commonContacts;
+			return contactComparison.getCommonContacts();
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the comparison of the contacts of the two models (with counts of
+	 * common and unique contacts), null if not in compare mode.
+	 */
+	public ContactComparison getContactComparison() {
+		if(this.hasSecondModel()) {
+			return contactComparison;
 		} else {
 			return null;
 		}
 	}
 
 	private int getRange(Pair<Integer> cont) {
+		return getRange(cont.getFirst(), cont.getSecond());
+	}
+
+	private int getRange(int i, int j) {
 		if (mod.isDirected()) {
-			return Math.abs(cont.getFirst()-cont.getSecond());
+			return Math.abs(i-j);
 		} else {
-			return (cont.getSecond()-cont.getFirst());
+			return (j-i);
 		}
 	}
 	
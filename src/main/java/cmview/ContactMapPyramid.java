@@ -0,0 +1,267 @@
+package cmview;
+
+import java.util.ArrayList;
+
+import cmview.datasources.ContactDensityMap;
+import cmview.datasources.ContactSet;
+import cmview.datasources.DistanceMatrix;
+
+/**
+ * A multi-resolution pyramid of the values of a contact map or background
+ * overlay, for drawing maps with more residues than pixels. Level L aggregates
+ * blocks of 2^L x 2^L cells (maximum, mean of the defined cells or count).
+ * Levels are built lazily from the next finer level already built or from the
+ * source and then kept, so that drawing a map at a given output size takes time
+ * proportional to the number of pixels rather than to the number of cells.
+ * <p>
+ * Contacts are counted over the whole matrix, overlay values are taken from the
+ * upper triangle (including the diagonal).
+ */
+public class ContactMapPyramid {
+
+	/*------------------------------ constants ------------------------------*/
+	public enum Aggregation {MAX, MEAN, COUNT};
+
+	/*--------------------------- member variables --------------------------*/
+	private final int matrixSize;
+	private final Aggregation aggregation;
+	private final Object source;				// the contact set or matrix the values are taken from
+	private final Values values;				// null for contacts
+	private final int[] pairs;					// the contacts, null for overlays
+	private ArrayList<Level> levels = new ArrayList<Level>();	// by level, null if not built yet
+
+	/*----------------------------- constructors ----------------------------*/
+
+	private ContactMapPyramid(int matrixSize, Aggregation aggregation, Object source, Values values, int[] pairs) {
+		this.matrixSize = matrixSize;
+		this.aggregation = aggregation;
+		this.source = source;
+		this.values = values;
+		this.pairs = pairs;
+	}
+
+	/*---------------------------- static methods ---------------------------*/
+
+	/**
+	 * Returns a pyramid counting the given contacts. The contacts are copied, so
+	 * later changes to the set are not reflected.
+	 */
+	public static ContactMapPyramid forContacts(ContactSet contacts, int matrixSize) {
+		return new ContactMapPyramid(matrixSize, Aggregation.COUNT, contacts, null, contacts.getPairs());
+	}
+
+	/**
+	 * Returns a pyramid averaging the defined cells of the given distance matrix.
+	 */
+	public static ContactMapPyramid forMatrix(final DistanceMatrix matrix) {
+		return new ContactMapPyramid(matrix.getSize(), Aggregation.MEAN, matrix, new Values() {
+			public float get(int i, int j) {
+				return matrix.get(i, j);
+			}
+		}, null);
+	}
+
+	/**
+	 * Returns a pyramid averaging the given density map.
+	 */
+	public static ContactMapPyramid forDensityMap(final ContactDensityMap densityMap) {
+		return new ContactMapPyramid(densityMap.getSize(), Aggregation.MEAN, densityMap, new Values() {
+			public float get(int i, int j) {
+				return (float) densityMap.getDensity(i, j);
+			}
+		}, null);
+	}
+
+	/**
+	 * Returns the level whose blocks cover at most one pixel at the given size of
+	 * a cell in pixels, 0 if cells are at least half a pixel large.
+	 */
+	public static int getLevel(double ratio) {
+		int level = 0;
+		while(ratio * (2 << level) <= 1) {
+			level++;
+		}
+		return level;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the contact set or matrix this pyramid was built from */
+	public Object getSource() {
+		return source;
+	}
+
+	/**
+	 * Aggregates the level matching the given cell size to the pixels of a square
+	 * window of the map, such that each pixel gets the value of all cells drawn on
+	 * it. If cells are at least half a pixel large the cells are aggregated
+	 * directly, without building a level.
+	 * @param ratio the size of a cell in pixels
+	 * @param x0 the first pixel column of the window
+	 * @param y0 the first pixel row of the window
+	 * @param size the width and height of the window in pixels
+	 * @return the value of each pixel of the window row by row, NaN for pixels
+	 * without defined cells and 0 for pixels without contacts
+	 */
+	public synchronized float[] getPixels(double ratio, int x0, int y0, int size) {
+		int level = getLevel(ratio);
+		Level image = new Level(size);
+		if(level == 0) {
+			readSource(image, getPixelIndex(matrixSize, 0, ratio, y0, size), getPixelIndex(matrixSize, 0, ratio, x0, size));
+		} else {
+			Level lod = getLevelData(level);
+			aggregate(lod, image, getPixelIndex(lod.blocks, level, ratio, y0, size), getPixelIndex(lod.blocks, level, ratio, x0, size));
+		}
+		if(aggregation != Aggregation.COUNT) {
+			for(int k = 0; k < image.value.length; k++) {
+				if(image.weight[k] == 0) image.value[k] = Float.NaN;
+			}
+		}
+		return image.value;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Returns the given level (at least 1), building it if necessary.
+	 */
+	private Level getLevelData(int level) {
+		while(levels.size() <= level) {
+			levels.add(null);
+		}
+		if(levels.get(level) == null) {
+			// build from the closest finer level already built, or from the source
+			int finer = level - 1;
+			while(finer > 0 && levels.get(finer) == null) {
+				finer--;
+			}
+			Level lod = new Level(((matrixSize - 1) >> level) + 1);
+			if(finer > 0) {
+				Level finerLod = levels.get(finer);
+				int[] block = new int[finerLod.blocks];
+				for(int b = 0; b < block.length; b++) {
+					block[b] = b >> (level - finer);
+				}
+				aggregate(finerLod, lod, block, block);
+			} else {
+				int[] block = new int[matrixSize];
+				for(int k = 0; k < matrixSize; k++) {
+					block[k] = k >> level;
+				}
+				readSource(lod, block, block);
+			}
+			levels.set(level, lod);
+		}
+		return levels.get(level);
+	}
+
+	/**
+	 * Returns the pixel row or column within the given window of each block of
+	 * the given level, -1 for blocks outside of the window.
+	 */
+	private static int[] getPixelIndex(int blocks, int level, double ratio, int origin, int size) {
+		int[] index = new int[blocks];
+		for(int b = 0; b < blocks; b++) {
+			int p = (int) Math.round((b << level) * ratio) - origin;
+			index[b] = (p < 0 || p >= size) ? -1 : p;
+		}
+		return index;
+	}
+
+	/**
+	 * Adds the cells of the source to the given target, where the cell of
+	 * residue serials i,j is in row rowIndex[i-1] and column colIndex[j-1] of
+	 * the target, if both are not -1.
+	 */
+	private void readSource(Level target, int[] rowIndex, int[] colIndex) {
+		if(pairs != null) {
+			for(int k = 0; k < pairs.length; k += 2) {
+				int row = rowIndex[pairs[k]-1];
+				int col = colIndex[pairs[k+1]-1];
+				if(row < 0 || col < 0) continue;
+				target.add(row * target.blocks + col, 1, 1, aggregation);
+			}
+		} else {
+			// the indices are monotonic, so the cells in the target form a square
+			int iBeg = first(rowIndex), iEnd = last(rowIndex);
+			int jBeg = first(colIndex), jEnd = last(colIndex);
+			for(int i = iBeg + 1; i <= iEnd + 1; i++) {
+				int offset = rowIndex[i-1] * target.blocks;
+				for(int j = Math.max(i, jBeg + 1); j <= jEnd + 1; j++) {
+					float value = values.get(i, j);
+					if(Float.isNaN(value)) continue;
+					target.add(offset + colIndex[j-1], value, 1, aggregation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the blocks of the given level to the given target, where block bi,bj
+	 * is in row rowIndex[bi] and column colIndex[bj] of the target, if both are
+	 * not -1.
+	 */
+	private void aggregate(Level lod, Level target, int[] rowIndex, int[] colIndex) {
+		int jBeg = first(colIndex), jEnd = last(colIndex);
+		for(int bi = first(rowIndex); bi <= last(rowIndex); bi++) {
+			int offset = rowIndex[bi] * target.blocks;
+			for(int bj = jBeg; bj <= jEnd; bj++) {
+				int k = bi * lod.blocks + bj;
+				if(lod.weight[k] == 0) continue;
+				target.add(offset + colIndex[bj], lod.value[k], lod.weight[k], aggregation);
+			}
+		}
+	}
+
+	/** Returns the first index which is not -1, the length if there is none */
+	private static int first(int[] index) {
+		int k = 0;
+		while(k < index.length && index[k] < 0) k++;
+		return k;
+	}
+
+	/** Returns the last index which is not -1, -1 if there is none */
+	private static int last(int[] index) {
+		int k = index.length - 1;
+		while(k >= 0 && index[k] < 0) k--;
+		return k;
+	}
+
+	/*---------------------------- nested classes --------------------------*/
+
+	/**
+	 * The value of cell (i,j) of an overlay, NaN if undefined.
+	 */
+	private interface Values {
+		public float get(int i, int j);
+	}
+
+	/**
+	 * The aggregated values of one level (or of the pixels of an image), row by
+	 * row. The weight of a block is the number of defined cells in it.
+	 */
+	private static class Level {
+		int blocks;			// number of blocks per row
+		float[] value;
+		int[] weight;
+
+		Level(int blocks) {
+			this.blocks = blocks;
+			this.value = new float[blocks * blocks];
+			this.weight = new int[blocks * blocks];
+		}
+
+		void add(int k, float v, int w, Aggregation aggregation) {
+			if(weight[k] == 0) {
+				value[k] = v;
+			} else if(aggregation == Aggregation.COUNT) {
+				value[k] += v;
+			} else if(aggregation == Aggregation.MAX) {
+				value[k] = Math.max(value[k], v);
+			} else {
+				value[k] += (v - value[k]) * w / (weight[k] + w);
+			}
+			weight[k] += w;
+		}
+	}
+}
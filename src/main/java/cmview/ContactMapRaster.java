@@ -0,0 +1,187 @@
+package cmview;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Writes the cells of a contact map straight into the pixel array of an
+ * image of type TYPE_INT_RGB or TYPE_INT_ARGB, instead of drawing a rectangle
+ * per cell through Graphics2D. A cell covers the same pixels as
+ * drawRect+fillRect of the contact square size at the rounded cell position.
+ * The pixel span of every cell is precomputed once per output size. The image
+ * may show only part of the map, starting at a given origin (e.g. a tile of a
+ * zoomed map).
+ */
+public class ContactMapRaster {
+
+	/*--------------------------- member variables --------------------------*/
+	private int[] pixels;				// the pixels of the image, row by row
+	private int width;
+	private int height;
+	private boolean hasAlpha;			// whether the image has an alpha channel, see blend
+	private int originX;				// the map pixel shown at the upper left corner of the image
+	private int originY;
+
+	private int matrixSize = -1;		// the size the spans were computed for
+	private double ratio = -1;
+	private int contactSquareSize = -1;
+	private int[] cellStart;			// first pixel of the cell of each residue index - 1
+	private int cellSpan;				// number of pixels covered by a cell
+	private int smallOffset;			// offset and number of pixels of a small cell
+	private int smallSpan;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a raster without image, see {@link #setImage(BufferedImage)}.
+	 */
+	public ContactMapRaster() {
+	}
+
+	/**
+	 * Creates a raster writing into the given image.
+	 * @throws IllegalArgumentException if the image is not of type TYPE_INT_RGB or TYPE_INT_ARGB
+	 */
+	public ContactMapRaster(BufferedImage image) {
+		setImage(image);
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Sets the image to write into. Note that Java2D stops caching an image in
+	 * video memory once its pixel array has been accessed.
+	 * @throws IllegalArgumentException if the image is not of type TYPE_INT_RGB or TYPE_INT_ARGB
+	 */
+	public void setImage(BufferedImage image) {
+		if(image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_INT_ARGB) {
+			throw new IllegalArgumentException("Image type " + image.getType() + " is not supported");
+		}
+		this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.hasAlpha = image.getType() == BufferedImage.TYPE_INT_ARGB;
+	}
+
+	/**
+	 * Sets the pixel of the map shown at the upper left corner of the image.
+	 */
+	public void setOrigin(int x, int y) {
+		this.originX = x;
+		this.originY = y;
+	}
+
+	/**
+	 * Sets the cell geometry, recomputing the pixel spans of the cells only if
+	 * it changed.
+	 * @param matrixSize the number of residues (cells per row)
+	 * @param ratio the size of a cell in pixels
+	 * @param contactSquareSize the size of the square drawn for a cell
+	 */
+	public void setCellSize(int matrixSize, double ratio, int contactSquareSize) {
+		if(matrixSize == this.matrixSize && ratio == this.ratio && contactSquareSize == this.contactSquareSize) {
+			return;
+		}
+		this.matrixSize = matrixSize;
+		this.ratio = ratio;
+		this.contactSquareSize = contactSquareSize;
+		cellStart = new int[matrixSize];
+		for(int k = 0; k < matrixSize; k++) {
+			cellStart[k] = (int) Math.round(k*ratio);
+		}
+		cellSpan = contactSquareSize + 1;
+		smallOffset = 1 + contactSquareSize/3;
+		smallSpan = contactSquareSize/3 + 1;
+	}
+
+	/**
+	 * Fills the whole image with the given color.
+	 */
+	public void fill(int rgb) {
+		Arrays.fill(pixels, 0, width*height, rgb);
+	}
+
+	/**
+	 * Fills the cell in the given row and column (both starting at 1) with the
+	 * given color, blending it with the current pixels if it is translucent. A
+	 * small cell is a square of a third of the size in the middle of the cell.
+	 * @param argb the color as returned by Color.getRGB()
+	 */
+	public void fillCell(int row, int col, int argb, boolean small) {
+		int alpha = argb >>> 24;
+		if(alpha == 0) return;
+		int x = cellStart[col-1] - originX;
+		int y = cellStart[row-1] - originY;
+		int span = cellSpan;
+		if(small) {
+			x += smallOffset;
+			y += smallOffset;
+			span = smallSpan;
+		}
+		int xEnd = Math.min(x + span, width);
+		int yEnd = Math.min(y + span, height);
+		x = Math.max(x, 0);
+		y = Math.max(y, 0);
+		if(x >= xEnd || y >= yEnd) return;
+		if(alpha == 255) {
+			for(int py = y; py < yEnd; py++) {
+				int offset = py*width;
+				Arrays.fill(pixels, offset + x, offset + xEnd, argb);
+			}
+		} else {
+			for(int py = y; py < yEnd; py++) {
+				int offset = py*width;
+				for(int px = offset + x; px < offset + xEnd; px++) {
+					pixels[px] = blend(pixels[px], argb, alpha, hasAlpha);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills a single pixel of the map with the given color, blending it with the
+	 * current pixel if it is translucent.
+	 * @param argb the color as returned by Color.getRGB()
+	 */
+	public void fillPixel(int row, int col, int argb) {
+		int alpha = argb >>> 24;
+		row -= originY;
+		col -= originX;
+		if(alpha == 0 || row < 0 || col < 0 || row >= height || col >= width) return;
+		int p = row*width + col;
+		pixels[p] = (alpha == 255) ? argb : blend(pixels[p], argb, alpha, hasAlpha);
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Returns the given color drawn over the given pixel with the given alpha.
+	 * The pixel is opaque unless dstHasAlpha is true (for images without alpha
+	 * channel the upper byte of a pixel is undefined).
+	 */
+	private static int blend(int dst, int src, int alpha, boolean dstHasAlpha) {
+		int dstAlpha = dst >>> 24;
+		if(dstHasAlpha && dstAlpha < 255) {
+			// source over a translucent pixel, the weights of both colors add up to the new alpha
+			int dstWeight = (dstAlpha*(255 - alpha) + 127)/255;
+			int outAlpha = alpha + dstWeight;
+			int r = mixChannel((dst >> 16) & 0xff, dstWeight, (src >> 16) & 0xff, alpha, outAlpha);
+			int g = mixChannel((dst >> 8) & 0xff, dstWeight, (src >> 8) & 0xff, alpha, outAlpha);
+			int b = mixChannel(dst & 0xff, dstWeight, src & 0xff, alpha, outAlpha);
+			return (outAlpha << 24) | (r << 16) | (g << 8) | b;
+		}
+		int r = blendChannel((dst >> 16) & 0xff, (src >> 16) & 0xff, alpha);
+		int g = blendChannel((dst >> 8) & 0xff, (src >> 8) & 0xff, alpha);
+		int b = blendChannel(dst & 0xff, src & 0xff, alpha);
+		return (dst & 0xff000000) | (r << 16) | (g << 8) | b;
+	}
+
+	private static int blendChannel(int dst, int src, int alpha) {
+		return dst + ((src - dst)*alpha + 127)/255;
+	}
+
+	private static int mixChannel(int dst, int dstWeight, int src, int srcWeight, int totalWeight) {
+		return (dst*dstWeight + src*srcWeight + totalWeight/2)/totalWeight;
+	}
+}
@@ -0,0 +1,184 @@
+package cmview;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+import cmview.datasources.CommonNbhSizeMatrix;
+import cmview.datasources.ContactDensityMap;
+import cmview.datasources.ContactSet;
+import cmview.datasources.DistanceMatrix;
+import cmview.datasources.Model;
+import cmview.datasources.Utils;
+
+/**
+ * Renders the contact map of a model into an image without any Swing
+ * components, so that it works in headless mode and for many models in
+ * parallel. The image looks like the contact map pane of a single model at the
+ * given size: contacts in both triangles and optionally background overlays
+ * (distance map, contact density, common neighbourhood sizes) in the upper
+ * and/or lower triangle, using the same colors.
+ */
+public class ContactMapRenderer {
+
+	/*------------------------------ constants ------------------------------*/
+	public static final String DISTANCE_MAP = "distance";
+	public static final String DENSITY_MAP = "density";
+	public static final String NBH_SIZE_MAP = "nbhsize";
+	public static final String BOTTOM_PREFIX = "bottom:";	// overlay names with this prefix are drawn in the lower triangle
+
+	private static final Color BACKGROUND_COLOR = Color.white;
+	private static final Color CONTACT_COLOR = Color.black;
+
+	/*--------------------------- member variables --------------------------*/
+	private Model mod;
+	private int outputSize;
+	private double ratio;				// size of a cell in pixels
+	private int contactSquareSize;
+	private ArrayList<String> overlays = new ArrayList<String>();
+	private ArrayList<String> bottomOverlays = new ArrayList<String>();
+	private ContactMapRaster raster;	// the raster of the image being rendered
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a renderer for the given model and image size in pixels.
+	 */
+	public ContactMapRenderer(Model mod, int outputSize) {
+		this.mod = mod;
+		this.outputSize = outputSize;
+		this.ratio = (double) outputSize / mod.getMatrixSize();
+		this.contactSquareSize = (int) ratio;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Adds a background overlay, see the constants for the names. Overlays are
+	 * drawn in the order they are added, those with the BOTTOM_PREFIX in the lower
+	 * triangle.
+	 * @throws IllegalArgumentException if the overlay is unknown or not available for the model
+	 */
+	public void addOverlay(String overlay) {
+		boolean bottom = overlay.startsWith(BOTTOM_PREFIX);
+		String name = bottom ? overlay.substring(BOTTOM_PREFIX.length()) : overlay;
+		if(!name.equals(DISTANCE_MAP) && !name.equals(DENSITY_MAP) && !name.equals(NBH_SIZE_MAP)) {
+			throw new IllegalArgumentException("Unknown overlay " + overlay);
+		}
+		if(name.equals(DISTANCE_MAP) && !mod.has3DCoordinates()) {
+			throw new IllegalArgumentException("No distance map without 3D coordinates");
+		}
+		(bottom ? bottomOverlays : overlays).add(name);
+	}
+
+	/**
+	 * Returns a new image of the contact map.
+	 */
+	public BufferedImage render() {
+		BufferedImage image = new BufferedImage(outputSize, outputSize, BufferedImage.TYPE_INT_RGB);
+		raster = new ContactMapRaster(image);
+		raster.setCellSize(mod.getMatrixSize(), ratio, contactSquareSize);
+		try {
+			raster.fill(BACKGROUND_COLOR.getRGB());
+			for(String overlay:overlays) {
+				drawOverlay(overlay, false);
+			}
+			for(String overlay:bottomOverlays) {
+				drawOverlay(overlay, true);
+			}
+			drawContacts();
+		} finally {
+			raster = null;
+		}
+		return image;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private void drawOverlay(String overlay, boolean bottom) {
+		if(overlay.equals(DISTANCE_MAP)) {
+			drawDistanceMap(bottom);
+		} else if(overlay.equals(DENSITY_MAP)) {
+			drawDensityMap(bottom);
+		} else {
+			drawNbhSizeMap(bottom);
+		}
+	}
+
+	/**
+	 * Draws the contacts, smaller in a triangle with an overlay.
+	 */
+	private void drawContacts() {
+		boolean small = !overlays.isEmpty();
+		boolean smallBottom = !bottomOverlays.isEmpty();
+		int rgb = CONTACT_COLOR.getRGB();
+		int[] pairs = mod.getContacts().getPairs();
+		for(int k = 0; k < pairs.length; k += 2) {
+			drawCell(pairs[k], pairs[k+1], rgb, false, small);
+			drawCell(pairs[k], pairs[k+1], rgb, true, smallBottom);
+		}
+	}
+
+	/**
+	 * Draws the distance map, scaled like in the contact map pane but without
+	 * keeping the matrix in the model.
+	 */
+	private void drawDistanceMap(boolean bottom) {
+		DistanceMatrix distMatrix = Utils.calcDistMatrix(mod.getResidueCoordinates());
+		double max = distMatrix.getMax();
+		double min = distMatrix.getMin();
+		distMatrix.scale(min, max);
+		double scaledDistCutoff = (mod.getGraph().getCutoff() - min) / (max - min);
+		int size = distMatrix.getSize();
+		for(int i = 1; i < size; i++) {
+			for(int j = i + 1; j <= size; j++) {
+				float dist = distMatrix.get(i, j);
+				if(Float.isNaN(dist)) continue;
+				drawCell(i, j, ContactMapPane.colorMapScaledHeatmap(dist, scaledDistCutoff).getRGB(), bottom, false);
+			}
+		}
+	}
+
+	private void drawDensityMap(boolean bottom) {
+		ContactDensityMap densityMap = mod.getDensityMap();
+		int size = densityMap.getSize();
+		for(int i = 1; i <= size; i++) {
+			for(int j = i; j <= size; j++) {
+				Color c = ContactMapPane.colorMapRedBlue(densityMap.getDensity(i, j));
+				if(c.equals(BACKGROUND_COLOR)) continue;
+				drawCell(i, j, c.getRGB(), bottom, false);
+			}
+		}
+	}
+
+	private void drawNbhSizeMap(boolean bottom) {
+		CommonNbhSizeMatrix comNbhSizes = mod.getAllCommonNbhSizes();
+		ContactSet contacts = mod.getContacts();
+		int matrixSize = comNbhSizes.getSize();
+		for(int i = 1; i < matrixSize; i++) {
+			for(int j = i + 1; j <= matrixSize; j++) {
+				int size = comNbhSizes.get(i, j);
+				if(size == 0) continue;
+				Color c;
+				if(contacts.contains(i, j)) {
+					c = new Color(1.0f/(float) Math.sqrt(size), 0.0f, 1.0f/(float) Math.sqrt(size));
+				} else {
+					c = new Color(0.0f, 1.0f/size, 0.0f);
+				}
+				drawCell(i, j, c.getRGB(), bottom, false);
+			}
+		}
+	}
+
+	/**
+	 * Fills the cell of (i,j) in the upper triangle, or in the lower triangle if
+	 * bottom is true, covering the same pixels as the contact map pane.
+	 */
+	private void drawCell(int i, int j, int rgb, boolean bottom, boolean small) {
+		if(bottom) {
+			raster.fillCell(j, i, rgb, small);
+		} else {
+			raster.fillCell(i, j, rgb, small);
+		}
+	}
+}
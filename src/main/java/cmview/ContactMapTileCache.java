@@ -0,0 +1,83 @@
+package cmview;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the rendered tiles of a zoomed contact map. The map at a
+ * given zoom level is split into square tiles of TILE_SIZE pixels, identified
+ * by the size of the whole map in pixels and their column and row. When the
+ * cache is full the least recently used tile is dropped.
+ */
+public class ContactMapTileCache {
+
+	/*------------------------------ constants ------------------------------*/
+	public static final int TILE_SIZE = 256;	// width and height of a tile in pixels
+
+	/*--------------------------- member variables --------------------------*/
+	private LinkedHashMap<Long, BufferedImage> tiles;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates an empty cache for at most the given number of tiles.
+	 */
+	public ContactMapTileCache(final int maxTiles) {
+		this.tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+				return size() > maxTiles;
+			}
+		};
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Returns the given tile of the map of the given size or null if it is not
+	 * in the cache.
+	 */
+	public BufferedImage get(int mapSize, int tileX, int tileY) {
+		return tiles.get(getKey(mapSize, tileX, tileY));
+	}
+
+	/**
+	 * Adds the given tile of the map of the given size.
+	 */
+	public void put(int mapSize, int tileX, int tileY, BufferedImage tile) {
+		tiles.put(getKey(mapSize, tileX, tileY), tile);
+	}
+
+	/**
+	 * Removes the tiles of all map sizes overlapping the given rectangle, given
+	 * as fractions of the map size.
+	 */
+	public void invalidate(double x0, double y0, double x1, double y1) {
+		Iterator<Long> it = tiles.keySet().iterator();
+		while(it.hasNext()) {
+			long key = it.next();
+			double mapSize = key >>> 40;
+			double tileX = ((key >>> 20) & 0xfffff) * TILE_SIZE / mapSize;
+			double tileY = (key & 0xfffff) * TILE_SIZE / mapSize;
+			double tileSize = TILE_SIZE / mapSize;
+			if(tileX < x1 && tileX + tileSize > x0 && tileY < y1 && tileY + tileSize > y0) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all tiles.
+	 */
+	public void clear() {
+		tiles.clear();
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private static long getKey(int mapSize, int tileX, int tileY) {
+		return ((long) mapSize << 40) | ((long) tileX << 20) | tileY;
+	}
+}
@@ -0,0 +1,90 @@
+package cmview;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+
+import cmview.datasources.LoadHandle;
+
+/**
+ * A small non-modal dialog showing the phase of a model being loaded in the
+ * background, with a button to cancel loading.
+ */
+public class LoadProgressDialog extends JDialog implements ActionListener {
+
+	/*------------------------------ constants ------------------------------*/
+	static final long serialVersionUID = 1l;
+
+	/*--------------------------- member variables --------------------------*/
+	private LoadHandle handle;
+	private JLabel phaseLabel;
+	private JProgressBar progressBar;
+	private JButton cancelButton;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	public LoadProgressDialog(JFrame parent, LoadHandle handle) {
+		super(parent, "Loading " + handle.getName(), false);
+		this.handle = handle;
+		this.setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+		this.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				cancel();
+			}
+		});
+
+		phaseLabel = new JLabel(handle.getPhase().getDescription() + "...");
+		progressBar = new JProgressBar(0, LoadHandle.Phase.values().length);
+		progressBar.setIndeterminate(true);
+		cancelButton = new JButton("Cancel");
+		cancelButton.addActionListener(this);
+
+		JPanel panel = new JPanel(new BorderLayout(5, 5));
+		panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+		panel.add(phaseLabel, BorderLayout.NORTH);
+		panel.add(progressBar, BorderLayout.CENTER);
+		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(cancelButton);
+		panel.add(buttonPanel, BorderLayout.SOUTH);
+		this.getContentPane().add(panel);
+		this.pack();
+		this.setLocationRelativeTo(parent);
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Shows the given phase. To be called from the event dispatching thread.
+	 */
+	public void setPhase(LoadHandle.Phase phase) {
+		if(handle.isCancelled()) return;
+		phaseLabel.setText(phase.getDescription() + "...");
+		progressBar.setIndeterminate(false);
+		progressBar.setValue(phase.ordinal());
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		if(e.getSource() == cancelButton) {
+			cancel();
+		}
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private void cancel() {
+		// interrupts downloads, otherwise the load stops at the start of its next phase
+		handle.cancel(true);
+		cancelButton.setEnabled(false);
+		phaseLabel.setText("Cancelling...");
+	}
+}
@@ -87,10 +87,11 @@ public class ResidueRuler extends JPanel implements MouseListener,
 		if (location==TOP || location==BOTTOM){ // horizontal ruler
 			rulerWidth = this.getHeight();
 			// if we are in top ruler we want an offset for the space that the left ruler ocuppies
-			offSet = rulerWidth;
+			// and for the part of a zoomed map scrolled out of view
+			offSet = rulerWidth - cmPane.getViewOrigin().x;
 		} else { // vertical ruler
 			rulerWidth = this.getWidth();
-			offSet = 0;
+			offSet = -cmPane.getViewOrigin().y;
 		}
 		
 		ratio = (double)rulerLength/contactMapSize;
@@ -135,10 +136,10 @@ public class ResidueRuler extends JPanel implements MouseListener,
 			point.y = rulerWidth;			
 		} else if (location==LEFT){
 			point.x = 0;
-			point.y = (int) Math.round((k-1)*ratio);			
+			point.y = (int) Math.round((k-1)*ratio) + offSet;			
 		} else if (location==RIGHT){
 			point.x = rulerWidth;
-			point.y = (int) Math.round((k-1)*ratio);			
+			point.y = (int) Math.round((k-1)*ratio) + offSet;			
 		}
 		return point;
 	}
@@ -181,10 +182,10 @@ public class ResidueRuler extends JPanel implements MouseListener,
 			point.y = 0;	
 		} else if(location==LEFT) {
 			point.x = rulerWidth;
-			point.y = (int) Math.round((k-1)*ratio);			
+			point.y = (int) Math.round((k-1)*ratio) + offSet;			
 		} else if(location==RIGHT) { // vertical ruler
 			point.x = 0;
-			point.y = (int) Math.round((k-1)*ratio);
+			point.y = (int) Math.round((k-1)*ratio) + offSet;
 		}
 
 		return point;
@@ -231,7 +232,7 @@ public class ResidueRuler extends JPanel implements MouseListener,
 		if (location==TOP || location==BOTTOM){
 			return (int) Math.ceil((point.x-offSet)/ratio);
 		} else {
-			return (int) Math.ceil(point.y/ratio);
+			return (int) Math.ceil((point.y-offSet)/ratio);
 		}
 	}
 
@@ -364,7 +365,7 @@ public class ResidueRuler extends JPanel implements MouseListener,
 	public void mouseMoved(MouseEvent evt) {
 		Point pos = evt.getPoint();
 		int resSer = screen2cm(pos);
-		int oneDPos = (location == TOP || location == BOTTOM)?(pos.x-offSet):pos.y;
+		int oneDPos = (location == TOP || location == BOTTOM)?(pos.x-offSet):(pos.y-offSet);
 		cmPane.setRulerCoordinates(resSer, oneDPos, location);
 		cmPane.repaint();
 	}
@@ -1,20 +1,49 @@
 package cmview;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 import javax.swing.JComponent;
 
 /**
- * A buffered image to be shown on screen.
+ * A buffered image to be shown on screen. An opaque buffer is an image
+ * compatible with the screen of the parent, which Java2D can keep in video
+ * memory, and is cleared through Graphics2D. A transparent buffer, to be drawn
+ * on top of others, is of type TYPE_INT_ARGB such that its pixels can be
+ * written directly, see {@link ContactMapRaster}; such images are not
+ * accelerated anyway, so they are cleared by filling the pixel array.
+ * <p>
+ * The image is reused as long as the size of the parent does not change.
+ * Images given up on a size change are kept in a small pool shared by all
+ * buffers, such that going back to the previous size (e.g. after printing or
+ * when resizing back and forth) does not allocate a new image either. The pool
+ * only keeps images of the sizes involved in the latest size change, is bounded
+ * by POOL_BYTES and holds its images softly, so it never pins much memory.
  */
 public class ScreenBuffer {
 
+    /*------------------------------ constants ------------------------------*/
+
+    private static final long POOL_BYTES = 64L << 20;	// maximum size of the unused images kept
+
+    /*--------------------------- static variables --------------------------*/
+
+    private static final LinkedList<SoftReference<BufferedImage>> pool = new LinkedList<SoftReference<BufferedImage>>();	// unused images, most recent first
+
     /*--------------------------- member variables --------------------------*/
 
     private JComponent parent;		// to determine the size
-    private Image image;			// internal image
+    private BufferedImage image;	// internal image
     private Graphics2D g2d;			// graphics object of the internal image
+    private boolean transparent;	// whether the image has an alpha channel and writable pixels
 
     /*----------------------------- constructors ----------------------------*/
 
@@ -23,33 +52,45 @@ public class ScreenBuffer {
      * On update, the size will be taken from the parent component.
      */
     public ScreenBuffer(JComponent parent) {
+	this(parent, false);
+    }
+
+    /**
+     * Create an empty screen buffer, which is transparent after clearing if
+     * transparent is true.
+     */
+    public ScreenBuffer(JComponent parent, boolean transparent) {
 	this.parent = parent;
+	this.transparent = transparent;
     }
 
     /*---------------------------- public methods ---------------------------*/
 
     /**
-     * Clears the current buffer (such that it contains no pixels).
-     * The size is not changed.
+     * Clears the current buffer (such that it contains only black pixels, or
+     * only transparent ones). The size is taken from the preferred size of the
+     * parent component, the image is only replaced if the size changed.
      */
     public void clear() {
 		if(g2d!=null){
-		    
 			g2d.dispose();
 			g2d=null;
-		    
-		    if(image!=null){
-			image.flush();
-			image=null;
+		}
+		int width = Math.max(1,parent.getPreferredSize().width);
+		int height = Math.max(1,parent.getPreferredSize().height);
+		if(image==null || image.getWidth()!=width || image.getHeight()!=height) {
+		    if(image!=null) {
+			release(image, width, height);
 		    }
-		    System.gc();
+		    image = obtain(width, height);
 		}
-		this.image=parent.createImage(parent.getPreferredSize().width,parent.getPreferredSize().height);
-		if(image==null) {
-		    System.err.println("Severe Error: Failed to update screen buffer because parent frame is not displayable.");
-		    System.exit(1);
+		g2d=this.image.createGraphics();
+		if(transparent) {
+		    Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0);
 		} else {
-		    g2d= (Graphics2D) this.image.getGraphics();
+		    g2d.setComposite(AlphaComposite.Clear);
+		    g2d.fillRect(0, 0, width, height);
+		    g2d.setComposite(AlphaComposite.SrcOver);
 		}
     }
 
@@ -57,7 +98,7 @@ public class ScreenBuffer {
      * Get the buffer as an image. The image can be drawn using Graphics2D.drawImage(),
      * e.g. in the paintComponent method of a JPanel or exported to an image file.
      */
-    public Image getImage() {
+    public BufferedImage getImage() {
 	return image;
     }
 
@@ -69,6 +110,73 @@ public class ScreenBuffer {
 	return g2d;
     }
 
+    /*--------------------------- private methods ---------------------------*/
+
+    /**
+     * Returns an image of the given size for this buffer from the pool, or a new
+     * one if there is none. The image is not cleared.
+     */
+    private BufferedImage obtain(int width, int height) {
+	synchronized(pool) {
+	    Iterator<SoftReference<BufferedImage>> it = pool.iterator();
+	    while(it.hasNext()) {
+		BufferedImage image = it.next().get();
+		if(image==null) {
+		    it.remove();
+		} else if(image.getWidth()==width && image.getHeight()==height && isSuitable(image)) {
+		    it.remove();
+		    return image;
+		}
+	    }
+	}
+	GraphicsConfiguration gc = parent.getGraphicsConfiguration();	// null unless the parent is displayable
+	if(transparent || gc==null) {
+	    return new BufferedImage(width, height, transparent?BufferedImage.TYPE_INT_ARGB:BufferedImage.TYPE_INT_RGB);
+	}
+	return gc.createCompatibleImage(width, height, Transparency.OPAQUE);
+    }
+
+    /**
+     * Returns true if the given image can be used by this buffer.
+     */
+    private boolean isSuitable(BufferedImage image) {
+	if(transparent) {
+	    return image.getType()==BufferedImage.TYPE_INT_ARGB;
+	}
+	return image.getTransparency()==Transparency.OPAQUE;
+    }
+
+    /*---------------------------- static methods ---------------------------*/
+
+    /**
+     * Puts an image which is no longer used into the pool, as its buffer changes
+     * to the given size. Images of other sizes than these two are dropped, as are
+     * the least recently released ones beyond POOL_BYTES.
+     */
+    private static void release(BufferedImage image, int width, int height) {
+	synchronized(pool) {
+	    pool.addFirst(new SoftReference<BufferedImage>(image));
+	    long bytes = 0;
+	    Iterator<SoftReference<BufferedImage>> it = pool.iterator();
+	    while(it.hasNext()) {
+		BufferedImage pooled = it.next().get();
+		if(pooled==null) {
+		    it.remove();
+		    continue;
+		}
+		int w = pooled.getWidth();
+		int h = pooled.getHeight();
+		boolean current = (w==width && h==height) || (w==image.getWidth() && h==image.getHeight());
+		if(!current || bytes + 4L * w * h > POOL_BYTES) {
+		    it.remove();
+		    pooled.flush();
+		} else {
+		    bytes += 4L * w * h;
+		}
+	    }
+	}
+    }
+
 //  /**
 //  * Draws this ScreenBuffer on top of another screen buffer.
 //  */
@@ -2,9 +2,14 @@ package cmview;
 import gnu.getopt.Getopt;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.swing.JColorChooser;
@@ -14,7 +19,6 @@ import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
 import owl.core.structure.graphs.ProtStructGraph;
-import owl.core.util.FileTypeGuesser;
 import owl.core.util.MySQLConnection;
 
 import cmview.datasources.*;
@@ -67,11 +71,22 @@ public class Start {
 	public static String			CONFIG_FILE_NAME = "cmview.cfg";	// default name of config file
 	public static String			DIST_MAP_CONTACT_TYPE = "Ca";		// contact type to be used for distance map calculation (only single atom type allowed)
 	public static String 			PDB_FTP_URL = "ftp://ftp.wwpdb.org/pub/pdb/data/structures/all/mmCIF/";
+	public static int				COMPUTE_THREADS = 0;				// number of threads for parallel computations (0 = all available cores, 1 = sequential)
+	public static int				MODEL_CACHE_SIZE = 30;				// number of loaded models kept for reloading (0 = no caching)
+	public static int				MODEL_CACHE_MEMORY = 512;			// estimated memory in MB the cached models may use
+	public static boolean			USE_STRUCTURE_CACHE = true;			// keep parsed mmCIF files in a binary cache on disk (recently parsed files are always kept in memory)
+	public static String			STRUCTURE_CACHE_DIR = null;			// directory of the structure cache (null = subdirectory of TEMP_DIR)
+	public static int				CIF_CHAIN_READING_SIZE = 50;		// mmCIF files larger than this (in MB) are read only for the selected chain (0 = never)
+	public static String			PDB_MIRROR_DIR = null;				// local mirror of the PDB's mmCIF files, flat or divided, tried before PDB_FTP_URL (null = none)
+	public static int				PREFETCH_CONNECTIONS = 4;			// maximum number of simultaneous downloads when fetching structures
+	public static int				PREFETCH_RETRIES = 2;				// number of retries of a failed download
 		
 	/* gui settings */
 	public static int				INITIAL_SCREEN_SIZE = 650;			// initial size of the contactMapPane in pixels
 	public static int				LOUPE_WINDOW_SIZE = 200;			// size of the loupe component in pixels
 	public static int				LOUPE_CONTACT_SIZE = 15;			// size of each contact in the loupe in pixels
+	public static int				MAX_ZOOM = 64;						// maximum magnification of the contact map (mouse wheel)
+	public static int				TILE_CACHE_SIZE = 128;				// number of rendered tiles of the zoomed contact map kept in memory
 	public static boolean			SHOW_RULERS = true;					// if true, rulers will be shown by default
 	public static boolean			SHOW_ICON_BAR = true;				// if true, icon bar is used
 	public static boolean 			SHOW_ALIGNMENT_COORDS = false;		// if true, alignment coordinates also shown in bottom left corner of contact map
@@ -144,9 +159,21 @@ public class Start {
 	// the thread pool
 	private static ThreadPoolExecutor threadPool =  (ThreadPoolExecutor) Executors.newCachedThreadPool();
 	
+	// the pool for parallel computations, created on first use (see COMPUTE_THREADS)
+	private static ForkJoinPool computePool = null;
+	
 	// mapping pdb-code to mmCIF files in the tmp-directory, only to be used for ftp loading
 	private static TreeMap<String, File> pdbCode2file = new TreeMap<String, File>();
 	
+	// cache of loaded models for reloading them quickly, created on first use (see MODEL_CACHE_SIZE)
+	private static ModelCache modelCache = null;
+	
+	// cache of parsed structure files, created on first use (see USE_STRUCTURE_CACHE)
+	private static StructureCache structureCache = null;
+	
+	// fetches structure files from the local mirror or online pdb, created on first use (see PDB_MIRROR_DIR)
+	private static PdbPrefetcher pdbPrefetcher = null;
+	
 	// map of loadedGraphIDs (see member in Model) to original user-loaded Models (the members of View)
 	private static TreeMap<String, Model> loadedGraphs = new TreeMap<String, Model>();
 		
@@ -171,6 +198,9 @@ public class Start {
 	 * @param exitCode the exit code to return to the operating system
 	 */
 	public static void shutDown(int exitCode) {
+		if (modelCache != null && modelCache.isEnabled()) {
+			System.out.println(modelCache.getStatistics());
+		}
 		// Note that the shutdown hook of the virtual machine will still be executed.
 		System.exit(exitCode);
 	}
@@ -181,7 +211,7 @@ public class Start {
 	 * @param mod
 	 * @return
 	 */
-	public static String setLoadedGraphID(String name, Model mod) {
+	public static synchronized String setLoadedGraphID(String name, Model mod) {
 		String id = name;
 		if (loadedGraphs.containsKey(name)) {
 			int idSerial = 1;
@@ -194,6 +224,18 @@ public class Start {
 		return id;
 	}
 	
+	/**
+	 * Removes the given loadedGraphID from the loadedGraphs map if it belongs to
+	 * the given model, e.g. because loading the model has been cancelled.
+	 * @param id
+	 * @param mod
+	 */
+	public static synchronized void removeLoadedGraphID(String id, Model mod) {
+		if (id != null && loadedGraphs.get(id) == mod) {
+			loadedGraphs.remove(id);
+		}
+	}
+	
 	/**
 	 * Gets the filename of the local copy of the structure file corresponding 
 	 * to the given pdb code. 
@@ -201,7 +243,7 @@ public class Start {
 	 * @return  path to the file of the given pdb code. Returns null if there 
 	 *  is no such file. 
 	 */
-	public static File getFilename2PdbCode(String pdbCode) {
+	public static synchronized File getFilename2PdbCode(String pdbCode) {
 		return pdbCode2file.get(pdbCode.toLowerCase());
 	}
 	
@@ -211,7 +253,7 @@ public class Start {
 	 * @param pdbCode  pdb code
 	 * @param filename  name of the file corresponding to <code>pdbCode</code>
 	 */
-	public static void setFilename2PdbCode(String pdbCode, File file) {
+	public static synchronized void setFilename2PdbCode(String pdbCode, File file) {
 		pdbCode2file.put(pdbCode.toLowerCase(), file);
 	}	
 		
@@ -276,11 +318,22 @@ public class Start {
 			CONFIG_FILE_NAME = p.getProperty("CONFIG_FILE_NAME", CONFIG_FILE_NAME);
 			PDB_FTP_URL = p.getProperty("PDB_FTP_URL", PDB_FTP_URL);
 			DIST_MAP_CONTACT_TYPE = p.getProperty("DIST_MAP_CONTACT_TYPE",DIST_MAP_CONTACT_TYPE);
+			COMPUTE_THREADS = Integer.valueOf(p.getProperty("COMPUTE_THREADS", Integer.toString(COMPUTE_THREADS)));
+			MODEL_CACHE_SIZE = Integer.valueOf(p.getProperty("MODEL_CACHE_SIZE", Integer.toString(MODEL_CACHE_SIZE)));
+			MODEL_CACHE_MEMORY = Integer.valueOf(p.getProperty("MODEL_CACHE_MEMORY", Integer.toString(MODEL_CACHE_MEMORY)));
+			USE_STRUCTURE_CACHE = Boolean.valueOf(p.getProperty("USE_STRUCTURE_CACHE", Boolean.toString(USE_STRUCTURE_CACHE)));
+			STRUCTURE_CACHE_DIR = p.getProperty("STRUCTURE_CACHE_DIR", STRUCTURE_CACHE_DIR);
+			CIF_CHAIN_READING_SIZE = Integer.valueOf(p.getProperty("CIF_CHAIN_READING_SIZE", Integer.toString(CIF_CHAIN_READING_SIZE)));
+			PDB_MIRROR_DIR = p.getProperty("PDB_MIRROR_DIR", PDB_MIRROR_DIR);
+			PREFETCH_CONNECTIONS = Integer.valueOf(p.getProperty("PREFETCH_CONNECTIONS", Integer.toString(PREFETCH_CONNECTIONS)));
+			PREFETCH_RETRIES = Integer.valueOf(p.getProperty("PREFETCH_RETRIES", Integer.toString(PREFETCH_RETRIES)));
 
 			// gui settings
 			INITIAL_SCREEN_SIZE = Integer.valueOf(p.getProperty("INITIAL_SCREEN_SIZE", new Integer(INITIAL_SCREEN_SIZE).toString()));
 			LOUPE_WINDOW_SIZE = Integer.valueOf(p.getProperty("LOUPE_WINDOW_SIZE", new Integer(LOUPE_WINDOW_SIZE).toString()));
 			LOUPE_CONTACT_SIZE = Integer.valueOf(p.getProperty("LOUPE_CONTACT_SIZE", new Integer(LOUPE_CONTACT_SIZE).toString())); 
+			MAX_ZOOM = Integer.valueOf(p.getProperty("MAX_ZOOM", new Integer(MAX_ZOOM).toString()));
+			TILE_CACHE_SIZE = Integer.valueOf(p.getProperty("TILE_CACHE_SIZE", new Integer(TILE_CACHE_SIZE).toString()));
 			SHOW_RULERS = Boolean.valueOf(p.getProperty("SHOW_RULERS", new Boolean(SHOW_RULERS).toString()));
 			SHOW_ICON_BAR = Boolean.valueOf(p.getProperty("SHOW_ICON_BAR",Boolean.toString(SHOW_ICON_BAR)));
 			SHOW_ALIGNMENT_COORDS = Boolean.valueOf(p.getProperty("SHOW_ALIGNMENT_COORDS",Boolean.toString(SHOW_ALIGNMENT_COORDS)));
@@ -349,11 +402,22 @@ public class Start {
 		p.setProperty("CONFIG_FILE_NAME", CONFIG_FILE_NAME);									// doc?
 		p.setProperty("PDB_FTP_URL",PDB_FTP_URL);												// doc!		
 		p.setProperty("DIST_MAP_CONTACT_TYPE",DIST_MAP_CONTACT_TYPE);							// doc?
+		p.setProperty("COMPUTE_THREADS", Integer.toString(COMPUTE_THREADS));					// doc?
+		p.setProperty("MODEL_CACHE_SIZE", Integer.toString(MODEL_CACHE_SIZE));					// doc?
+		p.setProperty("MODEL_CACHE_MEMORY", Integer.toString(MODEL_CACHE_MEMORY));				// doc?
+		p.setProperty("USE_STRUCTURE_CACHE", Boolean.toString(USE_STRUCTURE_CACHE));			// doc?
+		if (STRUCTURE_CACHE_DIR != null) p.setProperty("STRUCTURE_CACHE_DIR", STRUCTURE_CACHE_DIR);	// doc?
+		p.setProperty("CIF_CHAIN_READING_SIZE", Integer.toString(CIF_CHAIN_READING_SIZE));		// doc?
+		if (PDB_MIRROR_DIR != null) p.setProperty("PDB_MIRROR_DIR", PDB_MIRROR_DIR);			// doc?
+		p.setProperty("PREFETCH_CONNECTIONS", Integer.toString(PREFETCH_CONNECTIONS));			// doc?
+		p.setProperty("PREFETCH_RETRIES", Integer.toString(PREFETCH_RETRIES));					// doc?
 		
 		// gui settings
 		p.setProperty("INITIAL_SCREEN_SIZE", Integer.toString(INITIAL_SCREEN_SIZE));			// doc
 		p.setProperty("LOUPE_WINDOW_SIZE", Integer.toString(LOUPE_WINDOW_SIZE));				// doc
 		p.setProperty("LOUPE_CONTACT_SIZE", Integer.toString(LOUPE_CONTACT_SIZE));				// doc
+		p.setProperty("MAX_ZOOM", Integer.toString(MAX_ZOOM));									// doc?
+		p.setProperty("TILE_CACHE_SIZE", Integer.toString(TILE_CACHE_SIZE));					// doc?
 		
 		p.setProperty("SHOW_RULERS", Boolean.toString(SHOW_RULERS));							// doc?
 		p.setProperty("SHOW_ICON_BAR",Boolean.toString(SHOW_ICON_BAR));							// doc?
@@ -540,7 +604,8 @@ public class Start {
 	 * Returns the model or null on failure.
 	 */
 	private static Model preloadModel(String pdbCode, String inFile, String pdbChainCode, String contactType, double cutoff) {
-		Model mod = null;
+		LoadHandle.Job job = null;
+		String name = null;
 		if(pdbChainCode==null) {
 			System.out.println("No chain code given, loading first chain.");
 			//pdbChainCode = PdbChain.NULL_CHAIN_CODE;
@@ -551,53 +616,44 @@ public class Start {
 		if (pdbCode!=null) {
 			
 			// load from online pdb
-			try {
-				mod = new PdbFtpModel(pdbCode, contactType, cutoff, DEFAULT_MIN_SEQSEP, DEFAULT_MAX_SEQSEP);
-				mod.load(pdbChainCode, 1);
-			} catch (IOException e) {
-				System.err.println("Could not load structure for given command line parameters:");
-				System.err.println(e.getMessage());
-				return null;
-			} catch (ModelConstructionError e) {
-				System.err.println("Could not load structure for given command line parameters:");
-				System.err.println(e.getMessage());
-				return null;
-			}				
+			job = ModelLoader.fromPdbFtp(pdbCode, 1, false, pdbChainCode, contactType, cutoff, DEFAULT_MIN_SEQSEP, DEFAULT_MAX_SEQSEP);
+			name = pdbCode;
 
 		} else if (inFile!=null) {
 			try {
-				int fileType = FileTypeGuesser.guessFileType(new File(inFile));
-				switch(fileType) {
-				case FileTypeGuesser.PDB_FILE:
-				case FileTypeGuesser.CASP_TS_FILE:
-					mod = new PdbFileModel(inFile,contactType,cutoff,DEFAULT_MIN_SEQSEP, DEFAULT_MAX_SEQSEP);
-					mod.load(pdbChainCode, 1);					
-					break;
-				case FileTypeGuesser.OWL_CM_FILE: 
-					mod = new ContactMapFileModel(inFile);
-					break;
-				case FileTypeGuesser.CASP_RR_FILE: 
-					mod = new CaspRRFileModel(inFile);
-					break;
-				default:
-					System.err.println("Could not recognize file type of " + inFile);
-					return null;
-				}
-			} catch (ModelConstructionError e) {
-				System.err.println("Could not load structure or contact map for given command line parameters:");
-				System.err.println(e.getMessage());
-				return null;
+				job = ModelLoader.fromFile(inFile, pdbChainCode, contactType, cutoff, DEFAULT_MIN_SEQSEP, DEFAULT_MAX_SEQSEP);
+				name = inFile;
 			} catch (FileNotFoundException e) {
 				System.err.println("File " + inFile + " not found.");
 				return null;
 			} catch (IOException e) {
-				System.err.println("Error reading from file " + inFile);
+				System.err.println("Error reading from file " + inFile + ": " + e.getMessage());
 				return null;
 			}
 		} else {
 			System.err.println("Unexpected error in preloadModel. Please submit a bug report.");
+			return null;
+		}
+		
+		// load through the same service as the load dialogs, reporting the phases on the console
+		LoadHandle handle = new LoadHandle(name, job);
+		handle.addListener(new LoadHandle.Listener() {
+			public void phaseStarted(LoadHandle handle, LoadHandle.Phase phase) {
+				System.out.println(phase.getDescription() + "...");
+			}
+			public void loadDone(LoadHandle handle) {
+			}
+		});
+		try {
+			return handle.start().getModel();
+		} catch (ModelConstructionError e) {
+			System.err.println("Could not load structure or contact map for given command line parameters:");
+			System.err.println(e.getMessage());
+			return null;
+		} catch (InterruptedException e) {
+			System.err.println("Loading of " + name + " interrupted");
+			return null;
 		}
-		return mod;
 	}
 	
 	/**
@@ -693,6 +749,102 @@ public class Start {
 		 return threadPool;
 	 }
 	 
+	 /**
+	  * Returns the fork/join pool for parallel computations of this session or null
+	  * if computations should run sequentially (COMPUTE_THREADS = 1).
+	  * @return the compute pool or null
+	  */
+	 public static synchronized ForkJoinPool getComputePool() {
+		 if (COMPUTE_THREADS == 1) {
+			 return null;
+		 }
+		 if (computePool == null) {
+			 int threads = COMPUTE_THREADS > 0 ? COMPUTE_THREADS : Runtime.getRuntime().availableProcessors();
+			 computePool = new ForkJoinPool(threads);
+		 }
+		 return computePool;
+	 }
+	 
+	 /**
+	  * Returns the cache of loaded models of this session.
+	  * @return the model cache
+	  */
+	 public static synchronized ModelCache getModelCache() {
+		 if (modelCache == null) {
+			 modelCache = new ModelCache(MODEL_CACHE_SIZE, MODEL_CACHE_MEMORY);
+		 }
+		 return modelCache;
+	 }
+	 
+	 /**
+	  * Returns the cache of parsed structure files of this session.
+	  * @return the structure cache
+	  */
+	 public static synchronized StructureCache getStructureCache() {
+		 if (structureCache == null) {
+			 File dir = null;
+			 if (USE_STRUCTURE_CACHE) {
+				 dir = STRUCTURE_CACHE_DIR != null ? new File(STRUCTURE_CACHE_DIR) : new File(TEMP_DIR, "cmview_structures");
+			 }
+			 structureCache = new StructureCache(dir);
+		 }
+		 return structureCache;
+	 }
+	 
+	 /**
+	  * Returns the prefetcher of structure files of this session, which fetches
+	  * into the temp directory.
+	  * @return the prefetcher
+	  */
+	 public static synchronized PdbPrefetcher getPdbPrefetcher() {
+		 if (pdbPrefetcher == null) {
+			 File mirror = PDB_MIRROR_DIR != null ? new File(PDB_MIRROR_DIR) : null;
+			 pdbPrefetcher = new PdbPrefetcher(mirror, PDB_FTP_URL, new File(TEMP_DIR), PREFETCH_CONNECTIONS, PREFETCH_RETRIES, threadPool);
+		 }
+		 return pdbPrefetcher;
+	 }
+	 
+	 /**
+	  * Fetches the structure files of the given pdb codes in the background, so
+	  * that they are loaded from the temp directory later.
+	  * @param pdbCodes the pdb codes
+	  */
+	 public static void prefetchPdbCodes(final Collection<String> pdbCodes) {
+		 threadPool.execute(new Runnable() {
+			 public void run() {
+				 try {
+					 Map<String, File> files = getPdbPrefetcher().prefetch(pdbCodes);
+					 for (Map.Entry<String, File> entry : files.entrySet()) {
+						 setFilename2PdbCode(entry.getKey(), entry.getValue());
+					 }
+					 System.out.println("Prefetched " + files.size() + " of " + pdbCodes.size() + " PDB entries");
+				 } catch (InterruptedException e) {
+					 System.err.println("Prefetching of PDB entries interrupted");
+				 }
+			 }
+		 });
+	 }
+	 
+	 /**
+	  * Reads the pdb codes from the given list file, the first word of every
+	  * non-empty line which does not start with #.
+	  */
+	 private static List<String> readPdbCodeList(String listFile) throws IOException {
+		 List<String> pdbCodes = new ArrayList<String>();
+		 BufferedReader in = new BufferedReader(new FileReader(listFile));
+		 try {
+			 String line;
+			 while ((line = in.readLine()) != null) {
+				 line = line.trim();
+				 if (line.length() == 0 || line.startsWith("#")) continue;
+				 pdbCodes.add(line.split("\\s+")[0]);
+			 }
+		 } finally {
+			 in.close();
+		 }
+		 return pdbCodes;
+	 }
+	 
 	 /*--------------------------------- main --------------------------------*/
 	 
 	/**
@@ -703,10 +855,13 @@ public class Start {
 		
 
 		String help = "Usage: \n" +
-		APP_NAME+" [-f <file>] [-p <pdb code>] [-c <pdb chain code>] [-t <contact type>] [-d <distance cutoff>] [-o <config file>] [-I <image file>] [-Y]\n" +
+		APP_NAME+" [-f <file>] [-p <pdb code>] [-c <pdb chain code>] [-t <contact type>] [-d <distance cutoff>] [-o <config file>] [-I <image file>] [-L <pdb code list file>] [-B <job list file>] [-Y]\n" +
 			"File can be a PDB file, CMView contact map file, Casp TS file or Casp RR file.\n" +
 			"If the -o  option is used, the given config file will override settings from system-wide or user's config file\n" +
 			"If the -I option is given, a png image with the current contact map will be written instead of starting CMView.\n"+
+			"With the -L option, the PDB entries listed in the given file (one per line) are fetched in the background.\n"+
+			"With the -B option, png images of the contact maps listed in the given job file are written in parallel without starting CMView,\n"+
+			"one job per line: <pdb code or file> [<chain code> [<size> [<overlays> [<png file>]]]], - for default values.\n"+
 			"With the -Y option, PyMol will not be started.";
 		String pdbCode = null;
 		String inFile = null;
@@ -715,10 +870,12 @@ public class Start {
 		String cmdLineConfigFile = null;
 		String debugConfigFile = null;
 		String imageFile = null;
+		String prefetchListFile = null;
+		String batchJobFile = null;
 		boolean doPreload = false;
 		boolean noPymol = false;
 		double cutoff = 0.0;
-		Getopt g = new Getopt(APP_NAME, args, "p:f:c:t:d:o:I:vYg:h?");
+		Getopt g = new Getopt(APP_NAME, args, "p:f:c:t:d:o:I:L:B:vYg:h?");
 		int c;
 		while ((c = g.getopt()) != -1) {
 			switch(c){
@@ -753,6 +910,14 @@ public class Start {
 			case 'Y':
 				noPymol = true;	// don't load pymol on startup
 				break;
+			case 'L':
+				prefetchListFile = g.getOptarg();
+				break;
+			case 'B':
+				batchJobFile = g.getOptarg();
+				noPymol = true;
+				System.setProperty("java.awt.headless", "true");	// no windows are opened
+				break;
 			case 'I':
 				imageFile = g.getOptarg();
 				noPymol = true; // don't need pymol for image writing
@@ -859,6 +1024,20 @@ public class Start {
 		File trashLogFile = new File(TEMP_DIR, TRASH_LOGFILE);
 		trashLogFile.deleteOnExit();
 		System.setProperty("java.util.logging.config.file",trashLogFile.getAbsolutePath());
+		
+		// render the contact maps of the batch job list and exit
+		if(batchJobFile != null) {
+			if (contactType == null) contactType = DEFAULT_CONTACT_TYPE;
+			if (cutoff == 0.0) cutoff = DEFAULT_DISTANCE_CUTOFF;
+			int threads = COMPUTE_THREADS > 0 ? COMPUTE_THREADS : Runtime.getRuntime().availableProcessors();
+			try {
+				int failed = new BatchRenderer(contactType, cutoff, DEFAULT_MIN_SEQSEP, DEFAULT_MAX_SEQSEP, threads).run(batchJobFile);
+				shutDown(failed == 0 ? 0 : 1);
+			} catch (IOException e) {
+				System.err.println("Error reading job list " + batchJobFile + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
 					
 		// connect to pymol
 		if(USE_PYMOL && noPymol==false) {
@@ -965,6 +1144,15 @@ public class Start {
 		colorChooser = new JColorChooser();
 		colorChooser.setPreviewPanel(new JPanel()); // removing the preview panel
 		
+		// fetch the structures of the work list while the first one is loaded
+		if(prefetchListFile != null) {
+			try {
+				prefetchPdbCodes(readPdbCodeList(prefetchListFile));
+			} catch (IOException e) {
+				System.err.println("Error reading PDB code list " + prefetchListFile + ": " + e.getMessage());
+			}
+		}
+		
 		// start gui without a model or preload contact map based on command line parameters
 		String wintitle = "Contact Map Viewer";
 		Model mod = null;
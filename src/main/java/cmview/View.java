@@ -1421,18 +1421,7 @@ public class View extends JFrame implements ActionListener {
 		System.out.println("Loading from graph database");
 		System.out.println("Database:\t" + db);
 		System.out.println("Graph Id:\t" + gid);
-		try {
-			Model mod = new GraphDbModel(gid, db);
-			if(secondModel) {
-				//handleLoadSecondModel(mod);
-				mod2 = mod;
-				handlePairwiseAlignment();
-			} else {
-				this.spawnNewViewWindow(mod);
-			}
-		} catch(ModelConstructionError e) {
-			showLoadError(e.getMessage());
-		}
+		loadInBackground(db + ":" + gid, ModelLoader.fromGraphDb(db, gid), secondModel);
 	}
 
 	private void handleLoadFromPdbFile(boolean secondModel, boolean tsFile) {
@@ -1493,27 +1482,7 @@ public class View extends JFrame implements ActionListener {
 		System.out.println("Dist. cutoff:\t" + dist);	
 		System.out.println("Min. Seq. Sep.:\t" + (minss==-1?"none":minss));
 		System.out.println("Max. Seq. Sep.:\t" + (maxss==-1?"none":maxss));
-		try {
-			PdbFileModel mod = new PdbFileModel(f, ct, dist, minss, maxss);
-			try {
-				mod.load(cc, modelSerial, loadAllModels);
-			} catch (NumberFormatException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			if(secondModel) {
-				//handleLoadSecondModel(mod);
-				mod2 = mod;
-				handlePairwiseAlignment();
-			} else {
-				this.spawnNewViewWindow(mod);
-			}
-		} catch(ModelConstructionError e) {
-			showLoadError(e.getMessage());
-		}
+		loadInBackground(new File(f).getName(), ModelLoader.fromPdbFile(f, modelSerial, loadAllModels, cc, ct, dist, minss, maxss), secondModel);
 	}	
 	
 	public void doLoadSecondModelFromModel(Model m) {
@@ -1564,18 +1533,7 @@ public class View extends JFrame implements ActionListener {
 	
 	public void doLoadFromCmFile(String f, boolean secondModel) {
 		System.out.println("Loading from contact map file "+f);
-		try {
-			Model mod = new ContactMapFileModel(f);
-			if(secondModel == SECOND_MODEL) {
-				//handleLoadSecondModel(mod);
-				mod2 = mod;
-				handlePairwiseAlignment();
-			} else {
-				this.spawnNewViewWindow(mod);
-			}
-		} catch(ModelConstructionError e) {
-			showLoadError(e.getMessage());
-		}
+		loadInBackground(new File(f).getName(), ModelLoader.fromCmFile(f), secondModel);
 	}
 	
 	/**
@@ -1694,17 +1652,7 @@ public class View extends JFrame implements ActionListener {
 		System.out.println("Load only first models:\t" + (firstModOnly?"yes":"no"));
 		System.out.println("Consensus secondary structure threshold:\t" + (consSSThresh > 0?consSSThresh:"none"));		
 		
-		try {
-			Model mod = new CaspServerPredictionsModel(new File(f), ct, dist, minss, maxss, firstModOnly,consSSThresh);
-			if(secondModel == SECOND_MODEL) {
-				mod2 = mod;
-				handlePairwiseAlignment();
-			} else {
-				this.spawnNewViewWindow(mod);
-			}
-		} catch(ModelConstructionError e) {
-			showLoadError(e.getMessage());
-		}
+		loadInBackground(new File(f).getName(), ModelLoader.fromCaspServerModels(new File(f), ct, dist, minss, maxss, firstModOnly, consSSThresh), secondModel);
 	}
 
 	private void handleLoadFromCaspRRFile(boolean secondModel) {
@@ -1729,18 +1677,7 @@ public class View extends JFrame implements ActionListener {
 
 	public void doLoadFromCaspRRFile(String f, boolean secondModel) {
 		System.out.println("Loading from CASP RR file "+f);
-		try {
-			Model mod = new CaspRRFileModel(f);
-			if(secondModel == SECOND_MODEL) {
-				//handleLoadSecondModel(mod);
-				mod2 = mod;
-				handlePairwiseAlignment();
-			} else {
-				this.spawnNewViewWindow(mod);
-			}
-		} catch(ModelConstructionError e) {
-			showLoadError(e.getMessage());
-		}
+		loadInBackground(new File(f).getName(), ModelLoader.fromCaspRRFile(f), secondModel);
 	}
 
 	private void handleLoadFromFtp(boolean secondModel) {
@@ -1819,17 +1756,50 @@ public class View extends JFrame implements ActionListener {
 		System.out.println("Dist. cutoff:\t" + dist);	
 		System.out.println("Min. Seq. Sep.:\t" + (minss==-1?"none":minss));
 		System.out.println("Max. Seq. Sep.:\t" + (maxss==-1?"none":maxss));	
-		try{
-			File localFile = Start.getFilename2PdbCode(ac);
-			PdbFtpModel mod = null;
-			if( localFile != null ) {
-				mod = new PdbFtpModel(localFile, ct, dist, minss, maxss);
-			} else { 
-				mod = new PdbFtpModel(ac, ct, dist, minss, maxss);
-			}
-			mod.load(cc, modelSerial, loadAllModels);
+		loadInBackground(ac + (cc == null ? "" : cc), ModelLoader.fromPdbFtp(ac, modelSerial, loadAllModels, cc, ct, dist, minss, maxss), secondModel);
+	}
+
+	/**
+	 * Runs the given load job in the background, showing its progress in a dialog
+	 * which allows to cancel loading. When done, the model is shown in a new window
+	 * or, if secondModel is true, compared to the model of this window.
+	 * @param name the name of the model shown while loading
+	 */
+	private void loadInBackground(String name, LoadHandle.Job job, final boolean secondModel) {
+		final LoadHandle handle = new LoadHandle(name, job);
+		final LoadProgressDialog progressDialog = new LoadProgressDialog(this, handle);
+		handle.addListener(new LoadHandle.Listener() {
+			public void phaseStarted(LoadHandle h, final LoadHandle.Phase phase) {
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						progressDialog.setPhase(phase);
+					}
+				});
+			}
+			public void loadDone(LoadHandle h) {
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						progressDialog.dispose();
+						handleLoadDone(handle, secondModel);
+					}
+				});
+			}
+		});
+		handle.start();
+		progressDialog.setVisible(true);
+	}
+
+	/**
+	 * Shows the model loaded by the given handle or the reason loading failed.
+	 */
+	private void handleLoadDone(LoadHandle handle, boolean secondModel) {
+		if(handle.isCancelled()) {
+			System.out.println("Loading of " + handle.getName() + " cancelled");
+			return;
+		}
+		try {
+			Model mod = handle.getModel();
 			if(secondModel) {
-				//handleLoadSecondModel(mod);
 				mod2 = mod;
 				handlePairwiseAlignment();
 			} else {
@@ -1837,8 +1807,8 @@ public class View extends JFrame implements ActionListener {
 			}
 		} catch(ModelConstructionError e) {
 			showLoadError(e.getMessage());
-		} catch (IOException e) {
-			showLoadError(e.getMessage());
+		} catch(InterruptedException e) {
+			// can not happen, the load is done
 		}
 	}
 
@@ -2956,7 +2926,7 @@ public class View extends JFrame implements ActionListener {
 	private void handleColorPaint() {
 		if(mod==null) {
 			showNoContactMapWarning();
-		} else if(cmPane.getSelContacts().size() == 0) {
+		} else if(!cmPane.hasSelectedContacts()) {
 			showNoContactsSelectedWarning();
 		} else {
 			cmPane.paintCurrentSelection(guiState.getPaintingColor());
@@ -3045,7 +3015,7 @@ public class View extends JFrame implements ActionListener {
 			showNoPyMolConnectionWarning();
 		} else if(!mod.has3DCoordinates()) {
 			showNo3DCoordsWarning(mod);
-		} else if(cmPane.getSelContacts().size() == 0) {
+		} else if(!cmPane.hasSelectedContacts()) {
 			showNoContactsSelectedWarning();
 		} else if (cmPane.hasSecondModel()){
 			
@@ -3178,7 +3148,7 @@ public class View extends JFrame implements ActionListener {
 	private void handleDeleteSelContacts() {
 		if(mod==null) {
 			showNoContactMapWarning();
-		} else if(cmPane.getSelContacts().size() == 0) {
+		} else if(!cmPane.hasSelectedContacts()) {
 			showNoContactsSelectedWarning();
 		} else {
 			if(reallyDeleteContacts()) {
@@ -3447,7 +3417,7 @@ public class View extends JFrame implements ActionListener {
 			showNoContactMapWarning();
 		} else if(mod2==null) {
 			showNoSecondContactMapWarning();
-		} else if(cmPane.getSelContacts().size() == 0) {
+		} else if(!cmPane.hasSelectedContacts()) {
 			showNoContactsSelectedWarning();
 		} else {
 			int numContacts = 0;
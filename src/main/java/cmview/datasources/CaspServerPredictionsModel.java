@@ -2,13 +2,18 @@ package cmview.datasources;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import cmview.Start;
 
 import owl.core.runners.DsspRunner;
-import owl.core.sequence.Sequence;
 import owl.core.structure.PdbChain;
 import owl.core.structure.PdbAsymUnit;
 import owl.core.structure.PdbLoadException;
@@ -17,20 +22,35 @@ import owl.core.structure.features.SecondaryStructure;
 import owl.core.structure.graphs.RIGEnsemble;
 import owl.core.structure.graphs.RIGraph;
 import owl.core.util.FileFormatException;
-import owl.graphAveraging.GraphAverager;
-import owl.graphAveraging.GraphAveragerException;
 
 public class CaspServerPredictionsModel extends Model {
 
 	/*--------------------------- member variables --------------------------*/
 	int caspTargetNum;	// stores the number of the target for which
 						// predictions are being loaded
-	ArrayList<SecondaryStructure> ssList;	// secondary structures annotations
-											// of server predictions
+	/**
+	 * What is kept of a loaded prediction file.
+	 */
+	private static class Prediction {
+		String sequence;				// observed sequence
+		int targetNum;
+		RIGraph graph;
+		SecondaryStructure ss;			// null if not assigned
+	}
 	
 	/*----------------------------- constructors ----------------------------*/
 	
 	public CaspServerPredictionsModel(File modelDirectory, String edgeType, double distCutoff, int minSeqSep, int maxSeqSep, boolean onlyFirstModels, double consensusSSthresh) throws ModelConstructionError {
+		this(modelDirectory, edgeType, distCutoff, minSeqSep, maxSeqSep, onlyFirstModels, consensusSSthresh, null);
+	}
+	
+	/**
+	 * Loads the predictions in the given directory, stopping early if the given
+	 * load handle is cancelled.
+	 * @param handle the handle of the load, null if not loaded through a handle
+	 */
+	public CaspServerPredictionsModel(File modelDirectory, String edgeType, double distCutoff, int minSeqSep, int maxSeqSep, boolean onlyFirstModels, double consensusSSthresh, LoadHandle handle) throws ModelConstructionError {
+		setLoadHandle(handle);
 		if(!modelDirectory.exists() || !modelDirectory.isDirectory()
 									|| !modelDirectory.canRead()) {
 			throw new ModelConstructionError("Can not access directory " + modelDirectory);
@@ -52,42 +72,75 @@ public class CaspServerPredictionsModel extends Model {
 	 */
 	private void loadUsingRIGEnsembl(File modelDirectory, String edgeType, double distCutoff, int minSeqSep, int maxSeqSep, boolean onlyFirstModels, double consensusSSthresh) throws ModelConstructionError {
 		
-		// first scan: find maximal sequence, targte number and load dssp secondary structures
-		String seq = loadSequenceFromDirectory(modelDirectory, onlyFirstModels, consensusSSthresh);
-		if(seq == null) throw new ModelConstructionError("Could not find sequence information in files.");
-		
-		// create RIGEnsemble
+		// single pass over all files: structure, graph and dssp secondary structure of each prediction,
+		// the files are loaded in parallel, but only a few more than there are threads at a time.
+		// Loading a file blocks on reading it and on the dssp process, so it runs in a pool of
+		// its own rather than in the compute pool (see COMPUTE_THREADS)
 		System.out.println("Loading prediction files...");
-		int numLoaded = 0;
-		RIGEnsemble ensemble = new RIGEnsemble(edgeType, distCutoff);
-		if(onlyFirstModels) ensemble.loadOnlyFirstModels();
-		try {
-			numLoaded = ensemble.loadFromFileList(modelDirectory, new Sequence("dummyName", seq));
-		} catch (IOException e) {
-			System.err.println("Could not read from directory: " + e.getMessage());
-			throw new ModelConstructionError(e);
-		}
+		File[] files = modelDirectory.listFiles();
+		System.out.println("Files in directory: " + files.length);
+		boolean runDssp = Start.isDsspAvailable() && consensusSSthresh > 0;
+		int threads = Start.COMPUTE_THREADS > 0 ? Start.COMPUTE_THREADS : Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = (threads == 1) ? null : Executors.newFixedThreadPool(threads);
+		int window = (pool == null) ? 1 : 2 * threads;
+		ArrayDeque<Future<Prediction>> pending = new ArrayDeque<Future<Prediction>>();
 		
-		// create graphAverager	
-		GraphAverager ga = null;
+		// the graphs are averaged on the fly, the full sequence is assumed to be the longest one 
+		// found in any of the files and only predictions with the full sequence are averaged
+		ContactFrequencyAccumulator acc = new ContactFrequencyAccumulator("");
+		int pdbErrors = 0;
+		int next = 0;
 		try {
-		ga = new GraphAverager(ensemble);
-		} catch (GraphAveragerException e) {
-			System.err.println("Could not create graphAverager: " + e.getMessage());
-			throw new ModelConstructionError(e);
+			while(next < files.length || !pending.isEmpty()) {
+				while(next < files.length && pending.size() < window) {
+					checkCancelled();
+					File f = files[next++];
+					if(f.isFile()) pending.add(submitPrediction(pool, f, edgeType, distCutoff, onlyFirstModels, runDssp));
+				}
+				if(pending.isEmpty()) continue;
+				Prediction p;
+				try {
+					p = pending.poll().get();
+				} catch (ExecutionException e) {
+					pdbErrors++;
+					continue;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					checkCancelled();
+					throw new ModelConstructionError("Loading of server models interrupted");
+				}
+				if(p == null) continue;	// skipped
+				if(caspTargetNum <= 0) caspTargetNum = p.targetNum;
+				if(p.ss != null) acc.addSecondaryStructure(p.ss);
+				if(p.sequence.length() > acc.getSequence().length()) {
+					acc.startOver(p.sequence);
+				}
+				if(p.sequence.equals(acc.getSequence())) {
+					acc.addContacts(p.graph);
+				}
+			}
+		} finally {
+			// when giving up early, don't leave tasks running
+			for(Future<Prediction> other:pending) other.cancel(true);
+			if(pool != null) pool.shutdownNow();
 		}
+		if(pdbErrors > 0) System.out.println(pdbErrors + " errors encountered when loading server models");
+		String seq = acc.getSequence();
+		System.out.println("Sequence length: " + seq.length());
+		if(seq.length() == 0) throw new ModelConstructionError("Could not find sequence information in files.");
+		int numLoaded = acc.getNumModels();
 		
 		// assign model fields
 		this.edgeType = edgeType;
 		this.distCutoff = distCutoff;
 		this.maxSeqSep = maxSeqSep;
 		this.pdb = null;
-		this.graph = ga.getAverageGraph();
+		this.graph = acc.getAverageGraph(edgeType, distCutoff);
 		this.setIsGraphWeighted(true);
 		
 		// assign consensus secondary structure
-		if(ssList != null && ssList.size() > 0) {
-			SecondaryStructure consensusSS = SecondaryStructure.getConsensusSecondaryStructure(seq, ssList, consensusSSthresh);
+		if(acc.getNumSecondaryStructures() > 0) {
+			SecondaryStructure consensusSS = acc.getConsensusSecondaryStructure(consensusSSthresh);
 			System.out.println("Consensus Secondary Structure:");
 			this.setSecondaryStructure(consensusSS);
 		} else {
@@ -103,75 +156,50 @@ public class CaspServerPredictionsModel extends Model {
 	}
 	
 	/**
-	 * Scans all prediction files in the given directory to obtain the full sequence. This is assumed
-	 * to be the longest sequence found in any of the files.
-	 * Side effects: Sets the caspTargetNum and ssList members from information found in the files.
-	 * @param modelDirectory the directory where the predictions are to be loaded from
-	 * @param onlyFirstModels whether only predictions assigned as model 1 are to be considered
-	 * @return the longest sequence found in any of the considered prediction files
+	 * Starts loading the given prediction file in the given pool or, if the pool
+	 * is null, loads it right away.
 	 */
-	private String loadSequenceFromDirectory(File modelDirectory, boolean onlyFirstModels, double consensusSSthresh) {
-		// load files
-		String newSeq = "";
-		File[] files = modelDirectory.listFiles();
-		int numLoaded = 0;
-		int pdbErrors = 0;
-		PdbAsymUnit fullpdb;
-		PdbChain pdb;
-		ssList = new ArrayList<SecondaryStructure>();	// load also secondary structure
-		System.out.println("Loading sequence information...");
-		System.out.println("Files in directory: " + files.length);
-		for(File f:files) {
-			if(f.isFile()) {
-				//System.out.println(f);
-				// load structure
-				PdbfileParser parser = new PdbfileParser(f.getAbsolutePath());
-				//if(pdb==null) pdbErrors++; else {
-					try {
-						String[] chains = parser.getChains();
-						Integer[] models = parser.getModels();
-						if(chains==null || models==null || (onlyFirstModels && models[0] != 1)) continue;	// skip if not model 1
-						fullpdb = new PdbAsymUnit(f,models[0]);
-						pdb = fullpdb.getChain(chains[0]); // load first chain and first model	
-						if(caspTargetNum <= 0) caspTargetNum = pdb.getTargetNum();
-						
-						// extract secondary structure
-						if(Start.isDsspAvailable() && consensusSSthresh > 0) {
-							SecondaryStructure ss = null;
-							try {
-								ss = DsspRunner.runDssp(pdb, Start.DSSP_EXECUTABLE, Start.DSSP_PARAMETERS);
-							} catch (IOException e) {
-								// we don't want to print 50x that DSSP does not work
-							}
-							if(ss != null) {
-								ssList.add(ss);
-							} //else dsspError = true;
-						}
-						
-					} catch (PdbLoadException e) {
-						//System.err.println(e.getMessage());					
-						pdbErrors++;
-						continue;
-					} catch (IOException e) {
-						pdbErrors++;
-						continue;
-					} catch (FileFormatException e) {
-						pdbErrors++;
-						continue;
-					}
-				//}
-				numLoaded++;
-					
-				// extract meta data
-				if(pdb.getObsSequence().length() > newSeq.length()) {
-					newSeq = pdb.getObsSequence();
-				}
+	private static Future<Prediction> submitPrediction(ExecutorService pool, final File f, final String edgeType, final double distCutoff, final boolean onlyFirstModels, final boolean runDssp) {
+		Callable<Prediction> task = new Callable<Prediction>() {
+			public Prediction call() throws Exception {
+				return loadPrediction(f, edgeType, distCutoff, onlyFirstModels, runDssp);
+			}
+		};
+		if(pool != null) {
+			return pool.submit(task);
+		}
+		FutureTask<Prediction> future = new FutureTask<Prediction>(task);
+		future.run();
+		return future;
+	}
+	
+	/**
+	 * Loads the first chain of the first model of a prediction file and derives 
+	 * everything needed from it, so that the chain itself can be dropped right away.
+	 * @return the prediction or null if the file is to be skipped
+	 */
+	private static Prediction loadPrediction(File f, String edgeType, double distCutoff, boolean onlyFirstModels, boolean runDssp) throws PdbLoadException, IOException, FileFormatException {
+		PdbfileParser parser = new PdbfileParser(f.getAbsolutePath());
+		String[] chains = parser.getChains();
+		Integer[] models = parser.getModels();
+		if(chains==null || models==null || (onlyFirstModels && models[0] != 1)) return null;	// skip if not model 1
+		PdbAsymUnit fullpdb = new PdbAsymUnit(f,models[0]);
+		PdbChain pdb = fullpdb.getChain(chains[0]); // load first chain and first model
+		
+		Prediction p = new Prediction();
+		p.sequence = pdb.getObsSequence();
+		p.targetNum = pdb.getTargetNum();
+		p.graph = pdb.getRIGraph(edgeType, distCutoff);
+		
+		// extract secondary structure, dssp runs as a separate process for each file
+		if(runDssp) {
+			try {
+				p.ss = DsspRunner.runDssp(pdb, Start.DSSP_EXECUTABLE, Start.DSSP_PARAMETERS);
+			} catch (IOException e) {
+				// we don't want to print 50x that DSSP does not work
 			}
 		}
-		//System.out.println("Structures loaded: " + numLoaded);
-		//System.out.println("PdbChain errors: " + pdbErrors);
-		System.out.println("Sequence length: " + newSeq.length());
-		return (newSeq.length() > 0?newSeq:null);
+		return p;
 	}
 	
 	@SuppressWarnings("unused")
@@ -0,0 +1,337 @@
+package cmview.datasources;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.io.mmcif.MMcifParser;
+import org.biojava.nbio.structure.io.mmcif.SimpleMMcifConsumer;
+import org.biojava.nbio.structure.io.mmcif.SimpleMMcifParser;
+
+/**
+ * Reads a single chain (and optionally a single model) from an mmCIF file
+ * without building objects for the rest of the file. Meant for huge entries
+ * like ribosomes or virus capsids, of which only one chain is shown.
+ * <p>
+ * The file is memory mapped and scanned once. Rows of the _atom_site loop are
+ * tokenized in place and only the rows of the requested chain and model are
+ * copied, together with all other categories, into a reduced mmCIF text which
+ * is then parsed by BioJava as usual. Rows of other chains are skipped without
+ * allocating anything, as is the _atom_site_anisotrop loop (not used by CMView).
+ * Memory use is therefore bounded by the size of the chain plus the (small)
+ * non-coordinate categories rather than by the size of the file.
+ * <p>
+ * The same scan (without any copying) lists the chains and models of the file.
+ * The listing is kept, and readers are shared through the {@link StructureCache},
+ * so a file is listed once however many dialogs and models ask for it.
+ */
+public class ChainCifReader {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final String ATOM_SITE = "_atom_site.";
+	private static final String ANISOTROP = "_atom_site_anisotrop.";
+	private static final byte[] ATOM = toBytes("ATOM");
+
+	/*--------------------------- member variables --------------------------*/
+	private final File cifFile;
+	private MappedByteBuffer in;
+	private byte[] out;				// the reduced mmCIF text, null when only listing
+	private int outLength;
+	private LinkedHashSet<String> chainCodes;	// chains with polymer atoms, null if not listed yet
+	private LinkedHashSet<Integer> modelSerials;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	public ChainCifReader(File cifFile) {
+		this.cifFile = cifFile;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Returns a structure containing only the given chain.
+	 * @param pdbChainCode the author chain code, null for the first chain in the file
+	 * @param modelSerial the model number, 0 to keep the chain in all models
+	 * @throws IOException if the file can not be read
+	 */
+	public synchronized Structure read(String pdbChainCode, int modelSerial) throws IOException {
+		out = new byte[1 << 20];
+		outLength = 0;
+		scan(pdbChainCode, modelSerial);
+		MMcifParser parser = new SimpleMMcifParser();
+		SimpleMMcifConsumer consumer = new SimpleMMcifConsumer();
+		parser.addMMcifConsumer(consumer);
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(out, 0, outLength), "ISO-8859-1"));
+		out = null;
+		parser.parse(br);
+		br.close();
+		return consumer.getStructure();
+	}
+
+	/**
+	 * Returns the author chain codes of the chains with polymer (ATOM) records,
+	 * in the order of the file.
+	 * @throws IOException if the file can not be read
+	 */
+	public synchronized String[] getChainCodes() throws IOException {
+		if(chainCodes == null) list();
+		return chainCodes.toArray(new String[chainCodes.size()]);
+	}
+
+	/**
+	 * Returns the model numbers of the file.
+	 * @throws IOException if the file can not be read
+	 */
+	public synchronized Integer[] getModelSerials() throws IOException {
+		if(modelSerials == null) list();
+		return modelSerials.toArray(new Integer[modelSerials.size()]);
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private void list() throws IOException {
+		chainCodes = new LinkedHashSet<String>();
+		modelSerials = new LinkedHashSet<Integer>();
+		out = null;
+		scan(null, 0);
+		if(modelSerials.isEmpty()) modelSerials.add(1);
+	}
+
+	/**
+	 * Maps the file and filters (or lists) it.
+	 */
+	private void scan(String pdbChainCode, int modelSerial) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(cifFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File " + cifFile + " too large for chain selective reading");
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			filter(pdbChainCode, modelSerial);
+		} finally {
+			raf.close();
+			in = null;
+		}
+	}
+
+	/**
+	 * Copies the file line by line to the output, filtering the atom site rows.
+	 */
+	private void filter(String pdbChainCode, int modelSerial) {
+		byte[] chain = (pdbChainCode == null) ? null : toBytes(pdbChainCode);
+		byte[] model = (modelSerial <= 0) ? null : toBytes(Integer.toString(modelSerial));
+
+		int limit = in.limit();
+		int pos = 0;
+		boolean inTextField = false;		// inside a ;-delimited multi line value
+		int pendingLoop = -1;				// start of a "loop_" line not copied yet
+		ArrayList<String> atomSiteColumns = null;
+		boolean inAtomSiteLoop = false;		// reading the header or rows of the atom site loop
+		boolean skipLoop = false;			// dropping the current loop entirely
+		int chainCol = -1, modelCol = -1, groupCol = -1;
+		boolean listing = (out == null);
+		long lastChain = -1, lastModel = -1;		// bounds of the last listed values
+
+		while(pos < limit) {
+			int end = pos;
+			while(end < limit && in.get(end) != '\n') end++;
+			int next = Math.min(end + 1, limit);
+			byte first = (end > pos) ? in.get(pos) : (byte) '\n';
+
+			if(first == ';') {
+				inTextField = !inTextField;
+			} else if(!inTextField) {
+				if(startsWith(pos, end, "loop_")) {
+					// decide once the category of the loop is known
+					pendingLoop = pos;
+					inAtomSiteLoop = false;
+					skipLoop = false;
+					pos = next;
+					continue;
+				}
+				if(first == '_') {
+					if(pendingLoop >= 0) {
+						// first column of a loop
+						if(startsWith(pos, end, ANISOTROP)) {
+							skipLoop = true;
+						} else {
+							copy(pendingLoop, pos);
+							if(startsWith(pos, end, ATOM_SITE)) {
+								inAtomSiteLoop = true;
+								atomSiteColumns = new ArrayList<String>();
+							}
+						}
+						pendingLoop = -1;
+					}
+					if(skipLoop && startsWith(pos, end, ANISOTROP)) {
+						pos = next;
+						continue;
+					}
+					if(atomSiteColumns != null && startsWith(pos, end, ATOM_SITE)) {
+						atomSiteColumns.add(toString(pos + ATOM_SITE.length(), trimEnd(pos, end)));
+						copy(pos, next);
+						pos = next;
+						continue;
+					}
+					// a key value pair or the columns of another loop
+					inAtomSiteLoop = false;
+					atomSiteColumns = null;
+					skipLoop = false;
+				} else if(first == '#' || startsWith(pos, end, "data_")) {
+					inAtomSiteLoop = false;
+					atomSiteColumns = null;
+					skipLoop = false;
+				} else if(inAtomSiteLoop && end > pos) {
+					// an atom site row
+					if(atomSiteColumns != null) {
+						chainCol = atomSiteColumns.indexOf("auth_asym_id");
+						if(chainCol < 0) chainCol = atomSiteColumns.indexOf("label_asym_id");
+						modelCol = atomSiteColumns.indexOf("pdbx_PDB_model_num");
+						groupCol = atomSiteColumns.indexOf("group_PDB");
+						atomSiteColumns = null;
+					}
+					if(listing) {
+						// only allocate when the chain or model differs from the previous row
+						if(chainCol >= 0 && matches(pos, end, groupCol, ATOM)) {
+							long field = findField(pos, end, chainCol);
+							if(!sameValue(field, lastChain)) {
+								chainCodes.add(toString((int) (field >>> 32), (int) field));
+								lastChain = field;
+							}
+						}
+						if(modelCol >= 0) {
+							long field = findField(pos, end, modelCol);
+							if(!sameValue(field, lastModel)) {
+								modelSerials.add(Integer.valueOf(toString((int) (field >>> 32), (int) field)));
+								lastModel = field;
+							}
+						}
+						pos = next;
+						continue;
+					}
+					if(chain == null && chainCol >= 0) {
+						// no chain given: keep the chain of the first atom
+						long field = findField(pos, end, chainCol);
+						chain = toBytes(toString((int) (field >>> 32), (int) field));
+					}
+					if(matches(pos, end, chainCol, chain) && matches(pos, end, modelCol, model)) {
+						copy(pos, next);
+					}
+					pos = next;
+					continue;
+				}
+			}
+			if(!skipLoop) copy(pos, next);
+			pos = next;
+		}
+	}
+
+	/**
+	 * Returns true if the given column of the row [pos,end) equals value, or if
+	 * there is no such column or no value to compare with.
+	 */
+	private boolean matches(int pos, int end, int col, byte[] value) {
+		if(col < 0 || value == null) return true;
+		long field = findField(pos, end, col);
+		int start = (int) (field >>> 32);
+		int stop = (int) field;
+		if(stop - start != value.length) return false;
+		for(int k = 0; k < value.length; k++) {
+			if(in.get(start + k) != value[k]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the bounds of the given whitespace separated field of the row
+	 * [pos,end) as start &lt;&lt; 32 | end, without quotes.
+	 */
+	private long findField(int pos, int end, int col) {
+		int p = pos;
+		for(int k = 0; ; k++) {
+			while(p < end && isSpace(in.get(p))) p++;
+			int start = p;
+			int stop;
+			byte c = (p < end) ? in.get(p) : 0;
+			if(c == '\'' || c == '"') {
+				// quoted value, ends at a matching quote followed by whitespace
+				start = ++p;
+				while(p < end && !(in.get(p) == c && (p + 1 == end || isSpace(in.get(p + 1))))) p++;
+				stop = p;
+				if(p < end) p++;
+			} else {
+				while(p < end && !isSpace(in.get(p))) p++;
+				stop = p;
+			}
+			if(k == col || p >= end) {
+				return ((long) start << 32) | stop;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the two field bounds (see {@link #findField}) hold the same
+	 * value. Bounds of -1 never match.
+	 */
+	private boolean sameValue(long a, long b) {
+		if(a == -1 || b == -1) return false;
+		int aStart = (int) (a >>> 32), bStart = (int) (b >>> 32);
+		int len = (int) a - aStart;
+		if((int) b - bStart != len) return false;
+		for(int k = 0; k < len; k++) {
+			if(in.get(aStart + k) != in.get(bStart + k)) return false;
+		}
+		return true;
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private boolean startsWith(int pos, int end, String prefix) {
+		if(end - pos < prefix.length()) return false;
+		for(int k = 0; k < prefix.length(); k++) {
+			if(in.get(pos + k) != prefix.charAt(k)) return false;
+		}
+		return true;
+	}
+
+	private int trimEnd(int pos, int end) {
+		while(end > pos && isSpace(in.get(end - 1))) end--;
+		return end;
+	}
+
+	private void copy(int from, int to) {
+		if(out == null) return;
+		int len = to - from;
+		if(outLength + len > out.length) {
+			out = Arrays.copyOf(out, Math.max(2 * out.length, outLength + len));
+		}
+		in.position(from);
+		in.get(out, outLength, len);
+		outLength += len;
+	}
+
+	private String toString(int from, int to) {
+		byte[] b = new byte[to - from];
+		for(int k = 0; k < b.length; k++) {
+			b[k] = in.get(from + k);
+		}
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] toBytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,127 @@
+package cmview.datasources;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The sizes of the common neighbourhoods of all residue pairs of a contact map,
+ * i.e. for each pair (i,j) the number of residues in contact with both i and j.
+ * Every residue's neighbourhood is stored as a row of a bit matrix, so that the
+ * common neighbourhood size of (i,j) is the population count of the AND of rows
+ * i and j. Rows are processed in parallel, results are stored as a packed
+ * upper-triangular int matrix indexed by 1-based residue serials.
+ */
+public class CommonNbhSizeMatrix {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final int ROWS_PER_TASK = 64;		// granularity of the fork/join tasks
+
+	/*--------------------------- member variables --------------------------*/
+	private final int size;
+	private final int words;		// longs per bit matrix row
+	private final long[] nbhs;		// bit matrix, row i-1 holds the neighbours of residue i
+	private final int[] sizes;		// packed upper triangle, row major
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Computes the common neighbourhood sizes for the given contacts.
+	 * @param size the number of residues
+	 * @param contacts the contacts as a flat array of residue serials (i0,j0,i1,j1,...),
+	 * the direction of contacts is ignored
+	 * @param pool the pool to process rows in or null to compute sequentially
+	 */
+	public CommonNbhSizeMatrix(int size, int[] contacts, ForkJoinPool pool) {
+		long cells = (long) size * (size - 1) / 2;
+		if(cells > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Matrix size " + size + " too large for a packed triangular matrix");
+		}
+		this.size = size;
+		this.words = (size + 63) >>> 6;
+		this.nbhs = new long[size * words];
+		this.sizes = new int[(int) cells];
+
+		for(int k = 0; k < contacts.length; k += 2) {
+			int i = contacts[k] - 1;
+			int j = contacts[k+1] - 1;
+			if(i == j) continue;
+			nbhs[i * words + (j >>> 6)] |= 1L << j;
+			nbhs[j * words + (i >>> 6)] |= 1L << i;
+		}
+
+		RowsTask all = new RowsTask(0, size);
+		if(pool == null) {
+			all.compute();
+		} else {
+			pool.invoke(all);
+		}
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the number of residues of this matrix */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of residues in contact with both i and j (order does
+	 * not matter), 0 for i == j.
+	 */
+	public int get(int i, int j) {
+		if(i == j) return 0;
+		if(i > j) {
+			int t = i; i = j; j = t;
+		}
+		return sizes[getRowOffset(i) + (j - i - 1)];
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private int getRowOffset(int i) {
+		long row = i - 1;
+		return (int) (row * (2 * size - row - 1) / 2);
+	}
+
+	/**
+	 * Fills the packed row of residue i (0-based) with the popcounts against all
+	 * residues j &gt; i.
+	 */
+	private void computeRow(int i) {
+		int offset = getRowOffset(i + 1) - (i + 1);		// position of (i,j) is offset + j
+		int rowI = i * words;
+		for(int j = i + 1; j < size; j++) {
+			int rowJ = j * words;
+			int count = 0;
+			for(int w = 0; w < words; w++) {
+				count += Long.bitCount(nbhs[rowI + w] & nbhs[rowJ + w]);
+			}
+			sizes[offset + j] = count;
+		}
+	}
+
+	/**
+	 * Computes a range of rows, splitting it until it is small enough. Rows near
+	 * the top of the triangle are longer, the splitting balances this out.
+	 */
+	private class RowsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		RowsTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to - from <= ROWS_PER_TASK || getPool() == null) {
+				for(int i = from; i < to; i++) {
+					computeRow(i);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RowsTask(from, mid), new RowsTask(mid, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package cmview.datasources;
+
+/**
+ * Compares the contacts of two models mapped onto a common alignment. The
+ * contacts of each model are kept as an n x n bit matrix (one row of longs per
+ * alignment column), so that common contacts, contacts unique to either model
+ * and their unions are simple AND, ANDNOT and OR operations over whole words.
+ * <p>
+ * The sizes of all views are kept up to date word by word: when a contact is
+ * added or removed only its word is looked at again, when the contacts of a
+ * model are replaced only the words that actually changed. Counts, the Jaccard
+ * index and membership in the views are thus available without creating any
+ * contact sets, the sets themselves are only built when requested and cached
+ * until the next change. The returned sets are shared and must not be modified.
+ */
+public class ContactComparison {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final int COMMON = 0;
+	private static final int ONLY_FIRST = 1;
+	private static final int ONLY_SECOND = 2;
+	private static final int BOTH = 3;
+	private static final int ALL_BUT_COMMON = 4;
+
+	/*--------------------------- member variables --------------------------*/
+	private final int size;				// alignment length
+	private final int words;			// longs per row
+	private long[] first;				// bit matrix of the first model, bit (i,j) is row i-1, column j-1
+	private long[] second;				// bit matrix of the second model
+
+	private int numCommon;
+	private int numOnlyFirst;
+	private int numOnlySecond;
+
+	private ContactSet[] views;			// materialized views, null if not built yet
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a comparison of two empty contact maps.
+	 * @param size the alignment length, contacts are (i,j) with 1 &lt;= i,j &lt;= size
+	 */
+	public ContactComparison(int size) {
+		long cells = (long) size * ((size + 63) >>> 6);
+		if(cells > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Alignment length " + size + " too large for a contact comparison");
+		}
+		this.size = size;
+		this.words = (size + 63) >>> 6;
+		this.first = new long[(int) cells];
+		this.second = new long[(int) cells];
+		this.views = new ContactSet[5];
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the alignment length */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Replaces the contacts of the first model (in alignment indexing).
+	 */
+	public void setFirstContacts(ContactSet contacts) {
+		long[] updated = toBitMatrix(contacts);
+		update(updated, second);	// copies the changed words
+	}
+
+	/**
+	 * Replaces the contacts of the second model (in alignment indexing).
+	 */
+	public void setSecondContacts(ContactSet contacts) {
+		long[] updated = toBitMatrix(contacts);
+		update(first, updated);		// copies the changed words
+	}
+
+	/**
+	 * Adds or removes contact (i,j) (in alignment indexing) to/from the contacts
+	 * of the first or second model.
+	 */
+	public void setContact(boolean secondModel, int i, int j, boolean present) {
+		checkBounds(i, j);
+		int w = (i - 1) * words + ((j - 1) >>> 6);
+		long bit = 1L << (j - 1);
+		long a = first[w], b = second[w];
+		long na = a, nb = b;
+		if(secondModel) {
+			nb = present ? b | bit : b & ~bit;
+		} else {
+			na = present ? a | bit : a & ~bit;
+		}
+		if(updateWord(w, na, nb)) {
+			views = new ContactSet[5];
+		}
+	}
+
+	/** Returns whether contact (i,j) is present in both models */
+	public boolean isCommon(int i, int j) {
+		return getBit(first, i, j) && getBit(second, i, j);
+	}
+
+	/** Returns whether contact (i,j) is present only in the first model */
+	public boolean isOnlyFirst(int i, int j) {
+		return getBit(first, i, j) && !getBit(second, i, j);
+	}
+
+	/** Returns whether contact (i,j) is present only in the second model */
+	public boolean isOnlySecond(int i, int j) {
+		return !getBit(first, i, j) && getBit(second, i, j);
+	}
+
+	/** Returns the number of contacts present in both models */
+	public int getNumCommon() {
+		return numCommon;
+	}
+
+	/** Returns the number of contacts present only in the first model */
+	public int getNumOnlyFirst() {
+		return numOnlyFirst;
+	}
+
+	/** Returns the number of contacts present only in the second model */
+	public int getNumOnlySecond() {
+		return numOnlySecond;
+	}
+
+	/** Returns the number of contacts present in any of the two models */
+	public int getNumBoth() {
+		return numCommon + numOnlyFirst + numOnlySecond;
+	}
+
+	/**
+	 * Returns the Jaccard index (contact map overlap) of the two models, i.e.
+	 * common contacts over all contacts, 0 if there are no contacts.
+	 */
+	public double getJaccardIndex() {
+		int union = getNumBoth();
+		return union == 0 ? 0 : (double) numCommon / union;
+	}
+
+	/** Returns the contacts present in both models */
+	public ContactSet getCommonContacts() {
+		return getView(COMMON);
+	}
+
+	/** Returns the contacts present only in the first model */
+	public ContactSet getOnlyFirstContacts() {
+		return getView(ONLY_FIRST);
+	}
+
+	/** Returns the contacts present only in the second model */
+	public ContactSet getOnlySecondContacts() {
+		return getView(ONLY_SECOND);
+	}
+
+	/** Returns the contacts present in any of the two models */
+	public ContactSet getBothContacts() {
+		return getView(BOTH);
+	}
+
+	/** Returns the contacts present in exactly one of the two models */
+	public ContactSet getAllButCommonContacts() {
+		return getView(ALL_BUT_COMMON);
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private long[] toBitMatrix(ContactSet contacts) {
+		long[] bits = new long[first.length];
+		int[] pairs = contacts.getPairs();
+		for(int k = 0; k < pairs.length; k += 2) {
+			int i = pairs[k];
+			int j = pairs[k+1];
+			checkBounds(i, j);
+			bits[(i - 1) * words + ((j - 1) >>> 6)] |= 1L << (j - 1);
+		}
+		return bits;
+	}
+
+	private void checkBounds(int i, int j) {
+		if(i < 1 || j < 1 || i > size || j > size) {
+			throw new IndexOutOfBoundsException("Contact (" + i + "," + j + ") outside of alignment of length " + size);
+		}
+	}
+
+	private boolean getBit(long[] bits, int i, int j) {
+		if(i < 1 || j < 1 || i > size || j > size) return false;
+		return (bits[(i - 1) * words + ((j - 1) >>> 6)] & (1L << (j - 1))) != 0;
+	}
+
+	/**
+	 * Adjusts the counts for the words where the new matrices differ from the
+	 * current ones.
+	 */
+	private void update(long[] newFirst, long[] newSecond) {
+		boolean changed = false;
+		for(int w = 0; w < newFirst.length; w++) {
+			changed |= updateWord(w, newFirst[w], newSecond[w]);
+		}
+		if(changed) {
+			views = new ContactSet[5];
+		}
+	}
+
+	/**
+	 * Sets word w of both matrices, adjusting the counts.
+	 * @return whether the word changed
+	 */
+	private boolean updateWord(int w, long na, long nb) {
+		long a = first[w], b = second[w];
+		if(a == na && b == nb) return false;
+		numCommon     += Long.bitCount(na & nb)  - Long.bitCount(a & b);
+		numOnlyFirst  += Long.bitCount(na & ~nb) - Long.bitCount(a & ~b);
+		numOnlySecond += Long.bitCount(nb & ~na) - Long.bitCount(b & ~a);
+		first[w] = na;
+		second[w] = nb;
+		return true;
+	}
+
+	private ContactSet getView(int view) {
+		if(views[view] == null) {
+			views[view] = buildView(view);
+		}
+		return views[view];
+	}
+
+	/**
+	 * Collects the set bits of the given combination of the two matrices.
+	 */
+	private ContactSet buildView(int view) {
+		int count;
+		switch(view) {
+		case COMMON:		count = numCommon; break;
+		case ONLY_FIRST:	count = numOnlyFirst; break;
+		case ONLY_SECOND:	count = numOnlySecond; break;
+		case BOTH:			count = getNumBoth(); break;
+		default:			count = numOnlyFirst + numOnlySecond;
+		}
+		ContactSet set = new ContactSet(count);
+		if(count == 0) return set;
+		for(int row = 0; row < size; row++) {
+			for(int w = 0; w < words; w++) {
+				long a = first[row * words + w];
+				long b = second[row * words + w];
+				long bits;
+				switch(view) {
+				case COMMON:		bits = a & b; break;
+				case ONLY_FIRST:	bits = a & ~b; break;
+				case ONLY_SECOND:	bits = b & ~a; break;
+				case BOTH:			bits = a | b; break;
+				default:			bits = a ^ b;
+				}
+				while(bits != 0) {
+					int col = (w << 6) + Long.numberOfTrailingZeros(bits);
+					set.add(row + 1, col + 1);
+					bits &= bits - 1;
+				}
+			}
+		}
+		return set;
+	}
+}
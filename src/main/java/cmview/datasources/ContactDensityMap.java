@@ -0,0 +1,246 @@
+package cmview.datasources;
+
+/**
+ * Incrementally maintained contact density map. The density of cell (i,j) is the
+ * number of contacts in the triangle spanned by residues i..j, expressed as a
+ * z-score relative to all cells on the same diagonal (same sequence separation)
+ * and finally mapped to [0,1], with z-scores cut off at -3 and 3.
+ * <p>
+ * The contact counts are kept as a packed summed-area table, built in a single
+ * pass over the matrix, together with running sums, sums of squares and the
+ * range of the counts per diagonal. Adding or removing contact (a,b) only
+ * touches the cells (i,j) with i &lt;= a and j &gt;= b, so editing contacts does
+ * not require rebuilding the whole matrix. The scaling is recomputed lazily on
+ * the next read from the per diagonal values, only diagonals whose minimum or
+ * maximum count may have changed are scanned again.
+ * <p>
+ * This gives the same values as the original full recomputation, which counted
+ * the diagonal and used a recurrence that differs from the plain contact count
+ * by a constant per diagonal, which cancels out in the z-scores.
+ */
+public class ContactDensityMap {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final double MAX_Z_SCORE = 3;	// z-scores beyond +/- this value are cut off for scaling
+
+	/*--------------------------- member variables --------------------------*/
+	private final int size;
+	private final boolean[] contacts;		// contact (i,j), i<j, packed like counts
+	private final int[] counts;				// number of contacts (a,b) with i<=a<b<=j, packed upper triangle
+	private final long[] diagSum;			// sum of counts per sequence separation
+	private final long[] diagSumSq;			// sum of squared counts per sequence separation
+	private final int[] diagMin;			// smallest and largest count per sequence separation,
+	private final int[] diagMax;			// valid if !rangeStale
+	private final int[] diagMinCells;		// number of cells of a diagonal holding its smallest
+	private final int[] diagMaxCells;		// and its largest count
+	private final boolean[] rangeStale;		// whether the range of a diagonal has to be rescanned
+
+	private double[] diagAvg;				// per diagonal average and standard deviation,
+	private double[] diagStd;				// valid if !dirty
+	private double min, max;				// range of the z-scores used for scaling
+	private boolean dirty;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates an empty density map for the given number of residues.
+	 */
+	public ContactDensityMap(int size) {
+		long cells = (long) size * (size - 1) / 2;
+		if(cells > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Matrix size " + size + " too large for a density map");
+		}
+		this.size = size;
+		this.contacts = new boolean[(int) cells];
+		this.counts = new int[(int) cells];
+		this.diagSum = new long[size];
+		this.diagSumSq = new long[size];
+		this.diagMin = new int[size];
+		this.diagMax = new int[size];
+		this.diagMinCells = new int[size];
+		this.diagMaxCells = new int[size];
+		this.rangeStale = new boolean[size];
+		this.dirty = true;
+	}
+
+	/**
+	 * Creates the density map of the given contacts.
+	 * @param pairs the contacts (i,j), i &lt; j, as consecutive residue serials
+	 */
+	public ContactDensityMap(int size, int[] pairs) {
+		this(size);
+		for(int k = 0; k < pairs.length; k += 2) {
+			if(pairs[k] < pairs[k+1]) contacts[index(pairs[k], pairs[k+1])] = true;
+		}
+		// summed-area recurrence: counts(i,j) = counts(i+1,j) + counts(i,j-1) - counts(i+1,j-1) + contact(i,j),
+		// rows from the bottom so that row i+1 is complete when row i is computed
+		for(int i = size - 1; i >= 1; i--) {
+			int rowOffset = index(i, i + 1) - (i + 1);				// position of (i,j) is rowOffset + j
+			int nextRowOffset = (i + 1 < size) ? index(i + 1, i + 2) - (i + 2) : 0;
+			for(int j = i + 1; j <= size; j++) {
+				int k = rowOffset + j;
+				int count = contacts[k] ? 1 : 0;
+				if(j - i >= 2) {
+					count += counts[nextRowOffset + j] + counts[k - 1];
+					if(j - i >= 3) count -= counts[nextRowOffset + j - 1];
+				}
+				counts[k] = count;
+				int sep = j - i;
+				diagSum[sep] += count;
+				diagSumSq[sep] += (long) count * count;
+				if(j == size) {
+					// first cell of the diagonal visited
+					diagMin[sep] = diagMax[sep] = count;
+					diagMinCells[sep] = diagMaxCells[sep] = 1;
+				} else {
+					addToRange(sep, count);
+				}
+			}
+		}
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the number of residues of this map */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Adds contact (i,j), i &lt; j. Does nothing if the contact is already present.
+	 */
+	public void addContact(int i, int j) {
+		if(i >= j || contacts[index(i,j)]) return;
+		contacts[index(i,j)] = true;
+		updateCounts(i, j, 1);
+	}
+
+	/**
+	 * Removes contact (i,j), i &lt; j. Does nothing if the contact is not present.
+	 */
+	public void removeContact(int i, int j) {
+		if(i >= j || !contacts[index(i,j)]) return;
+		contacts[index(i,j)] = false;
+		updateCounts(i, j, -1);
+	}
+
+	/**
+	 * Returns the scaled density of cell (i,j), i &lt;= j, usually within [0,1].
+	 */
+	public double getDensity(int i, int j) {
+		if(dirty) updateScaling();
+		double z = (i == j) ? 0 : getZScore(i, j);
+		if(max - min > 0) {
+			return (z - min) / (max - min);
+		}
+		return z;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private int index(int i, int j) {
+		long row = i - 1;
+		return (int) (row * (2 * size - row - 1) / 2) + (j - i - 1);
+	}
+
+	/**
+	 * Adds delta (1 or -1) to the count of every cell (i',j') with i' &lt;= i and
+	 * j' &gt;= j, keeping the diagonal sums and ranges up to date.
+	 */
+	private void updateCounts(int i, int j, int delta) {
+		for(int a = 1; a <= i; a++) {
+			int rowOffset = index(a, a + 1) - (a + 1);		// position of (a,b) is rowOffset + b
+			for(int b = j; b <= size; b++) {
+				int k = rowOffset + b;
+				int sep = b - a;
+				int old = counts[k];
+				int count = old + delta;
+				counts[k] = count;
+				diagSum[sep] += delta;
+				diagSumSq[sep] += 2L * old * delta + (long) delta * delta;
+				if(rangeStale[sep]) continue;
+				// the bound left by the cell only moves if no other cell holds it
+				if(old == diagMin[sep] && --diagMinCells[sep] == 0 || old == diagMax[sep] && --diagMaxCells[sep] == 0) {
+					rangeStale[sep] = true;
+				} else {
+					addToRange(sep, count);
+				}
+			}
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Extends the range of the given diagonal by a cell with the given count.
+	 */
+	private void addToRange(int sep, int count) {
+		if(count < diagMin[sep]) {
+			diagMin[sep] = count;
+			diagMinCells[sep] = 1;
+		} else if(count == diagMin[sep]) {
+			diagMinCells[sep]++;
+		}
+		if(count > diagMax[sep]) {
+			diagMax[sep] = count;
+			diagMaxCells[sep] = 1;
+		} else if(count == diagMax[sep]) {
+			diagMaxCells[sep]++;
+		}
+	}
+
+	/**
+	 * Recomputes the range of the counts of the diagonal of the given sequence
+	 * separation.
+	 */
+	private void scanRange(int sep) {
+		int k = index(1, 1 + sep);
+		diagMin[sep] = diagMax[sep] = counts[k];
+		diagMinCells[sep] = diagMaxCells[sep] = 1;
+		for(int i = 2; i + sep <= size; i++) {
+			k += size - i + 1;		// rows get shorter by one, the position moves by the row length
+			addToRange(sep, counts[k]);
+		}
+		rangeStale[sep] = false;
+	}
+
+	private double getZScore(int i, int j) {
+		int sep = j - i;
+		if(diagStd[sep] == 0) return 0;
+		return (counts[index(i,j)] - diagAvg[sep]) / diagStd[sep];
+	}
+
+	/**
+	 * Recomputes the per diagonal statistics from the running sums and the range
+	 * of all z-scores from the range of the counts of each diagonal.
+	 */
+	private void updateScaling() {
+		diagAvg = new double[size];
+		diagStd = new double[size];
+		// the diagonal has a z-score of 0, so the range always contains 0
+		double lo = 0, hi = 0;
+		for(int sep = 1; sep < size; sep++) {
+			long n = size - sep;
+			diagAvg[sep] = (double) diagSum[sep] / n;
+			diagStd[sep] = Math.sqrt(getVarianceNumerator(n, diagSum[sep], diagSumSq[sep])) / n;
+			if(diagStd[sep] == 0) continue;		// all z-scores 0
+			if(rangeStale[sep]) scanRange(sep);
+			lo = Math.min(lo, (diagMin[sep] - diagAvg[sep]) / diagStd[sep]);
+			hi = Math.max(hi, (diagMax[sep] - diagAvg[sep]) / diagStd[sep]);
+		}
+		max = Math.min(hi, MAX_Z_SCORE);
+		min = Math.max(lo, -MAX_Z_SCORE);
+		dirty = false;
+	}
+
+	/**
+	 * Returns n*sumSq - sum^2 (= n^2 * variance), exactly 0 if all values are
+	 * equal. Uses long arithmetic if possible to avoid cancellation errors.
+	 */
+	private static double getVarianceNumerator(long n, long sum, long sumSq) {
+		try {
+			return Math.subtractExact(Math.multiplyExact(n, sumSq), Math.multiplyExact(sum, sum));
+		} catch (ArithmeticException e) {
+			return Math.max(0, (double) n * sumSq - (double) sum * sum);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package cmview.datasources;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import owl.core.structure.features.SecStrucElement;
+import owl.core.structure.features.SecondaryStructure;
+import owl.core.structure.graphs.RIGEdge;
+import owl.core.structure.graphs.RIGNode;
+import owl.core.structure.graphs.RIGraph;
+import edu.uci.ics.jung.graph.util.Pair;
+
+/**
+ * Averages the contact maps of an ensemble of models (NMR models, decoys, server
+ * predictions) without keeping the models' graphs. Every contact added increments
+ * a counter of a packed matrix (only the upper triangle for undirected graphs),
+ * so memory depends on the sequence length only and not on the number of models.
+ * Models can be weighted, the weight of a contact in the average graph is the
+ * summed weight of the models having it divided by the total weight.
+ * <p>
+ * A consensus secondary structure is accumulated the same way, by counting the
+ * secondary structure types assigned to each residue.
+ */
+public class ContactFrequencyAccumulator {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final char[] SS_TYPES = {SecStrucElement.HELIX, SecStrucElement.STRAND, SecStrucElement.TURN};
+
+	/*--------------------------- member variables --------------------------*/
+	private String sequence;
+	private int size;					// sequence length, residue serials are 1..size
+	private boolean directed;
+	private float[] counts;				// summed model weights per cell, null until the first graph
+	private double totalWeight;
+	private int numModels;
+
+	private int[] ssCounts;				// number of models per residue (index serial-1) and type
+	private int numSecondaryStructures;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates an empty accumulator for models with the given sequence.
+	 */
+	public ContactFrequencyAccumulator(String sequence) {
+		startOver(sequence);
+		this.ssCounts = new int[size * SS_TYPES.length];
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Discards the contacts added so far and continues with models of the given
+	 * sequence. Secondary structure counts are kept.
+	 */
+	public void startOver(String sequence) {
+		long cells = (long) sequence.length() * sequence.length();
+		if(cells > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Sequence of length " + sequence.length() + " too long for a contact frequency matrix");
+		}
+		this.sequence = sequence;
+		this.size = sequence.length();
+		this.counts = null;
+		this.totalWeight = 0;
+		this.numModels = 0;
+	}
+
+	/** Returns the sequence of the models */
+	public String getSequence() {
+		return sequence;
+	}
+
+	/** Returns the number of models whose contacts have been added */
+	public int getNumModels() {
+		return numModels;
+	}
+
+	/**
+	 * Adds the contacts of a model with weight 1.
+	 */
+	public void addContacts(RIGraph graph) {
+		addContacts(graph, 1.0);
+	}
+
+	/**
+	 * Adds the contacts of a model with the given weight. The graph is not
+	 * referenced afterwards. Contacts outside of the sequence are ignored.
+	 */
+	public void addContacts(RIGraph graph, double weight) {
+		if(counts == null) {
+			directed = graph.isDirected();
+			counts = new float[directed ? size * size : size * (size - 1) / 2];
+		}
+		for(RIGEdge edge:graph.getEdges()) {
+			Pair<RIGNode> nodes = graph.getEndpoints(edge);
+			int i = nodes.getFirst().getResidueSerial();
+			int j = nodes.getSecond().getResidueSerial();
+			int cell = getCell(i, j);
+			if(cell >= 0) counts[cell] += weight;
+		}
+		totalWeight += weight;
+		numModels++;
+	}
+
+	/**
+	 * Adds the contacts and secondary structures accumulated by another
+	 * accumulator for the same sequence, e.g. for another part of the ensemble.
+	 */
+	public void addAll(ContactFrequencyAccumulator other) {
+		if(!other.sequence.equals(sequence)) {
+			throw new IllegalArgumentException("Can not add contact frequencies of a different sequence");
+		}
+		if(other.counts != null) {
+			if(counts == null) {
+				directed = other.directed;
+				counts = new float[other.counts.length];
+			} else if(directed != other.directed) {
+				throw new IllegalArgumentException("Can not add contact frequencies of directed and undirected graphs");
+			}
+			for(int k = 0; k < counts.length; k++) {
+				counts[k] += other.counts[k];
+			}
+		}
+		totalWeight += other.totalWeight;
+		numModels += other.numModels;
+		if(other.ssCounts.length > ssCounts.length) {
+			ssCounts = Arrays.copyOf(ssCounts, other.ssCounts.length);
+		}
+		for(int k = 0; k < other.ssCounts.length; k++) {
+			ssCounts[k] += other.ssCounts[k];
+		}
+		numSecondaryStructures += other.numSecondaryStructures;
+	}
+
+	/**
+	 * Adds the secondary structure of a model to the consensus.
+	 */
+	public void addSecondaryStructure(SecondaryStructure ss) {
+		Iterator<SecStrucElement> it = ss.iterator();
+		while(it.hasNext()) {
+			SecStrucElement elem = it.next();
+			int type = getSSTypeIndex(elem.getType());
+			if(type < 0) continue;
+			int end = elem.getInterval().end;
+			if(end * SS_TYPES.length > ssCounts.length) {
+				ssCounts = Arrays.copyOf(ssCounts, Math.max(2 * ssCounts.length, end * SS_TYPES.length));
+			}
+			for(int serial = Math.max(1, elem.getInterval().beg); serial <= end; serial++) {
+				ssCounts[(serial - 1) * SS_TYPES.length + type]++;
+			}
+		}
+		numSecondaryStructures++;
+	}
+
+	/**
+	 * Returns the number of secondary structures added to the consensus.
+	 */
+	public int getNumSecondaryStructures() {
+		return numSecondaryStructures;
+	}
+
+	/**
+	 * Returns the weighted graph of all contacts occurring in any model, the
+	 * weight being the (weighted) fraction of models with the contact.
+	 */
+	public RIGraph getAverageGraph(String contactType, double cutoff) {
+		RIGraph graph = new RIGraph(sequence);
+		graph.setContactType(contactType);
+		graph.setCutoff(cutoff);
+		if(counts == null || totalWeight <= 0) return graph;
+		for(int i = 1; i <= size; i++) {
+			for(int j = directed ? 1 : i + 1; j <= size; j++) {
+				float count = counts[getCell(i, j)];
+				if(count <= 0) continue;
+				graph.addEdgeIJ(i, j);
+				graph.getEdgeFromSerials(i, j).setWeight(count / totalWeight);
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * Returns the consensus secondary structure for the sequence: every residue
+	 * gets the type assigned most often, if at least the given fraction of the
+	 * added secondary structures agree, consecutive residues of the same type form
+	 * an element.
+	 */
+	public SecondaryStructure getConsensusSecondaryStructure(double threshold) {
+		SecondaryStructure consensus = new SecondaryStructure(sequence);
+		if(numSecondaryStructures == 0) return consensus;
+		int[] elementCounts = new int[SS_TYPES.length];
+		int start = 0;
+		int startType = -1;
+		for(int serial = 1; serial <= size + 1; serial++) {
+			int type = (serial <= size) ? getConsensusType(serial, threshold) : -1;
+			if(type == startType) continue;
+			if(startType >= 0) {
+				char t = SS_TYPES[startType];
+				consensus.add(new SecStrucElement(t, start, serial - 1, Character.toString(t) + elementCounts[startType]++));
+			}
+			start = serial;
+			startType = type;
+		}
+		return consensus;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Returns the index in counts of contact (i,j) or -1 if it is outside the
+	 * matrix.
+	 */
+	private int getCell(int i, int j) {
+		if(i < 1 || j < 1 || i > size || j > size) return -1;
+		if(directed) return (i - 1) * size + (j - 1);
+		if(i == j) return -1;
+		if(i > j) {
+			int tmp = i; i = j; j = tmp;
+		}
+		// rows of the upper triangle, row i has size-i cells
+		int row = i - 1;
+		return row * size - row * (row + 1) / 2 + (j - i - 1);
+	}
+
+	private int getConsensusType(int serial, double threshold) {
+		int base = (serial - 1) * SS_TYPES.length;
+		if(base >= ssCounts.length) return -1;
+		int best = -1;
+		for(int t = 0; t < SS_TYPES.length; t++) {
+			if(ssCounts[base + t] > 0 && (best < 0 || ssCounts[base + t] > ssCounts[base + best])) best = t;
+		}
+		if(best < 0 || (double) ssCounts[base + best] / numSecondaryStructures < threshold) return -1;
+		return best;
+	}
+
+	private static int getSSTypeIndex(char type) {
+		for(int t = 0; t < SS_TYPES.length; t++) {
+			if(SS_TYPES[t] == type) return t;
+		}
+		return -1;
+	}
+}
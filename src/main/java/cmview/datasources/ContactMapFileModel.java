@@ -1,15 +1,10 @@
 package cmview.datasources;
 import cmview.Start;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 
 import org.biojava.nbio.structure.Structure;
-import org.biojava.nbio.structure.io.mmcif.MMcifParser;
-import org.biojava.nbio.structure.io.mmcif.SimpleMMcifConsumer;
-import org.biojava.nbio.structure.io.mmcif.SimpleMMcifParser;
 
 import owl.core.structure.*;
 import owl.core.structure.graphs.FileRIGraph;
@@ -56,27 +51,15 @@ public class ContactMapFileModel extends Model {
 					File cifFile = new File(Start.TEMP_DIR,pdbCode + ".cif");
 					PdbAsymUnit.grabCifFile(null, Start.PDB_FTP_URL, pdbCode, cifFile, true);
 					//PdbAsymUnit fullpdb = new PdbAsymUnit(cifFile, modelSerial);
-					MMcifParser parser = new SimpleMMcifParser();
-
-			        SimpleMMcifConsumer consumer = new SimpleMMcifConsumer();
-
-			        // The Consumer builds up the BioJava - structure object.
-			        // you could also hook in your own and build up you own data model.          
-			        parser.addMMcifConsumer(consumer);
-
-			       
-			        parser.parse(new BufferedReader(new FileReader(cifFile)));
-			         
-
-			        // now get the protein structure.
-			        Structure fullpdb = consumer.getStructure();
+					// parse the file or take the parsed structure from the on-disk cache
+					Structure fullpdb = StructureCache.readCifFile(cifFile);
 					//this.pdb = fullpdb.getChain(pdbChainCode);
 					this.pdb = fullpdb.getPolyChainByPDB(pdbChainCode, modelSerial-1);
 					super.writeTempPdbFile(); // this doesn't make sense without a pdb object
 					
 					
 					if(this.pdb != null) {
-					this.secondaryStructure = Utils.convertSecondStruc(fullpdb, pdb);
+					setSecondaryStructureFromPdb();	// calculated on first use
 					//this.secondaryStructure = pdb.getSecondaryStructure(); 
 				}	
 					
@@ -95,6 +78,7 @@ public class ContactMapFileModel extends Model {
 				System.out.println("No pdb code and/or chain code found. Can not load structure.");
 			} 
 			
+			super.initResidueCoordinates();
 			//super.filterContacts(seqSep);	// currently not allowed to filter contacts
 			//super.printWarnings(chainCode); // doesn't make sense here
 			
@@ -0,0 +1,399 @@
+package cmview.datasources;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import owl.core.util.IntPairSet;
+import edu.uci.ics.jung.graph.util.Pair;
+
+/**
+ * A set of contacts (i,j) stored without boxing. Every contact is encoded as one
+ * long (i in the high, j in the low 32 bits) in an open addressing hash table
+ * with linear probing, i.e. a contact costs 16 bytes at most instead of a tree
+ * node, a Pair and two Integers.
+ * <p>
+ * For iteration the contacts are sorted once by i and then j (the same order an
+ * IntPairSet iterates in) into a flat int array, which is cached until the set is
+ * modified. The pair (Integer.MIN_VALUE,0) is reserved and can not be stored.
+ */
+public class ContactSet implements Iterable<Pair<Integer>> {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final long FREE = Long.MIN_VALUE;		// marks an empty slot
+	private static final int MIN_CAPACITY = 16;
+
+	/*--------------------------- member variables --------------------------*/
+	private long[] table;			// hash table of encoded contacts, size is a power of 2
+	private int mask;				// table.length - 1
+	private int size;
+	private int[] pairs;			// cached sorted contacts (i0,j0,i1,j1,...), null if outdated
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates an empty contact set.
+	 */
+	public ContactSet() {
+		this(0);
+	}
+
+	/**
+	 * Creates an empty contact set which can hold the given number of contacts
+	 * without growing.
+	 */
+	public ContactSet(int expectedSize) {
+		allocate(getCapacity(expectedSize));
+	}
+
+	/**
+	 * Creates a copy of the given contact set.
+	 */
+	public ContactSet(ContactSet other) {
+		this.table = other.table.clone();
+		this.mask = other.mask;
+		this.size = other.size;
+		this.pairs = other.pairs;		// never modified, can be shared
+	}
+
+	/**
+	 * Creates a contact set containing the given contacts, e.g. an IntPairSet.
+	 */
+	public ContactSet(Iterable<Pair<Integer>> contacts) {
+		this();
+		for(Pair<Integer> cont:contacts) {
+			add(cont);
+		}
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the number of contacts in this set */
+	public int size() {
+		return size;
+	}
+
+	/** Returns true if this set contains no contacts */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Removes all contacts */
+	public void clear() {
+		Arrays.fill(table, FREE);
+		size = 0;
+		pairs = null;
+	}
+
+	/**
+	 * Returns true if contact (i,j) is in this set. The order of i and j matters.
+	 */
+	public boolean contains(int i, int j) {
+		return find(encode(i, j)) >= 0;
+	}
+
+	/**
+	 * Returns true if the given contact is in this set.
+	 */
+	public boolean contains(Pair<Integer> cont) {
+		return contains(cont.getFirst(), cont.getSecond());
+	}
+
+	/**
+	 * Adds contact (i,j).
+	 * @return true if the contact was not in the set before
+	 */
+	public boolean add(int i, int j) {
+		long key = encode(i, j);
+		if(key == FREE) {
+			throw new IllegalArgumentException("Contact (" + i + "," + j + ") can not be stored in a ContactSet");
+		}
+		int slot = slot(key);
+		while(table[slot] != FREE) {
+			if(table[slot] == key) return false;
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = key;
+		size++;
+		pairs = null;
+		if(2 * size > table.length) {
+			rehash(table.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the given contact.
+	 * @return true if the contact was not in the set before
+	 */
+	public boolean add(Pair<Integer> cont) {
+		return add(cont.getFirst(), cont.getSecond());
+	}
+
+	/**
+	 * Removes contact (i,j).
+	 * @return true if the contact was in the set
+	 */
+	public boolean remove(int i, int j) {
+		int slot = find(encode(i, j));
+		if(slot < 0) return false;
+		// backward shift deletion: move up entries of the probe sequence which
+		// would otherwise not be found anymore
+		int free = slot;
+		int next = (free + 1) & mask;
+		while(table[next] != FREE) {
+			int home = slot(table[next]);
+			// move the entry if its home slot is not cyclically within (free,next]
+			if(((next - home) & mask) >= ((next - free) & mask)) {
+				table[free] = table[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[free] = FREE;
+		size--;
+		pairs = null;
+		return true;
+	}
+
+	/**
+	 * Removes the given contact.
+	 * @return true if the contact was in the set
+	 */
+	public boolean remove(Pair<Integer> cont) {
+		return remove(cont.getFirst(), cont.getSecond());
+	}
+
+	/**
+	 * Adds all contacts of the given set to this set (union).
+	 */
+	public void addAll(ContactSet other) {
+		if(2 * (size + other.size) > table.length) {
+			rehash(getCapacity(size + other.size));
+		}
+		for(long key:other.table) {
+			if(key != FREE) add(decodeFirst(key), decodeSecond(key));
+		}
+	}
+
+	/**
+	 * Removes all contacts from this set which are not in the given set (intersection).
+	 */
+	public void retainAll(ContactSet other) {
+		filter(other, true);
+	}
+
+	/**
+	 * Removes all contacts from this set which are in the given set (difference).
+	 */
+	public void removeAll(ContactSet other) {
+		filter(other, false);
+	}
+
+	/**
+	 * Returns the contacts as a flat array (i0,j0,i1,j1,...) sorted by i and then
+	 * by j. The array is cached until this set changes and must not be modified.
+	 */
+	public int[] getPairs() {
+		if(pairs == null) {
+			long[] keys = new long[size];
+			int k = 0;
+			for(long key:table) {
+				if(key != FREE) keys[k++] = key;
+			}
+			Arrays.sort(keys);
+			int[] p = new int[2 * size];
+			for(k = 0; k < size; k++) {
+				p[2*k]   = decodeFirst(keys[k]);
+				p[2*k+1] = decodeSecond(keys[k]);
+			}
+			pairs = p;
+		}
+		return pairs;
+	}
+
+	/**
+	 * Iterates over the contacts in the order of {@link #getPairs()}, creating a
+	 * new Pair for every contact. The iteration is over a snapshot, i.e. the set
+	 * can be modified while iterating.
+	 */
+	public Iterator<Pair<Integer>> iterator() {
+		final int[] p = getPairs();
+		return new Iterator<Pair<Integer>>() {
+			private int k = 0;
+
+			public boolean hasNext() {
+				return k < p.length;
+			}
+
+			public Pair<Integer> next() {
+				if(k >= p.length) throw new NoSuchElementException();
+				Pair<Integer> cont = new Pair<Integer>(p[k], p[k+1]);
+				k += 2;
+				return cont;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns a new IntPairSet with the contacts of this set, for code which
+	 * expects the boxed representation.
+	 */
+	public IntPairSet toIntPairSet() {
+		IntPairSet set = new IntPairSet();
+		int[] p = getPairs();
+		for(int k = 0; k < p.length; k += 2) {
+			set.add(new Pair<Integer>(p[k], p[k+1]));
+		}
+		return set;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		int[] p = getPairs();
+		for(int k = 0; k < p.length; k += 2) {
+			if(k > 0) sb.append(", ");
+			sb.append('<').append(p[k]).append(',').append(p[k+1]).append('>');
+		}
+		return sb.append(']').toString();
+	}
+
+	/*---------------------------- static methods ---------------------------*/
+
+	/** Returns a new set with the contacts contained in a or b */
+	public static ContactSet union(ContactSet a, ContactSet b) {
+		ContactSet larger = a.size >= b.size ? a : b;
+		ContactSet result = new ContactSet(larger);
+		result.addAll(larger == a ? b : a);
+		return result;
+	}
+
+	/** Returns a new set with the contacts contained in both a and b */
+	public static ContactSet intersection(ContactSet a, ContactSet b) {
+		ContactSet smaller = a.size <= b.size ? a : b;
+		ContactSet result = new ContactSet(smaller);
+		result.retainAll(smaller == a ? b : a);
+		return result;
+	}
+
+	/** Returns a new set with the contacts contained in a but not in b */
+	public static ContactSet difference(ContactSet a, ContactSet b) {
+		ContactSet result = new ContactSet(a);
+		result.removeAll(b);
+		return result;
+	}
+
+	/*--------------------------- package methods ---------------------------*/
+
+	/**
+	 * Encodes contact (i,j) as one long, also used by {@link ContactWeights}.
+	 */
+	static long encode(int i, int j) {
+		return ((long) i << 32) | (j & 0xffffffffL);
+	}
+
+	/**
+	 * Mixes the bits of an encoded contact, as neighbouring contacts differ in
+	 * few bits only.
+	 */
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+
+	private static int decodeFirst(long key) {
+		return (int) (key >> 32);
+	}
+
+	private static int decodeSecond(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Returns the home slot of a key.
+	 */
+	private int slot(long key) {
+		return hash(key) & mask;
+	}
+
+	/**
+	 * Returns the slot holding the given key or -1 if it is not in the table.
+	 */
+	private int find(long key) {
+		int slot = slot(key);
+		while(table[slot] != FREE) {
+			if(table[slot] == key) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Keeps the contacts that are (keep == true) or are not (keep == false) in the
+	 * given set, rebuilding the table.
+	 */
+	private void filter(ContactSet other, boolean keep) {
+		if(other == this) {
+			if(!keep) clear();
+			return;
+		}
+		long[] old = table;
+		int kept = 0;
+		for(long key:old) {
+			if(key != FREE && (other.find(key) >= 0) == keep) kept++;
+		}
+		if(kept == size) return;
+		allocate(getCapacity(kept));
+		for(long key:old) {
+			if(key != FREE && (other.find(key) >= 0) == keep) insertNew(key);
+		}
+		size = kept;
+		pairs = null;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = table;
+		allocate(capacity);
+		for(long key:old) {
+			if(key != FREE) insertNew(key);
+		}
+	}
+
+	/**
+	 * Puts a key known not to be in the table into the first free slot, without
+	 * touching size.
+	 */
+	private void insertNew(long key) {
+		int slot = slot(key);
+		while(table[slot] != FREE) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = key;
+	}
+
+	private void allocate(int capacity) {
+		table = new long[capacity];
+		Arrays.fill(table, FREE);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Returns the power of 2 table size keeping the load factor at most 1/2.
+	 */
+	private static int getCapacity(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while(capacity < 2 * (long) expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
@@ -0,0 +1,123 @@
+package cmview.datasources;
+
+import java.util.Arrays;
+
+/**
+ * The weights of a set of contacts, looked up by (i,j) without boxing. Contacts
+ * are encoded like in {@link ContactSet} and stored in an open addressing table
+ * with a parallel float array of weights. Meant to be filled once per contact
+ * map version and then queried on every repaint.
+ */
+public class ContactWeights {
+
+	/*------------------------------ constants ------------------------------*/
+	public static final int LEVELS = 256;					// number of quantized weight levels
+	private static final long FREE = Long.MIN_VALUE;		// marks an empty slot
+
+	/*--------------------------- member variables --------------------------*/
+	private long[] keys;
+	private float[] weights;
+	private int mask;
+	private int size;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates an empty weight table for the given number of contacts. The table
+	 * grows if more contacts are added.
+	 */
+	public ContactWeights(int expectedSize) {
+		int capacity = 16;
+		while(capacity < 2 * (long) expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the number of contacts with a weight */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sets the weight of contact (i,j), replacing any previous weight.
+	 */
+	public void put(int i, int j, float weight) {
+		long key = ContactSet.encode(i, j);
+		if(key == FREE) {
+			throw new IllegalArgumentException("Contact (" + i + "," + j + ") can not be stored in ContactWeights");
+		}
+		int slot = ContactSet.hash(key) & mask;
+		while(keys[slot] != FREE) {
+			if(keys[slot] == key) {
+				weights[slot] = weight;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		weights[slot] = weight;
+		size++;
+		if(2 * size > keys.length) {
+			rehash();
+		}
+	}
+
+	/**
+	 * Returns the weight of contact (i,j) or NaN if it has none.
+	 */
+	public float get(int i, int j) {
+		long key = ContactSet.encode(i, j);
+		int slot = ContactSet.hash(key) & mask;
+		while(keys[slot] != FREE) {
+			if(keys[slot] == key) return weights[slot];
+			slot = (slot + 1) & mask;
+		}
+		return Float.NaN;
+	}
+
+	/**
+	 * Returns the weight of contact (i,j) truncated to [0,1] and quantized to
+	 * 0..{@link #LEVELS}-1, e.g. to index a color palette. Contacts without a
+	 * weight get level 0.
+	 */
+	public int getLevel(int i, int j) {
+		return toLevel(get(i, j));
+	}
+
+	/**
+	 * Quantizes the given weight to 0..{@link #LEVELS}-1, truncating it to [0,1]
+	 * first. NaN maps to 0.
+	 */
+	public static int toLevel(double weight) {
+		if(!(weight > 0)) return 0;
+		if(weight >= 1) return LEVELS - 1;
+		return (int) Math.round(weight * (LEVELS - 1));
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		weights = new float[capacity];
+		Arrays.fill(keys, FREE);
+		mask = capacity - 1;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		float[] oldWeights = weights;
+		allocate(keys.length * 2);
+		for(int k = 0; k < oldKeys.length; k++) {
+			if(oldKeys[k] == FREE) continue;
+			int slot = ContactSet.hash(oldKeys[k]) & mask;
+			while(keys[slot] != FREE) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldKeys[k];
+			weights[slot] = oldWeights[k];
+		}
+	}
+}
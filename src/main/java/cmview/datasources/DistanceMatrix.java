@@ -0,0 +1,170 @@
+package cmview.datasources;
+
+import java.util.Arrays;
+
+/**
+ * A symmetric residue-residue distance matrix. Only the strict upper triangle
+ * (i &lt; j) is stored, packed row by row into one primitive float array, so that
+ * a cell costs 4 bytes instead of a boxed map entry. Indices are 1-based residue
+ * (or alignment column) serials as everywhere else in CMView. Cells that were
+ * never set are undefined and hold NaN.
+ */
+public class DistanceMatrix {
+
+	/*------------------------------ members -------------------------------*/
+	private final int size;			// number of rows/columns
+	private final float[] values;		// packed upper triangle, row major
+
+	private float min, max;				// cached range of defined values
+	private boolean rangeValid;			// whether min/max reflect the current values
+
+	/*---------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a new matrix of the given size with all cells undefined.
+	 * @param size the number of residues (the highest valid serial)
+	 */
+	public DistanceMatrix(int size) {
+		if(size < 0) {
+			throw new IllegalArgumentException("Negative matrix size: " + size);
+		}
+		long cells = (long) size * (size - 1) / 2;
+		if(cells > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Matrix size " + size + " too large for a packed triangular matrix");
+		}
+		this.size = size;
+		this.values = new float[(int) cells];
+		Arrays.fill(values, Float.NaN);
+		this.rangeValid = false;
+	}
+
+	/*---------------------------- public methods --------------------------*/
+
+	/**
+	 * Returns the number of rows (and columns) of this matrix.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the value of cell (i,j) or NaN if the cell is undefined. The matrix
+	 * is symmetric, so the order of i and j does not matter. The diagonal is
+	 * always undefined.
+	 */
+	public float get(int i, int j) {
+		if(i == j) return Float.NaN;
+		return values[index(i,j)];
+	}
+
+	/**
+	 * Sets the value of cell (i,j) (and thus (j,i)).
+	 * @throws IllegalArgumentException if i equals j
+	 */
+	public void set(int i, int j, float value) {
+		if(i == j) {
+			throw new IllegalArgumentException("Diagonal cell (" + i + "," + j + ") can not be set");
+		}
+		values[index(i,j)] = value;
+		rangeValid = false;
+	}
+
+	/**
+	 * Returns true if a value has been set for cell (i,j).
+	 */
+	public boolean isDefined(int i, int j) {
+		return !Float.isNaN(get(i,j));
+	}
+
+	/**
+	 * Returns the smallest defined value or NaN if no cell is defined.
+	 */
+	public float getMin() {
+		updateRange();
+		return min;
+	}
+
+	/**
+	 * Returns the largest defined value or NaN if no cell is defined.
+	 */
+	public float getMax() {
+		updateRange();
+		return max;
+	}
+
+	/**
+	 * Linearly rescales all defined cells so that min maps to 0 and max maps
+	 * to 1. Undefined cells stay undefined. Nothing is done if min equals max.
+	 */
+	public void scale(double min, double max) {
+		if(min == max) return;
+		double range = max - min;
+		for(int k = 0; k < values.length; k++) {
+			values[k] = (float) ((values[k] - min) / range);	// NaN stays NaN
+		}
+		rangeValid = false;
+	}
+
+	/*--------------------------- package methods --------------------------*/
+
+	/**
+	 * Returns the packed array for bulk writing by the distance kernels in this
+	 * package. Cell (i,j), i&lt;j, is at getRowOffset(i) + (j-i-1). Callers have
+	 * to call invalidateRange() after writing.
+	 */
+	float[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the position of cell (i,i+1) in the packed array.
+	 */
+	int getRowOffset(int i) {
+		long row = i - 1;
+		return (int) (row * (2 * size - row - 1) / 2);
+	}
+
+	/**
+	 * Marks the cached min/max as outdated after bulk writes.
+	 */
+	void invalidateRange() {
+		rangeValid = false;
+	}
+
+	/*--------------------------- private methods --------------------------*/
+
+	/**
+	 * Maps the 1-based cell (i,j), i!=j, to its position in the packed array.
+	 */
+	private int index(int i, int j) {
+		if(i > j) {
+			int t = i; i = j; j = t;
+		}
+		if(i < 1 || j > size) {
+			throw new IndexOutOfBoundsException("Cell (" + i + "," + j + ") outside of matrix of size " + size);
+		}
+		// cells in the rows before row i plus the offset within row i
+		return getRowOffset(i) + (j - i - 1);
+	}
+
+	/**
+	 * Recomputes min and max in a single pass over the packed array.
+	 */
+	private void updateRange() {
+		if(rangeValid) return;
+		float lo = Float.POSITIVE_INFINITY;
+		float hi = Float.NEGATIVE_INFINITY;
+		for(float v:values) {
+			if(v != v) continue;	// undefined
+			if(v < lo) lo = v;
+			if(v > hi) hi = v;
+		}
+		if(lo > hi) {
+			min = max = Float.NaN;
+		} else {
+			min = lo;
+			max = hi;
+		}
+		rangeValid = true;
+	}
+}
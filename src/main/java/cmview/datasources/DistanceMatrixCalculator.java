@@ -0,0 +1,122 @@
+package cmview.datasources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes all-vs-all residue distance matrices. The upper triangle is cut into
+ * square tiles which are computed as independent fork/join tasks, each writing a
+ * disjoint part of the packed matrix. Every cell is computed by exactly the same
+ * arithmetic regardless of the tiling, so the parallel result is identical to
+ * the sequential one.
+ * The inner loop runs over plain x/y/z arrays without branches (unobserved
+ * residues have NaN coordinates, which yield NaN, i.e. undefined, distances) so
+ * that the JIT can vectorize it.
+ */
+public class DistanceMatrixCalculator {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final int TILE_SIZE = 256;				// residues per tile edge
+	private static final int MIN_PARALLEL_SIZE = 512;		// smaller matrices are always computed sequentially
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Calculates the distance matrix between the given points of all residues.
+	 * @param coords the coordinate snapshot
+	 * @param type one of {@link ResidueCoordinates#CA}, {@link ResidueCoordinates#CB}, {@link ResidueCoordinates#CENTROID}
+	 * @param pool the pool to run the tiles in or null to compute sequentially
+	 * @return the (unscaled) distance matrix, cells with unavailable coordinates are undefined
+	 */
+	public static DistanceMatrix calculate(ResidueCoordinates coords, int type, ForkJoinPool pool) {
+		return calculate(coords.getCoordinates(type, 0), coords.getCoordinates(type, 1), coords.getCoordinates(type, 2), pool);
+	}
+
+	/**
+	 * Calculates the distance matrix between the given points.
+	 * @param x the x coordinates of the points, the point of residue serial i at index i-1
+	 * @param y the y coordinates
+	 * @param z the z coordinates
+	 * @param pool the pool to run the tiles in or null to compute sequentially
+	 * @return the distance matrix, cells involving NaN coordinates are undefined
+	 */
+	public static DistanceMatrix calculate(double[] x, double[] y, double[] z, ForkJoinPool pool) {
+		int n = x.length;
+		DistanceMatrix matrix = new DistanceMatrix(n);
+
+		List<TileTask> tiles = new ArrayList<TileTask>();
+		for(int rowStart = 0; rowStart < n; rowStart += TILE_SIZE) {
+			for(int colStart = rowStart; colStart < n; colStart += TILE_SIZE) {
+				tiles.add(new TileTask(matrix, x, y, z, rowStart, Math.min(rowStart + TILE_SIZE, n), colStart, Math.min(colStart + TILE_SIZE, n)));
+			}
+		}
+
+		if(pool == null || n < MIN_PARALLEL_SIZE) {
+			for(TileTask tile:tiles) {
+				tile.compute();
+			}
+		} else {
+			pool.invoke(new AllTilesTask(tiles));
+		}
+		matrix.invalidateRange();
+		return matrix;
+	}
+
+	/*---------------------------- nested classes --------------------------*/
+
+	/**
+	 * Forks all tiles and waits for them.
+	 */
+	private static class AllTilesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<TileTask> tiles;
+
+		AllTilesTask(List<TileTask> tiles) {
+			this.tiles = tiles;
+		}
+
+		protected void compute() {
+			invokeAll(tiles);
+		}
+	}
+
+	/**
+	 * Computes the cells (i,j), i&lt;j, for 0-based rows [rowStart,rowEnd) and
+	 * columns [colStart,colEnd).
+	 */
+	private static class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final DistanceMatrix matrix;
+		private final double[] x, y, z;
+		private final int rowStart, rowEnd, colStart, colEnd;
+
+		TileTask(DistanceMatrix matrix, double[] x, double[] y, double[] z, int rowStart, int rowEnd, int colStart, int colEnd) {
+			this.matrix = matrix;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.rowStart = rowStart;
+			this.rowEnd = rowEnd;
+			this.colStart = colStart;
+			this.colEnd = colEnd;
+		}
+
+		protected void compute() {
+			float[] values = matrix.getValues();
+			for(int i = rowStart; i < rowEnd; i++) {
+				int from = Math.max(colStart, i + 1);
+				// packed position of cell (i,j) is offset + j
+				int offset = matrix.getRowOffset(i + 1) - (i + 1);
+				double xi = x[i], yi = y[i], zi = z[i];
+				for(int j = from; j < colEnd; j++) {
+					double dx = xi - x[j];
+					double dy = yi - y[j];
+					double dz = zi - z[j];
+					values[offset + j] = (float) Math.sqrt(dx*dx + dy*dy + dz*dz);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package cmview.datasources;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.biojava.nbio.structure.Chain;
+
+/**
+ * Computes the contacts of every model of an ensemble (e.g. the models of an
+ * NMR entry) in parallel and reduces them into one {@link ContactFrequencyAccumulator}.
+ * The models are split recursively, every leaf computes the graph of one model,
+ * the accumulators of the two halves are then added up. The graphs of the
+ * models are never kept.
+ */
+public class EnsembleGraphCalculator {
+
+	/**
+	 * Adds the contacts of all given chains (one per model) to a new accumulator.
+	 * @param chains the chain in each model, all with the same sequence
+	 * @param modelSerials the model serial of each chain
+	 * @param pool the pool to compute the models in or null to compute sequentially
+	 * @return the accumulated contacts
+	 */
+	public static ContactFrequencyAccumulator calculate(List<Chain> chains, int[] modelSerials, String edgeType, double cutoff, ForkJoinPool pool) {
+		if(pool == null || chains.size() < 2) {
+			ContactFrequencyAccumulator acc = new ContactFrequencyAccumulator(chains.get(0).getSeqResSequence());
+			for(int k = 0; k < chains.size(); k++) {
+				acc.addContacts(Utils.getRIGraph(chains.get(k), edgeType, cutoff, modelSerials[k]));
+			}
+			return acc;
+		}
+		return pool.invoke(new ModelRangeTask(chains, modelSerials, edgeType, cutoff, 0, chains.size()));
+	}
+
+	/*---------------------------- nested classes --------------------------*/
+
+	/**
+	 * Accumulates the contacts of the models [from,to).
+	 */
+	private static class ModelRangeTask extends RecursiveTask<ContactFrequencyAccumulator> {
+		private static final long serialVersionUID = 1L;
+		private final List<Chain> chains;
+		private final int[] modelSerials;
+		private final String edgeType;
+		private final double cutoff;
+		private final int from, to;
+
+		ModelRangeTask(List<Chain> chains, int[] modelSerials, String edgeType, double cutoff, int from, int to) {
+			this.chains = chains;
+			this.modelSerials = modelSerials;
+			this.edgeType = edgeType;
+			this.cutoff = cutoff;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected ContactFrequencyAccumulator compute() {
+			if(to - from == 1) {
+				ContactFrequencyAccumulator acc = new ContactFrequencyAccumulator(chains.get(from).getSeqResSequence());
+				acc.addContacts(Utils.getRIGraph(chains.get(from), edgeType, cutoff, modelSerials[from]));
+				return acc;
+			}
+			int mid = (from + to) >>> 1;
+			ModelRangeTask left = new ModelRangeTask(chains, modelSerials, edgeType, cutoff, from, mid);
+			left.fork();
+			ContactFrequencyAccumulator right = new ModelRangeTask(chains, modelSerials, edgeType, cutoff, mid, to).compute();
+			ContactFrequencyAccumulator acc = left.join();
+			acc.addAll(right);
+			return acc;
+		}
+	}
+}
@@ -1,15 +1,10 @@
 package cmview.datasources;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.sql.SQLException;
 
 import org.biojava.nbio.structure.Structure;
-import org.biojava.nbio.structure.io.mmcif.MMcifParser;
-import org.biojava.nbio.structure.io.mmcif.SimpleMMcifConsumer;
-import org.biojava.nbio.structure.io.mmcif.SimpleMMcifParser;
 
 import owl.core.structure.*;
 import owl.core.structure.graphs.DbRIGraph;
@@ -54,26 +49,14 @@ public class GraphDbModel extends Model {
 				PdbAsymUnit.grabCifFile(null, Start.PDB_FTP_URL, pdbCode, cifFile, true);
 				
 				//PdbAsymUnit fullpdb = new PdbAsymUnit(cifFile, modelSerial);
-				MMcifParser parser = new SimpleMMcifParser();
-
-		        SimpleMMcifConsumer consumer = new SimpleMMcifConsumer();
-
-		        // The Consumer builds up the BioJava - structure object.
-		        // you could also hook in your own and build up you own data model.          
-		        parser.addMMcifConsumer(consumer);
-
-		       
-		        parser.parse(new BufferedReader(new FileReader(cifFile)));
-		         
-
-		        // now get the protein structure.
-		        Structure fullpdb = consumer.getStructure();
+				// parse the file or take the parsed structure from the on-disk cache
+				Structure fullpdb = StructureCache.readCifFile(cifFile);
 				
 		        //this.pdb = fullpdb.getChain(pdbChainCode);
 		        this.pdb = fullpdb.getPolyChainByPDB(pdbChainCode, modelSerial-1);
 		        
 				if(this.pdb != null) {
-				this.secondaryStructure = Utils.convertSecondStruc(fullpdb, pdb);
+				setSecondaryStructureFromPdb();	// calculated on first use
 				//this.secondaryStructure = pdb.getSecondaryStructure(); 
 			}
 				
@@ -92,6 +75,7 @@ public class GraphDbModel extends Model {
 			
 			// if structure is available, and has secondary structure annotation, use it
 			//super.filterContacts(seqSep);	// currently not allowed to filter contacts
+			super.initResidueCoordinates();
 			super.printWarnings(pdbChainCode);
 			
 		} catch (GraphIdNotFoundError e) {
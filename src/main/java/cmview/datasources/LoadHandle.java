@@ -0,0 +1,181 @@
+package cmview.datasources;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import cmview.Start;
+
+/**
+ * Handle of a model being loaded in the background on the thread pool of the
+ * session. Loading is divided into phases (download, parse, secondary structure,
+ * contacts, overlays) which are reported to the listeners of the handle as they
+ * start. Not every source goes through every phase.
+ * <p>
+ * Loading can be cancelled with {@link #cancel(boolean)}. Cancellation is
+ * cooperative: the load stops at the start of the next phase, before the model
+ * is registered in {@link Start} or put into the model cache, and its result is
+ * discarded. Downloads stop early if the loading thread is interrupted as well.
+ * Failures are reported by {@link #getModel()}.
+ */
+public class LoadHandle extends FutureTask<Model> {
+
+	/*------------------------------ constants ------------------------------*/
+
+	/** The phases of loading a model */
+	public enum Phase {
+		WAITING("Waiting"),
+		LOOKUP("Looking for a previously loaded model"),
+		DOWNLOAD("Downloading structure"),
+		PARSE("Reading structure"),
+		SECONDARY_STRUCTURE("Assigning secondary structure"),
+		CONTACTS("Calculating contacts"),
+		OVERLAYS("Preparing coordinates");
+
+		private final String description;
+
+		private Phase(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	/*------------------------------ interfaces -----------------------------*/
+
+	/**
+	 * The actual loading of a model.
+	 */
+	public interface Job {
+		/**
+		 * Loads the model, calling {@link LoadHandle#startPhase} whenever a new phase starts.
+		 */
+		public Model load(LoadHandle handle) throws ModelConstructionError, IOException;
+	}
+
+	/**
+	 * Receives the progress of a load. Called from the loading thread, except for
+	 * loadDone on cancellation, which is called from the cancelling thread.
+	 */
+	public interface Listener {
+		public void phaseStarted(LoadHandle handle, Phase phase);
+		public void loadDone(LoadHandle handle);
+	}
+
+	/*--------------------------- member variables --------------------------*/
+	private final String name;
+	private volatile Phase phase = Phase.WAITING;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a handle for the given job, which is not started yet.
+	 * @param name a name for the model being loaded, used in messages
+	 */
+	public LoadHandle(String name, Job job) {
+		this(name, new JobCall(job));
+	}
+
+	private LoadHandle(String name, JobCall call) {
+		super(call);
+		call.handle = this;
+		this.name = name;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Starts loading on the thread pool of the session. Listeners should be
+	 * added before.
+	 * @return this handle
+	 */
+	public LoadHandle start() {
+		Start.getThreadPool().execute(this);
+		return this;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Returns the phase started last */
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Marks the start of a new phase and notifies the listeners.
+	 * @throws ModelConstructionError if loading has been cancelled
+	 */
+	public void startPhase(Phase phase) throws ModelConstructionError {
+		checkCancelled();
+		this.phase = phase;
+		for(Listener listener:listeners) {
+			listener.phaseStarted(this, phase);
+		}
+	}
+
+	/**
+	 * Stops the load if it has been cancelled.
+	 * @throws ModelConstructionError if loading has been cancelled
+	 */
+	public void checkCancelled() throws ModelConstructionError {
+		if(isCancelled()) {
+			throw new ModelConstructionError("Loading of " + name + " cancelled");
+		}
+	}
+
+	/**
+	 * Waits for the load to finish and returns the loaded model.
+	 * @throws ModelConstructionError if loading failed
+	 * @throws CancellationException if loading has been cancelled
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Model getModel() throws ModelConstructionError, InterruptedException {
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof ModelConstructionError) {
+				throw (ModelConstructionError) cause;
+			}
+			throw new ModelConstructionError(cause.getMessage(), cause);
+		}
+	}
+
+	/*-------------------------- overridden methods -------------------------*/
+
+	protected void done() {
+		for(Listener listener:listeners) {
+			listener.loadDone(this);
+		}
+	}
+
+	/*---------------------------- nested classes --------------------------*/
+
+	/**
+	 * Runs the job for its handle.
+	 */
+	private static class JobCall implements Callable<Model> {
+		private final Job job;
+		private LoadHandle handle;
+
+		JobCall(Job job) {
+			this.job = job;
+		}
+
+		public Model call() throws ModelConstructionError, IOException {
+			return job.load(handle);
+		}
+	}
+}
@@ -5,8 +5,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.File;
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.HashMap;
 
 import org.biojava.nbio.structure.Chain;
 import org.biojava.nbio.structure.Group;
@@ -31,7 +29,6 @@ import owl.core.structure.graphs.RIGNbhood;
 import owl.core.structure.graphs.RIGNode;
 import owl.core.structure.graphs.RIGraph;
 import owl.core.util.FileFormatException;
-import owl.core.util.IntPairSet;
 import owl.core.util.actionTools.TinkerStatusNotifier;
 import owl.deltaRank.DeltaRank;
 import owl.embed.ConePeeler;
@@ -87,13 +84,18 @@ public abstract class Model {
 														// structure independent
 														// of the PDB object, e.g.
 														// to allow prediction
+	private boolean secondaryStructureFromPdb;	// whether the secondary structure is still to be
+												// calculated from pdb on first use
 	
-	protected HashMap<Pair<Integer>, Double> distMatrix; // the scaled [0-1]
+	protected DistanceMatrix distMatrix; // the scaled [0-1]
 															// distance matrix
 															// TODO: Could move
 															// this to
 															// ContactMapPane
 
+	protected ResidueCoordinates coordinates; // per-residue coordinate snapshot,
+											// extracted from pdb once on load
+
 	private File tempPdbFile; // the file with the atomic coordinates to be
 								// loaded into pymol
 
@@ -103,9 +105,15 @@ public abstract class Model {
 									// this is being used to identify the
 									// graph in an alignment object and in pymol
 	
+	private ContactDensityMap densityMap; // incrementally updated density map, 
+										  // null until first requested
+	
 	private DeltaRank deltaRank; // Our deltaRank calculation object, providing delta Rank background maps
 	
 	private Gmbp gmbp = new Gmbp(); // hold values for angle (phi-psi ranges for certain iNum-jNum contacts)
+	
+	private LoadHandle loadHandle; // receives the progress of load(), null if not loaded through a LoadHandle
+	private boolean renderOnly; // whether the model is only loaded to render its contact map, see setRenderOnly
 
 	/*----------------------------- constructors ----------------------------*/
 
@@ -129,11 +137,16 @@ public abstract class Model {
 		this.isGraphWeighted = mod.isGraphWeighted;
 		this.modified = mod.modified;
 		this.secondaryStructure = mod.secondaryStructure;
+		this.secondaryStructureFromPdb = mod.secondaryStructureFromPdb;
 		this.distMatrix = mod.distMatrix;
+		this.coordinates = mod.coordinates;
 		this.tempPdbFile = mod.tempPdbFile;
 		this.loadedGraphID = mod.loadedGraphID;
 		this.deltaRank = mod.deltaRank;
 		this.edgeType = mod.edgeType;
+		this.distCutoff = mod.distCutoff;
+		this.minSeqSep = mod.minSeqSep;
+		this.maxSeqSep = mod.maxSeqSep;
 	}
 
 	/**
@@ -143,17 +156,93 @@ public abstract class Model {
 	 */
 	public abstract Model copy();
 
+	/**
+	 * Creates a new model as a copy of this model which has its own copy of the
+	 * graph, so that contacts can be edited without affecting this model. The
+	 * structure and other data which are not modified after loading are shared.
+	 * 
+	 * @return the new model
+	 */
+	public Model copyWithOwnGraph() {
+		Model mod = copy();
+		mod.graph = this.graph.copy();
+		mod.backupGraph = (this.backupGraph == null) ? null : this.backupGraph.copy();
+		mod.deltaRank = null;	// updated on edits, so not shared but recreated on demand
+		return mod;
+	}
+
 
 	public abstract void load(String pdbChainCode, int modelSerial)
 			throws ModelConstructionError;
 	
+	/**
+	 * Sets the handle to report the phases of the next load() to and to check
+	 * for cancellation. Set to null once loaded.
+	 * @param handle the handle of the running load or null
+	 */
+	public void setLoadHandle(LoadHandle handle) {
+		this.loadHandle = handle;
+	}
+	
+	/**
+	 * Marks the model as loaded only to render its contact map without the GUI
+	 * (see {@link cmview.BatchRenderer}). Then load() neither registers the
+	 * loadedGraphID in {@link Start} nor writes the temporary PDB file, so that
+	 * nothing refers to the model once the image is written. To be called
+	 * before load().
+	 */
+	public void setRenderOnly(boolean renderOnly) {
+		this.renderOnly = renderOnly;
+	}
+	
 	/*---------------------------- private methods --------------------------*/
 
+	/**
+	 * To be called by load() when a new phase of loading starts. Reports the
+	 * phase to the load handle, if any.
+	 * @throws ModelConstructionError if loading has been cancelled
+	 */
+	protected void startPhase(LoadHandle.Phase phase) throws ModelConstructionError {
+		if (loadHandle != null) {
+			loadHandle.startPhase(phase);
+		}
+	}
+
+	/**
+	 * To be called by long running loads between steps to stop early if loading
+	 * has been cancelled.
+	 * @throws ModelConstructionError if loading has been cancelled
+	 */
+	protected void checkCancelled() throws ModelConstructionError {
+		if (loadHandle != null) {
+			loadHandle.checkCancelled();
+		}
+	}
+
+	/**
+	 * To be called by load() to assign the loadedGraphID, registering it in
+	 * {@link Start} unless the model is only loaded for rendering.
+	 * @param name the ID, a number may be added to make it unique
+	 * @throws ModelConstructionError if loading has been cancelled
+	 */
+	protected void registerLoadedGraphID(String name) throws ModelConstructionError {
+		checkCancelled();
+		if (renderOnly) {
+			this.loadedGraphID = name;
+		} else {
+			this.loadedGraphID = Start.setLoadedGraphID(name, this);
+		}
+	}
+
 	/**
 	 * Write temporary PDB file with atom lines for the current structure.
 	 * has3DCoordinates() must be true before calling this (i.e. pdb not null)
+	 * Does nothing for models only loaded for rendering.
 	 */
 	protected void writeTempPdbFile() {
+		if (renderOnly) {
+			return;
+		}
 		try {
 			FileWriter writer = new FileWriter(getTempPdbFile());
 			writer.write(FileConvert.toPDB(pdb));
@@ -178,6 +267,16 @@ public abstract class Model {
 		if (maxSeqSep > 0) {
 			this.graph.restrictContactsToMaxRange(maxSeqSep);
 		}
+		this.densityMap = null;
+	}
+
+	/**
+	 * Extracts the coordinate snapshot from the current structure. To be called
+	 * at the end of loading, once pdb is final. Sets the snapshot to null if
+	 * there are no 3D coordinates.
+	 */
+	protected void initResidueCoordinates() {
+		this.coordinates = has3DCoordinates() ? new ResidueCoordinates(pdb) : null;
 	}
 
 	/** Print some warnings if necessary */
@@ -248,6 +347,7 @@ public abstract class Model {
 			try{
 				RIGraph subset = ConePeeler.getMinSubset(graph);
 				graph = subset.copy();
+				densityMap = null;
 			}
 			catch (Exception e){
 				System.err.println("Either a database exception occurred or no such entry was found in the database!\n"+e.getMessage());				
@@ -278,13 +378,12 @@ public abstract class Model {
 		return this.graph.getFullLength();
 	}
 
-	/** Returns the contacts as an EdgeSet */
-	public IntPairSet getContacts() {
-		IntPairSet contacts = new IntPairSet();
+	/** Returns the contacts as a ContactSet */
+	public ContactSet getContacts() {
+		ContactSet contacts = new ContactSet(this.graph.getEdgeCount());
 		for (RIGEdge edge : this.graph.getEdges()) {
 			Pair<RIGNode> pair = this.graph.getEndpoints(edge);
-			contacts.add(new Pair<Integer>(pair.getFirst().getResidueSerial(),
-					pair.getSecond().getResidueSerial()));
+			contacts.add(pair.getFirst().getResidueSerial(), pair.getSecond().getResidueSerial());
 		}
 		return contacts;
 	}
@@ -565,8 +664,18 @@ public abstract class Model {
 		}
 	}
 
-	public HashMap<Pair<Integer>, Integer> getAllCommonNbhSizes() {
-		return graph.getAllCommonNbhSizes();
+	/**
+	 * Computes the common neighbourhood sizes of all pairs of residues. 
+	 */
+	public CommonNbhSizeMatrix getAllCommonNbhSizes() {
+		int[] contacts = new int[2 * graph.getEdgeCount()];
+		int k = 0;
+		for (RIGEdge cont : graph.getEdges()) {
+			Pair<RIGNode> pair = graph.getEndpoints(cont);
+			contacts[k++] = pair.getFirst().getResidueSerial();
+			contacts[k++] = pair.getSecond().getResidueSerial();
+		}
+		return new CommonNbhSizeMatrix(getMatrixSize(), contacts, Start.getComputePool());
 	}
 
 	public boolean containsEdge(Pair<Integer> cont) {
@@ -577,6 +686,9 @@ public abstract class Model {
 	public void addEdge(Pair<Integer> cont) {
 		if(graph.addEdgeIJ(cont.getFirst(), cont.getSecond())) {
 			this.setModified(true);
+			if (densityMap != null) {
+				updateDensityMap(cont, true);
+			}
 		}
 		if (deltaRank != null) {
 			updateDeltaRankMap(cont);
@@ -588,6 +700,9 @@ public abstract class Model {
 		if(graph.removeEdge(this.graph.findEdge(graph.getNodeFromSerial(cont
 				.getFirst()), graph.getNodeFromSerial(cont.getSecond())))) {
 			this.setModified(true);
+			if (densityMap != null) {
+				updateDensityMap(cont, false);
+			}
 		}
 		if (deltaRank != null) {
 			updateDeltaRankMap(cont);
@@ -601,28 +716,34 @@ public abstract class Model {
 	 */
 	public double initDistMatrix() {
 		
-		HashMap<Pair<Integer>, Double> distMatrixRes = Utils.calcDistMatrixbjv(pdb);
+		distMatrix = Utils.calcDistMatrix(getResidueCoordinates());
 		//HashMap<Pair<Integer>, Double> distMatrixRes = this.pdb.calcDistMatrix(Start.DIST_MAP_CONTACT_TYPE);
-		double max = Collections.max(distMatrixRes.values());
-		double min = Collections.min(distMatrixRes.values());
-		distMatrix = new HashMap<Pair<Integer>, Double>(); // TODO: Use old
-															// matrix to save
-															// memory
-		for (Pair<Integer> cont : distMatrixRes.keySet()) {
-			distMatrix.put(cont, (distMatrixRes.get(cont) - min) / (max - min));
-		}
+		double max = distMatrix.getMax();
+		double min = distMatrix.getMin();
+		distMatrix.scale(min, max);	// in place, no second copy of the matrix
 		double dist = (graph.getCutoff() - min) / (max - min);
 		return dist;
 	}
 
+	/**
+	 * Returns the per-residue coordinate snapshot of this model or null if 
+	 * has3DCoordinates is false. 
+	 */
+	public ResidueCoordinates getResidueCoordinates() {
+		if (coordinates == null && has3DCoordinates()) {
+			initResidueCoordinates();
+		}
+		return coordinates;
+	}
+
 	/**
 	 * Returns the current distance matrix. Before initDistMatrix has been
 	 * called this will be null.
 	 * 
-	 * @return A map assigning to each edge the corresponding distance (scaled
+	 * @return A matrix assigning to each edge the corresponding distance (scaled
 	 *         to [0;1]).
 	 */
-	public HashMap<Pair<Integer>, Double> getDistMatrix() {
+	public DistanceMatrix getDistMatrix() {
 		return distMatrix;
 	}
 
@@ -635,18 +756,19 @@ public abstract class Model {
 	 *            sequence
 	 * @param secondModel
 	 *            the second model to compare agains
-	 * @return A map assigning to each edge the corresponding value in the
-	 *         difference distance matrix or null on error.
+	 * @return A matrix assigning to each pair of alignment columns the 
+	 *         corresponding value in the difference distance matrix or null 
+	 *         on error.
 	 */
 	
 	/*
 	 * TODO: Also force c-alpha for simple distance maps? Throw proper
 	 * exceptions instead of returning null? Use real matrix?
 	 */
-	public HashMap<Pair<Integer>, Double> getDiffDistMatrix(MultipleSequenceAlignment ali,
+	public DistanceMatrix getDiffDistMatrix(MultipleSequenceAlignment ali,
 			Model secondModel) {
 
-		double diff, min, max;
+		double min, max;
 		if (!this.has3DCoordinates() || !secondModel.has3DCoordinates()) {
 			System.err
 					.println("Failed to compute difference distance map. No 3D coordinates.");
@@ -655,24 +777,21 @@ public abstract class Model {
 
 		String name1 = this.getLoadedGraphID();
 		String name2 = secondModel.getLoadedGraphID();
-		HashMap<Pair<Integer>, Double> diffDistMatrix = Utils.
-				getDiffDistMapbiojchain(Start.DIST_MAP_CONTACT_TYPE, this.pdb, secondModel.pdb,
+		DistanceMatrix diffDistMatrix = Utils.
+				getDiffDistMapbiojchain(Start.DIST_MAP_CONTACT_TYPE, this.getResidueCoordinates(), secondModel.getResidueCoordinates(),
 						Start.DIST_MAP_CONTACT_TYPE, ali, name1, name2);
 
 		if (diffDistMatrix == null) {
 			System.err.println("Failed to compute difference distance map.");
 		} else {
-			max = Collections.max(diffDistMatrix.values());
-			min = Collections.min(diffDistMatrix.values());
-			if (max == min)
+			max = diffDistMatrix.getMax();
+			min = diffDistMatrix.getMin();
+			if (max == min || Double.isNaN(max))
 				System.err
 						.println("Failed to scale difference distance matrix. Matrix is empty or all matrix entries are the same.");
 			else {
 				// scale matrix to [0;1]
-				for (Pair<Integer> e : diffDistMatrix.keySet()) {
-					diff = diffDistMatrix.get(e);
-					diffDistMatrix.put(e, (diff - min) / (max - min));
-				}
+				diffDistMatrix.scale(min, max);
 			}
 		}
 		return diffDistMatrix;
@@ -705,7 +824,7 @@ public abstract class Model {
 	 *         otherwise
 	 */
 	public boolean hasSecondaryStructure() {
-		return this.secondaryStructure!=null;
+		return this.secondaryStructure!=null || (this.secondaryStructureFromPdb && this.pdb!=null);
 //		if (this.pdb == null) {
 //			return false;
 //		}
@@ -731,6 +850,7 @@ public abstract class Model {
 		// way to store the secondary structure annotation)
 		// assert pdb.getSecondaryStructure()==graph.getSecondaryStructure();
 
+		calcPendingSecondaryStructure();
 		return this.secondaryStructure!=null?this.secondaryStructure:new SecondaryStructure("");
 		//return this.secondaryStructure!=null?this.secondaryStructure:new SecondaryStructure("");
 //		if (pdb != null && pdb.hasSecondaryStructure()) {
@@ -744,108 +864,55 @@ public abstract class Model {
 	 * Assigns new secondary structure annotation to the current model.
 	 * @param ss the secondary structure annotation object to be assigned
 	 */
-	public void setSecondaryStructure(SecondaryStructure ss) {
+	public synchronized void setSecondaryStructure(SecondaryStructure ss) {
 		this.secondaryStructure = ss;
+		this.secondaryStructureFromPdb = false;
 	}
-
-	// end of secondary structure related methods
-
+	
 	/**
-	 * Calculates and returns the density matrix for the current model.
+	 * Lets the secondary structure be calculated from the 3D coordinates of the 
+	 * chain when it is first needed instead of while loading, 
+	 * see {@link Utils#getSecondaryStructure(org.biojava.nbio.structure.Chain)}.
 	 */
-	public double[][] getDensityMatrix() {
-
-		int size = getMatrixSize();
-		double[][] d = new double[size][size]; // density matrix
-
-		// initialize matrix with contacts
-		for (RIGEdge cont : graph.getEdges()) {
-			Pair<RIGNode> pair = graph.getEndpoints(cont);
-			d[pair.getFirst().getResidueSerial() - 1][pair.getSecond()
-					.getResidueSerial() - 1] = 1;
-		}
-
-		// fill diagonal - avoids artefacts near main diagonal
-		for (int i = 0; i < size; i++) {
-			d[i][i] = 1;
-		}
-
-		// starting from second diagonal, fill uppper matrix with contact counts
-		// and calculate diagonal averages
-		double[] avg = new double[size];
-		double[] std = new double[size];
-		for (int j = 2; j < size; j++) {
-			double sum = 0;
-			for (int i = 0; i < size - j; i++) {
-				d[i][i + j] = d[i + 1][i + j] + d[i][i + j - 1]
-						- d[i + 1][i + j - 1] + d[i][i + j];
-				// down left left+down contact
-				sum += d[i][i + j]; // sum of diagonal values
-			}
-			avg[j] = sum / (size - j); // diagonal average
-
-			// standard deviation
-			sum = 0;
-			for (int i = 0; i < size - j; i++) {
-				sum += Math.pow(d[i][i + j] - avg[j], 2);
-			}
-			std[j] = Math.sqrt(sum / (size - j));
-			// System.out.println("avg(" + j + ") = " + avg[j]);
-			// System.out.println("std(" + j + ") = " + std[j]);
-
-		}
-
-		// diagonal average and standard deviation for first off-diagonal
-		double sum = 0;
-		for (int i = 0; i < size - 1; i++) {
-			sum = sum + d[i][i + 1];
-		}
-		avg[1] = sum / (size - 1);
-		sum = 0;
-		for (int i = 0; i < size - 1; i++) {
-			sum += Math.pow(d[i][i + 1] - avg[1], 2);
-		}
-		std[1] = Math.sqrt(sum / (size - 1));
-
-		// calculate z-score density
-		for (int i = 0; i < size - 1; i++) {
-			for (int j = i + 1; j < size; j++) {
-				if (std[j - i] == 0) {
-					d[i][j] = 0;
-				} else {
-					d[i][j] = (d[i][j] - avg[j - i]) / std[j - i];
-				}
+	protected synchronized void setSecondaryStructureFromPdb() {
+		this.secondaryStructure = null;
+		this.secondaryStructureFromPdb = true;
+	}
+	
+	/**
+	 * Calculates the secondary structure if this has been deferred on loading.
+	 */
+	private synchronized void calcPendingSecondaryStructure() {
+		if (this.secondaryStructureFromPdb) {
+			if (this.pdb != null) {
+				this.secondaryStructure = Utils.getSecondaryStructure(this.pdb);
 			}
+			this.secondaryStructureFromPdb = false;
 		}
+	}
 
-		// reset diagonal
-		for (int i = 0; i < size; i++) {
-			d[i][i] = 0;
-		}
+	// end of secondary structure related methods
 
-		// map values to [0,1]
-		double max = 0;
-		double min = d[0][0];
-		for (int i = 0; i < size; i++) {
-			for (int j = 0; j < size; j++) {
-				if (d[i][j] > max)
-					max = d[i][j];
-				if (d[i][j] < min)
-					min = d[i][j];
-			}
-		}
-		max = Math.min(max, 3); // cut off at 3
-		min = Math.max(min, -3); // cut off at -3
-		assert (max >= 0);
-		assert (min <= 0);
-		if (max - min > 0) {
-			for (int i = 0; i < size; i++) {
-				for (int j = i; j < size; j++) {
-					d[i][j] = (d[i][j] - min) / (max - min);
-				}
+	/**
+	 * Returns the contact density map for the current model. The map is created 
+	 * from the graph on first use and afterwards kept up to date by addEdge and
+	 * removeEdge.
+	 */
+	public synchronized ContactDensityMap getDensityMap() {
+		if (densityMap == null) {
+			int[] pairs = new int[2 * graph.getEdgeCount()];
+			int k = 0;
+			for (RIGEdge cont : graph.getEdges()) {
+				Pair<RIGNode> pair = graph.getEndpoints(cont);
+				int i = pair.getFirst().getResidueSerial();
+				int j = pair.getSecond().getResidueSerial();
+				// contacts are counted in the upper triangle, see updateDensityMap
+				pairs[k++] = (i > j && !isDirected()) ? j : i;
+				pairs[k++] = (i > j && !isDirected()) ? i : j;
 			}
+			densityMap = new ContactDensityMap(getMatrixSize(), pairs);
 		}
-		return d;
+		return densityMap;
 	}
 
 	public TinkerRunner runTinker(TinkerStatusNotifier tinkerStatusNotifier, TinkerRunner.PARALLEL parallel,
@@ -862,6 +929,7 @@ public abstract class Model {
 			tinker.setAdditionalConstraints(this.gmbp.getConstraints());
 		}
 		if (ss) {
+			calcPendingSecondaryStructure();
 			tinker.addSSConstraints(this.secondaryStructure);
 		}
 		try {
@@ -895,6 +963,25 @@ public abstract class Model {
 		return deltaRank.getMatrix();
 	}
 
+	/**
+	 * Adds/removes the given contact to/from the density map. Contacts are 
+	 * counted in the upper triangle, for undirected graphs the order of the 
+	 * end points does not matter.
+	 */
+	private synchronized void updateDensityMap(Pair<Integer> cont, boolean add) {
+		int i = cont.getFirst();
+		int j = cont.getSecond();
+		if (i > j && !isDirected()) {
+			i = cont.getSecond();
+			j = cont.getFirst();
+		}
+		if (add) {
+			densityMap.addContact(i, j);
+		} else {
+			densityMap.removeContact(i, j);
+		}
+	}
+
 	private void updateDeltaRankMap(Pair<Integer> cont) {
 		deltaRank.setGraph(graph);
 		deltaRank.updateMap(cont);
@@ -971,6 +1058,7 @@ public abstract class Model {
 	public boolean restoreBackupGraph() {
 		if(this.backupGraph == null) return false;
 		this.graph = this.backupGraph.copy();
+		this.densityMap = null;
 		return true;
 	}
 	
@@ -992,6 +1080,7 @@ public abstract class Model {
 	 */
 	public void discretizeGraphByWeightCutoff(double weightCutoff) {
 		this.graph.discretizeByWeightCutoff(weightCutoff);
+		this.densityMap = null;
 	}
 	
 	/**
@@ -1001,6 +1090,7 @@ public abstract class Model {
 	public void discretizeGraphByOrderedWeights(int fraction) {
 		int top = this.graph.getFullLength() / fraction;
 		this.graph.discretizeByNumContacts(top);
+		this.densityMap = null;
 	}
 
 	public void addBestDR() {
@@ -0,0 +1,184 @@
+package cmview.datasources;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cmview.Start;
+
+/**
+ * Workspace wide cache of loaded models, so that loading the same structure with
+ * the same parameters again does not download, parse and build the graph again.
+ * <p>
+ * Entries are kept in least recently used order and evicted once there are more
+ * than a maximum number of entries or their estimated memory use exceeds a
+ * limit. Evicted models are not dropped right away but kept as soft references,
+ * i.e. they (and their derived matrices) can still be reused until the garbage
+ * collector needs the memory.
+ * <p>
+ * The cache keeps its own copies of the models' graphs: models put into or
+ * taken from the cache can be modified freely without affecting cached entries.
+ */
+public class ModelCache {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final long BYTES_PER_RESIDUE = 2500;		// rough memory use of a residue (atoms, graph node)
+	private static final long BYTES_PER_CONTACT = 200;		// rough memory use of a graph edge
+
+	/*--------------------------- member variables --------------------------*/
+	private final int maxEntries;
+	private final long maxBytes;
+
+	private final LinkedHashMap<String, Model> entries;				// in access order, eldest first
+	private final HashMap<String, Long> entrySizes;					// estimated bytes per entry
+	private final HashMap<String, SoftReference<Model>> evicted;	// fallback for evicted entries
+	private long usedBytes;
+
+	private int hits;
+	private int softHits;
+	private int misses;
+	private int evictions;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a new cache.
+	 * @param maxEntries the maximum number of strongly referenced models, 0 disables the cache
+	 * @param maxMegabytes the maximum estimated memory use of strongly referenced models
+	 */
+	public ModelCache(int maxEntries, int maxMegabytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxMegabytes * 1024L * 1024L;
+		this.entries = new LinkedHashMap<String, Model>(16, 0.75f, true);
+		this.entrySizes = new HashMap<String, Long>();
+		this.evicted = new HashMap<String, SoftReference<Model>>();
+	}
+
+	/*---------------------------- static methods ---------------------------*/
+
+	/**
+	 * Returns the cache key for a model loaded with the given parameters.
+	 * @param source where the model comes from, e.g. a pdb code or a file name
+	 * @param allModels whether the graph is the ensemble graph of all models
+	 */
+	public static String getKey(String source, String chainCode, int modelSerial, boolean allModels,
+			String contactType, double cutoff, int minSeqSep, int maxSeqSep) {
+		return source + "|" + chainCode + "|" + (allModels?"all":Integer.toString(modelSerial)) + "|" + contactType + "|" + cutoff + "|" + minSeqSep + "|" + maxSeqSep;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns true if models are being cached */
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/**
+	 * Returns a copy of the model cached under the given key, with its own graph
+	 * and a new loadedGraphID, or null if there is none. The ID is registered
+	 * in {@link Start} like the one of a freshly loaded model, so that models
+	 * loaded twice get distinct alignment tags and PyMOL object names.
+	 */
+	public synchronized Model get(String key) {
+		if(!isEnabled()) return null;
+		Model mod = entries.get(key);
+		if(mod != null) {
+			hits++;
+		} else {
+			SoftReference<Model> ref = evicted.remove(key);
+			mod = (ref == null) ? null : ref.get();
+			if(mod == null) {
+				misses++;
+				return null;
+			}
+			softHits++;
+			store(key, mod);
+		}
+		Model copy = mod.copyWithOwnGraph();
+		copy.loadedGraphID = Start.setLoadedGraphID(mod.getLoadedGraphID(), copy);
+		return copy;
+	}
+
+	/**
+	 * Caches a copy of the given freshly loaded model under the given key,
+	 * replacing an existing entry.
+	 */
+	public synchronized void put(String key, Model mod) {
+		if(!isEnabled()) return;
+		remove(key);
+		evicted.remove(key);
+		store(key, mod.copyWithOwnGraph());
+	}
+
+	/**
+	 * Removes all cached models.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		entrySizes.clear();
+		evicted.clear();
+		usedBytes = 0;
+	}
+
+	/** Returns the number of lookups that found a cached model */
+	public synchronized int getHits() {
+		return hits + softHits;
+	}
+
+	/** Returns the number of lookups that found no cached model */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns a one line summary of the cache usage.
+	 */
+	public synchronized String getStatistics() {
+		int lookups = hits + softHits + misses;
+		return String.format("Model cache: %d models (%d MB), %d lookups, %d hits (%d after eviction), %d misses, %d evictions, hit rate %.1f%%",
+				entries.size(), usedBytes / (1024 * 1024), lookups, hits + softHits, softHits, misses, evictions,
+				lookups == 0 ? 0.0 : 100.0 * (hits + softHits) / lookups);
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private void store(String key, Model mod) {
+		long bytes = estimateSize(mod);
+		entries.put(key, mod);
+		entrySizes.put(key, bytes);
+		usedBytes += bytes;
+		evictIfNeeded();
+	}
+
+	private void remove(String key) {
+		if(entries.remove(key) != null) {
+			usedBytes -= entrySizes.remove(key);
+		}
+	}
+
+	/**
+	 * Moves the least recently used entries to the soft references until the
+	 * limits are met again.
+	 */
+	private void evictIfNeeded() {
+		Iterator<Map.Entry<String, Model>> it = entries.entrySet().iterator();
+		while(it.hasNext() && (entries.size() > maxEntries || usedBytes > maxBytes)) {
+			Map.Entry<String, Model> eldest = it.next();
+			it.remove();
+			usedBytes -= entrySizes.remove(eldest.getKey());
+			evicted.put(eldest.getKey(), new SoftReference<Model>(eldest.getValue()));
+			evictions++;
+		}
+		// forget soft references which have been cleared by the garbage collector
+		Iterator<SoftReference<Model>> refs = evicted.values().iterator();
+		while(refs.hasNext()) {
+			if(refs.next().get() == null) refs.remove();
+		}
+	}
+
+	private static long estimateSize(Model mod) {
+		return mod.getMatrixSize() * BYTES_PER_RESIDUE + mod.getNumberOfContacts() * BYTES_PER_CONTACT;
+	}
+}
@@ -0,0 +1,285 @@
+package cmview.datasources;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import owl.core.util.FileTypeGuesser;
+
+import cmview.Start;
+
+/**
+ * The load jobs for the different sources of models, to be run through a
+ * {@link LoadHandle}. Used by the load dialogs as well as for models given on
+ * the command line.
+ */
+public class ModelLoader {
+
+	/*---------------------------- static methods ---------------------------*/
+
+	/**
+	 * Returns a job loading a chain of an entry of the online PDB, reusing a
+	 * previously fetched file or loaded model. The file is fetched from the local
+	 * PDB mirror if there is one, see {@link Start#getPdbPrefetcher()}.
+	 */
+	public static LoadHandle.Job fromPdbFtp(final String ac, final int modelSerial, final boolean loadAllModels, final String cc,
+			final String ct, final double dist, final int minss, final int maxss) {
+		return new LoadHandle.Job() {
+			public Model load(LoadHandle handle) throws ModelConstructionError, IOException {
+				String cacheKey = ModelCache.getKey("pdb:" + ac.toLowerCase(), cc, modelSerial, loadAllModels, ct, dist, minss, maxss);
+				handle.startPhase(LoadHandle.Phase.LOOKUP);
+				Model mod = Start.getModelCache().get(cacheKey);
+				if(mod != null) {
+					System.out.println("Reusing previously loaded model");
+					return mod;
+				}
+				File localFile = Start.getFilename2PdbCode(ac);
+				if(localFile == null) {
+					handle.startPhase(LoadHandle.Phase.DOWNLOAD);
+					try {
+						localFile = Start.getPdbPrefetcher().fetch(ac);
+					} catch (InterruptedException e) {
+						throw new ModelConstructionError("Fetching of " + ac + " interrupted");
+					}
+					Start.setFilename2PdbCode(ac, localFile);
+				}
+				PdbFtpModel ftpMod = new PdbFtpModel(localFile, ct, dist, minss, maxss);
+				ftpMod.setLoadHandle(handle);
+				try {
+					ftpMod.load(cc, modelSerial, loadAllModels);
+				} catch (ModelConstructionError e) {
+					// failed or cancelled after the model registered its ID
+					Start.removeLoadedGraphID(ftpMod.getLoadedGraphID(), ftpMod);
+					throw e;
+				} finally {
+					ftpMod.setLoadHandle(null);
+				}
+				finish(handle, ftpMod);
+				cache(handle, cacheKey, ftpMod);
+				return ftpMod;
+			}
+		};
+	}
+
+	/**
+	 * Returns a job loading a chain of a local PDB file, reusing a previously
+	 * loaded model of the unchanged file.
+	 */
+	public static LoadHandle.Job fromPdbFile(final String f, final int modelSerial, final boolean loadAllModels, final String cc,
+			final String ct, final double dist, final int minss, final int maxss) {
+		return new LoadHandle.Job() {
+			public Model load(LoadHandle handle) throws ModelConstructionError, IOException {
+				File file = new File(f);
+				String cacheKey = ModelCache.getKey("file:" + file.getAbsolutePath() + "@" + file.lastModified(), cc, modelSerial, loadAllModels, ct, dist, minss, maxss);
+				handle.startPhase(LoadHandle.Phase.LOOKUP);
+				Model mod = Start.getModelCache().get(cacheKey);
+				if(mod != null) {
+					System.out.println("Reusing previously loaded model");
+					return mod;
+				}
+				PdbFileModel fileMod = new PdbFileModel(f, ct, dist, minss, maxss);
+				fileMod.setLoadHandle(handle);
+				try {
+					fileMod.load(cc, modelSerial, loadAllModels);
+				} catch (ModelConstructionError e) {
+					// failed or cancelled after the model registered its ID
+					Start.removeLoadedGraphID(fileMod.getLoadedGraphID(), fileMod);
+					throw e;
+				} finally {
+					fileMod.setLoadHandle(null);
+				}
+				finish(handle, fileMod);
+				cache(handle, cacheKey, fileMod);
+				return fileMod;
+			}
+		};
+	}
+
+	/**
+	 * Returns a job loading the given file, which can be a PDB file, CMView
+	 * contact map file, CASP TS file or CASP RR file. The chain code and contact
+	 * definition only apply to structure files.
+	 * @throws FileNotFoundException if the file does not exist
+	 * @throws IOException if the file can not be read or its type is not recognized
+	 */
+	public static LoadHandle.Job fromFile(String f, String cc, String ct, double dist, int minss, int maxss) throws IOException {
+		int fileType = FileTypeGuesser.guessFileType(new File(f));
+		switch(fileType) {
+		case FileTypeGuesser.PDB_FILE:
+		case FileTypeGuesser.CASP_TS_FILE:
+			return fromPdbFile(f, 1, false, cc, ct, dist, minss, maxss);
+		case FileTypeGuesser.OWL_CM_FILE:
+			return fromCmFile(f);
+		case FileTypeGuesser.CASP_RR_FILE:
+			return fromCaspRRFile(f);
+		default:
+			throw new IOException("Could not recognize file type of " + f);
+		}
+	}
+
+	/**
+	 * Returns a job loading a contact map file.
+	 */
+	public static LoadHandle.Job fromCmFile(final String f) {
+		return new LoadHandle.Job() {
+			public Model load(LoadHandle handle) throws ModelConstructionError {
+				handle.startPhase(LoadHandle.Phase.PARSE);
+				return finish(handle, new ContactMapFileModel(f));
+			}
+		};
+	}
+
+	/**
+	 * Returns a job loading a CASP RR file.
+	 */
+	public static LoadHandle.Job fromCaspRRFile(final String f) {
+		return new LoadHandle.Job() {
+			public Model load(LoadHandle handle) throws ModelConstructionError {
+				handle.startPhase(LoadHandle.Phase.PARSE);
+				return finish(handle, new CaspRRFileModel(f));
+			}
+		};
+	}
+
+	/**
+	 * Returns a job loading a graph from the graph database.
+	 */
+	public static LoadHandle.Job fromGraphDb(final String db, final int gid) {
+		return new LoadHandle.Job() {
+			public Model load(LoadHandle handle) throws ModelConstructionError {
+				handle.startPhase(LoadHandle.Phase.PARSE);
+				return finish(handle, new GraphDbModel(gid, db));
+			}
+		};
+	}
+
+	/**
+	 * Returns a job loading the averaged contact map of a directory of CASP
+	 * server predictions.
+	 */
+	public static LoadHandle.Job fromCaspServerModels(final File dir, final String ct, final double dist, final int minss, final int maxss,
+			final boolean onlyFirstModels, final double consensusSSthresh) {
+		return new LoadHandle.Job() {
+			public Model load(LoadHandle handle) throws ModelConstructionError {
+				// reading the files and calculating the contacts are done in one pass
+				handle.startPhase(LoadHandle.Phase.CONTACTS);
+				return finish(handle, new CaspServerPredictionsModel(dir, ct, dist, minss, maxss, onlyFirstModels, consensusSSthresh, handle));
+			}
+		};
+	}
+
+	/**
+	 * Returns a job loading a model only to render its contact map without the
+	 * GUI (see {@link cmview.BatchRenderer}). The source is a file as for
+	 * {@link #fromFile} or a PDB code. Unlike the other jobs the model is neither
+	 * registered in {@link Start} nor put into the model cache, and its secondary
+	 * structure and temporary PDB file are not computed, so that it can be
+	 * collected once its image is written.
+	 * @throws IOException if the source is neither a file of a known type nor a PDB code
+	 */
+	public static LoadHandle.Job forRendering(final String source, final String cc,
+			final String ct, final double dist, final int minss, final int maxss) throws IOException {
+		final File file = new File(source);
+		if(!file.exists()) {
+			if(source.length() != 4 || !Character.isDigit(source.charAt(0))) {
+				throw new IOException("Neither a file nor a PDB code: " + source);
+			}
+			return new LoadHandle.Job() {
+				public Model load(LoadHandle handle) throws ModelConstructionError, IOException {
+					handle.startPhase(LoadHandle.Phase.DOWNLOAD);
+					File cifFile;
+					try {
+						cifFile = Start.getPdbPrefetcher().fetch(source);
+					} catch (InterruptedException e) {
+						throw new ModelConstructionError("Fetching of " + source + " interrupted");
+					}
+					PdbFtpModel mod = new PdbFtpModel(cifFile, ct, dist, minss, maxss);
+					prepareForRendering(handle, mod);
+					try {
+						mod.load(cc, 1, false);
+					} finally {
+						mod.setLoadHandle(null);
+					}
+					return mod;
+				}
+			};
+		}
+		final int fileType = FileTypeGuesser.guessFileType(file);
+		switch(fileType) {
+		case FileTypeGuesser.PDB_FILE:
+		case FileTypeGuesser.CASP_TS_FILE:
+			return new LoadHandle.Job() {
+				public Model load(LoadHandle handle) throws ModelConstructionError, IOException {
+					PdbFileModel mod = new PdbFileModel(source, ct, dist, minss, maxss);
+					prepareForRendering(handle, mod);
+					try {
+						mod.load(cc, 1, false);
+					} catch (NumberFormatException e) {
+						throw new ModelConstructionError("Invalid number in " + source + ": " + e.getMessage(), e);
+					} finally {
+						mod.setLoadHandle(null);
+					}
+					return mod;
+				}
+			};
+		case FileTypeGuesser.OWL_CM_FILE:
+		case FileTypeGuesser.CASP_RR_FILE:
+			return new LoadHandle.Job() {
+				public Model load(LoadHandle handle) throws ModelConstructionError {
+					handle.startPhase(LoadHandle.Phase.PARSE);
+					Model mod = (fileType == FileTypeGuesser.OWL_CM_FILE) ? new ContactMapFileModel(source) : new CaspRRFileModel(source);
+					// these register their ID when constructed
+					Start.removeLoadedGraphID(mod.getLoadedGraphID(), mod);
+					return mod;
+				}
+			};
+		default:
+			throw new IOException("Could not recognize file type of " + source);
+		}
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Does the work deferred by loading which is needed to display the model
+	 * anyway, so that it is done in the background as well. If loading has been
+	 * cancelled the loadedGraphID of the model is released again.
+	 */
+	private static Model finish(LoadHandle handle, Model mod) throws ModelConstructionError {
+		try {
+			if(mod.has3DCoordinates()) {
+				handle.startPhase(LoadHandle.Phase.SECONDARY_STRUCTURE);
+				mod.getSecondaryStructure();
+			}
+			handle.checkCancelled();
+		} catch (ModelConstructionError e) {
+			// models read from contact files register their ID when constructed
+			Start.removeLoadedGraphID(mod.getLoadedGraphID(), mod);
+			throw e;
+		}
+		return mod;
+	}
+
+	/**
+	 * Prepares a structure model to be loaded for rendering only, the caller
+	 * loads the first model of the chain and resets the load handle.
+	 */
+	private static void prepareForRendering(LoadHandle handle, Model mod) {
+		mod.setRenderOnly(true);
+		mod.setLoadHandle(handle);
+	}
+
+	/**
+	 * Puts the loaded model into the model cache, unless loading has been
+	 * cancelled.
+	 */
+	private static void cache(LoadHandle handle, String cacheKey, Model mod) throws ModelConstructionError {
+		try {
+			handle.checkCancelled();
+		} catch (ModelConstructionError e) {
+			Start.removeLoadedGraphID(mod.getLoadedGraphID(), mod);
+			throw e;
+		}
+		Start.getModelCache().put(cacheKey, mod);
+	}
+}
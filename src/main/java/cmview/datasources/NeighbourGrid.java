@@ -0,0 +1,192 @@
+package cmview.datasources;
+
+import java.util.Arrays;
+
+/**
+ * A uniform spatial grid (cell list) over a set of points used to find all pairs
+ * of points closer than a given cutoff in roughly linear time. Points are binned
+ * into cubic cells with an edge length of at least the cutoff, so that all
+ * neighbours of a point are found in its own cell and the 26 cells around it.
+ * Points are given as a flat array of coordinates (x0,y0,z0,x1,y1,z1,...) and
+ * are referred to by their index in this array.
+ */
+public class NeighbourGrid {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final int MAX_CELLS_PER_POINT = 8;	// upper bound for cells/points, avoids huge sparse grids
+
+	/*--------------------------- member variables --------------------------*/
+	private final double[] coords;		// the points, 3 doubles per point
+	private final int numPoints;
+	private final double cutoffSq;
+
+	private double minX, minY, minZ;	// lower corner of the grid
+	private double cellSize;
+	private int nx, ny, nz;				// grid dimensions in cells
+
+	private int[] cellStart;			// points of cell c are cellPoints[cellStart[c]..cellStart[c+1]-1]
+	private int[] cellPoints;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Builds the grid for the given points.
+	 * @param coords the coordinates, 3 consecutive values per point
+	 * @param numPoints the number of points to use from coords
+	 * @param cutoff the distance cutoff (in Angstrom) for neighbour queries
+	 */
+	public NeighbourGrid(double[] coords, int numPoints, double cutoff) {
+		if(cutoff <= 0) {
+			throw new IllegalArgumentException("Distance cutoff must be positive, got " + cutoff);
+		}
+		this.coords = coords;
+		this.numPoints = numPoints;
+		this.cutoffSq = cutoff * cutoff;
+		build(cutoff);
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the number of points in this grid */
+	public int getNumPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Finds all pairs of points of this grid whose distance is at most the cutoff.
+	 * @return the pairs as a flat array (a0,b0,a1,b1,...) of point indices with a &lt; b
+	 */
+	public int[] getPairsWithinCutoff() {
+		IntList pairs = new IntList();
+		for(int a = 0; a < numPoints; a++) {
+			collectNeighbours(coords[3*a], coords[3*a+1], coords[3*a+2], a, pairs, a);
+		}
+		return pairs.toArray();
+	}
+
+	/**
+	 * Finds all pairs of a point of the given other point set and a point of this
+	 * grid whose distance is at most the cutoff.
+	 * @param otherCoords the query points, 3 consecutive values per point
+	 * @param numOther the number of points to use from otherCoords
+	 * @return the pairs as a flat array (a0,b0,a1,b1,...) where a is an index into
+	 * otherCoords and b an index into this grid
+	 */
+	public int[] getPairsWithinCutoff(double[] otherCoords, int numOther) {
+		IntList pairs = new IntList();
+		for(int a = 0; a < numOther; a++) {
+			collectNeighbours(otherCoords[3*a], otherCoords[3*a+1], otherCoords[3*a+2], -1, pairs, a);
+		}
+		return pairs.toArray();
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Bins all points into cells using a counting sort.
+	 */
+	private void build(double cutoff) {
+		double maxX, maxY, maxZ;
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+		for(int p = 0; p < numPoints; p++) {
+			double x = coords[3*p], y = coords[3*p+1], z = coords[3*p+2];
+			if(x < minX) minX = x;
+			if(y < minY) minY = y;
+			if(z < minZ) minZ = z;
+			if(x > maxX) maxX = x;
+			if(y > maxY) maxY = y;
+			if(z > maxZ) maxZ = z;
+		}
+		if(numPoints == 0) {
+			minX = minY = minZ = maxX = maxY = maxZ = 0;
+		}
+
+		// cells must not be smaller than the cutoff, but may be larger if the
+		// points are spread out very sparsely
+		cellSize = cutoff;
+		long maxCells = Math.max(1L, (long) MAX_CELLS_PER_POINT * numPoints);
+		while(true) {
+			nx = (int) ((maxX - minX) / cellSize) + 1;
+			ny = (int) ((maxY - minY) / cellSize) + 1;
+			nz = (int) ((maxZ - minZ) / cellSize) + 1;
+			if((long) nx * ny * nz <= maxCells) break;
+			cellSize *= 1.5;
+		}
+
+		int numCells = nx * ny * nz;
+		int[] pointCell = new int[numPoints];
+		cellStart = new int[numCells + 1];
+		for(int p = 0; p < numPoints; p++) {
+			int c = cellIndex(cellCoord(coords[3*p], minX, nx), cellCoord(coords[3*p+1], minY, ny), cellCoord(coords[3*p+2], minZ, nz));
+			pointCell[p] = c;
+			cellStart[c + 1]++;
+		}
+		for(int c = 0; c < numCells; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] fill = Arrays.copyOf(cellStart, numCells);
+		cellPoints = new int[numPoints];
+		for(int p = 0; p < numPoints; p++) {
+			cellPoints[fill[pointCell[p]]++] = p;
+		}
+	}
+
+	/**
+	 * Adds (tag,b) to pairs for every point b of this grid within the cutoff of
+	 * (x,y,z) and with b &gt; minIndex.
+	 */
+	private void collectNeighbours(double x, double y, double z, int minIndex, IntList pairs, int tag) {
+		int cx = (int) Math.floor((x - minX) / cellSize);
+		int cy = (int) Math.floor((y - minY) / cellSize);
+		int cz = (int) Math.floor((z - minZ) / cellSize);
+		int x0 = Math.max(cx - 1, 0), x1 = Math.min(cx + 1, nx - 1);
+		int y0 = Math.max(cy - 1, 0), y1 = Math.min(cy + 1, ny - 1);
+		int z0 = Math.max(cz - 1, 0), z1 = Math.min(cz + 1, nz - 1);
+		for(int i = x0; i <= x1; i++) {
+			for(int j = y0; j <= y1; j++) {
+				for(int k = z0; k <= z1; k++) {
+					int c = cellIndex(i, j, k);
+					for(int q = cellStart[c]; q < cellStart[c + 1]; q++) {
+						int b = cellPoints[q];
+						if(b <= minIndex) continue;
+						double dx = coords[3*b] - x;
+						double dy = coords[3*b+1] - y;
+						double dz = coords[3*b+2] - z;
+						if(dx*dx + dy*dy + dz*dz <= cutoffSq) {
+							pairs.add(tag);
+							pairs.add(b);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private int cellCoord(double v, double min, int n) {
+		return Math.min((int) ((v - min) / cellSize), n - 1);
+	}
+
+	private int cellIndex(int i, int j, int k) {
+		return (i * ny + j) * nz + k;
+	}
+
+	/**
+	 * Minimal growable int array to collect pairs without boxing.
+	 */
+	private static class IntList {
+		private int[] data = new int[64];
+		private int size = 0;
+
+		void add(int v) {
+			if(size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = v;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
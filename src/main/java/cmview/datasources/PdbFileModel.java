@@ -1,17 +1,13 @@
 package cmview.datasources;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
-import org.biojava.nbio.structure.io.PDBFileParser;
 import org.biojava.nbio.structure.secstruc.SecStrucCalc;
 
 import owl.core.structure.*;
-import owl.core.structure.graphs.RIGEnsemble;
 import owl.core.structure.graphs.RIGGeometry;
-import owl.core.util.FileFormatException;
 import cmview.Start;
 
 /** 
@@ -19,8 +15,7 @@ import cmview.Start;
  */
 public class PdbFileModel extends Model {
 
-	private String fileName;	// needed to load ensembl graph from all models in the file
-	private PdbfileParser parser;
+	private String fileName;	// the pdb file, parsed only once via the StructureCache
 	
 	/**
 	 * Overloaded constructor to load the data.
@@ -31,7 +26,6 @@ public class PdbFileModel extends Model {
 		this.distCutoff = distCutoff;
 		this.minSeqSep = minSeqSep;
 		this.maxSeqSep = maxSeqSep;
-		this.parser = new PdbfileParser(fileName);
 		this.fileName = fileName;
 	}
 
@@ -56,11 +50,9 @@ public class PdbFileModel extends Model {
 		try {
 			load(pdbChainCode, modelSerial, false);
 		} catch (NumberFormatException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new ModelConstructionError("Invalid number in " + fileName + ": " + e.getMessage(), e);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new ModelConstructionError("Could not read " + fileName + ": " + e.getMessage(), e);
 		}
 	}
 	
@@ -81,8 +73,9 @@ public class PdbFileModel extends Model {
 		// load PDB file
 		try {
 			//PdbAsymUnit fullpdb = new PdbAsymUnit(new File(fileName),modelSerial);
-			PDBFileParser pdbpars = new PDBFileParser();
-			Structure fullpdb = pdbpars.parsePDBFile(new FileInputStream(fileName));
+			startPhase(LoadHandle.Phase.PARSE);
+			// parse the file unless it has been parsed for listing chains or models already
+			Structure fullpdb = StructureCache.readPdbFile(new File(fileName));
 			
 	        // Predict and assign the SS of the Structure
 	        /*SecStrucCalc ssp = new SecStrucCalc();
@@ -107,25 +100,19 @@ public class PdbFileModel extends Model {
 				//this.pdb = fullpdb.getChain(pdbChainCode);
 				this.pdb = fullpdb.getPolyChainByPDB(pdbChainCode, modelSerial-1);
 			}
-			this.secondaryStructure = Utils.convertSecondStruc(fullpdb, pdb);
+			setSecondaryStructureFromPdb();	// calculated on first use
 			//this.secondaryStructure = pdb.getSecondaryStructure(); 	// in case, dssp is n/a, use ss from pdb
 			//super.checkAndAssignSecondaryStructure();				// if dssp is a/, recalculate ss
-			if(loadEnsembleGraph == false || this.parser.getModels().length == 1) {
+			startPhase(LoadHandle.Phase.CONTACTS);
+			if(loadEnsembleGraph == false || fullpdb.nrModels() == 1) {
 				//this.graph = pdb.getRIGraph(edgeType, distCutoff);
 				this.graph = Utils.getRIGraph(pdb, edgeType, distCutoff, modelSerial);
 			} else {
-				RIGEnsemble e = new RIGEnsemble(edgeType, distCutoff);
-				try {
-					e.loadFromMultiModelFile(new File(this.fileName));
-					this.graph = e.getAverageGraph();
-					this.graph.setPdbCode(this.pdb.getStructure().getPDBCode());
-					this.graph.setChainCode(pdbChainCode);
-					this.setIsGraphWeighted(true);
-				} catch (IOException e1) {
-					throw new ModelConstructionError("Error loading ensemble graph: " + e1.getMessage());
-				} catch (FileFormatException e1) {
-					throw new ModelConstructionError("Error loading ensemble graph: " + e1.getMessage());
-				}
+				// all models come from the structure parsed above
+				this.graph = Utils.getEnsembleGraph(fullpdb, pdbChainCode, edgeType, distCutoff);
+				this.graph.setPdbCode(this.pdb.getStructure().getPDBCode());
+				this.graph.setChainCode(pdbChainCode);
+				this.setIsGraphWeighted(true);
 			}
 			
 			// this.graph and this.residues are now available
@@ -178,11 +165,13 @@ public class PdbFileModel extends Model {
 			} else {
 				name = new File(this.fileName).getName();
 			}
-			this.loadedGraphID = Start.setLoadedGraphID(name, this);
+			registerLoadedGraphID(name);
 
+			startPhase(LoadHandle.Phase.OVERLAYS);
 			super.writeTempPdbFile();
 			
 			super.filterContacts(minSeqSep, maxSeqSep);
+			super.initResidueCoordinates();
 			super.printWarnings(pdbChainCode);
 			
 		} catch (PdbLoadException e) {
@@ -198,7 +187,7 @@ public class PdbFileModel extends Model {
 	 * @throws GetterError
 	 */
 	public String[] getChains() throws PdbLoadException {
-		return parser.getChains();
+		return Utils.getChainCodes(getStructure());
 	}
 
 	/**
@@ -208,6 +197,18 @@ public class PdbFileModel extends Model {
 	 * @throws GetterError
 	 */
 	public Integer[] getModels() throws PdbLoadException {
-		return parser.getModels();
+		return Utils.getModelSerials(getStructure());
+	}
+	
+	/**
+	 * Returns the parsed structure of the pdb file. The file is parsed once for
+	 * listing chains and models and loading, see {@link StructureCache}.
+	 */
+	private Structure getStructure() throws PdbLoadException {
+		try {
+			return StructureCache.readPdbFile(new File(fileName));
+		} catch (IOException e) {
+			throw new PdbLoadException("Could not read " + fileName + ": " + e.getMessage());
+		}
 	}
 }
@@ -1,7 +1,5 @@
 package cmview.datasources;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,9 +10,6 @@ import org.biojava.nbio.structure.ResidueNumber;
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.StructureIO;
-import org.biojava.nbio.structure.io.mmcif.MMcifParser;
-import org.biojava.nbio.structure.io.mmcif.SimpleMMcifConsumer;
-import org.biojava.nbio.structure.io.mmcif.SimpleMMcifParser;
 import org.biojava.nbio.structure.secstruc.SecStrucCalc;
 import org.biojava.nbio.structure.secstruc.SecStrucElement;
 import org.biojava.nbio.structure.secstruc.SecStrucInfo;
@@ -22,9 +17,7 @@ import org.biojava.nbio.structure.secstruc.SecStrucState;
 import org.biojava.nbio.structure.secstruc.SecStrucTools;
 
 import owl.core.structure.*;
-import owl.core.structure.graphs.RIGEnsemble;
 import owl.core.structure.graphs.RIGGeometry;
-import owl.core.util.FileFormatException;
 
 
 import cmview.Start;
@@ -36,25 +29,20 @@ import cmview.Start;
 public class PdbFtpModel extends Model {
     
 	
-	private File cifFile;		// the cached cif file downloaded from the PDB
-	private CiffileParser parser;
+	private File cifFile;		// the cached cif file downloaded from the PDB, parsed only once via the StructureCache
 		
 	/**
 	 * Overloaded constructor to load the data.
 	 * @throws IOException 
-	 * @throws FileFormatException 
 	 */
 	public PdbFtpModel(String pdbCode, String edgeType, double distCutoff, int minSeqSep, int maxSeqSep) throws IOException, ModelConstructionError {
 		this.edgeType = edgeType; 
 		this.distCutoff = distCutoff;
 		this.minSeqSep = minSeqSep;
 		this.maxSeqSep = maxSeqSep;
-		try {
-			this.parser = new CiffileParser(pdbCode, Start.PDB_FTP_URL);
-		} catch (FileFormatException e) {
-			throw new ModelConstructionError(e.getMessage());
-		}
-		this.cifFile = parser.getCifFile();
+		File cifFile = new File(Start.TEMP_DIR, pdbCode + ".cif");
+		PdbAsymUnit.grabCifFile(null, Start.PDB_FTP_URL, pdbCode, cifFile, true);
+		this.cifFile = cifFile;
 	}
 	
 	public PdbFtpModel(File cifFile, String edgeType, double distCutoff, int minSeqSep, int maxSeqSep) throws IOException, ModelConstructionError {
@@ -63,15 +51,13 @@ public class PdbFtpModel extends Model {
 		this.distCutoff = distCutoff;
 		this.minSeqSep = minSeqSep;
 		this.maxSeqSep = maxSeqSep;
-		try {
-			this.parser = new CiffileParser(cifFile);
-		} catch (FileFormatException e) {
-			throw new ModelConstructionError(e.getMessage());
-		}
 	}
 	
 	public PdbFtpModel(Model mod) {
 	    super(mod);
+	    if(mod instanceof PdbFtpModel) {
+	    	this.cifFile = ((PdbFtpModel) mod).cifFile;
+	    }
 	}
 	
 	public PdbFtpModel copy() {
@@ -107,23 +93,17 @@ public class PdbFtpModel extends Model {
 		try {
 			//PdbAsymUnit fullpdb = new PdbAsymUnit(cifFile,modelSerial);
 			
-	        MMcifParser parser = new SimpleMMcifParser();
-
-	        SimpleMMcifConsumer consumer = new SimpleMMcifConsumer();
-
-	        // The Consumer builds up the BioJava - structure object.
-	        // you could also hook in your own and build up you own data model.          
-	        parser.addMMcifConsumer(consumer);
-
-	        BufferedReader br = new BufferedReader(new FileReader(cifFile));
-	       
-	        parser.parse(br);
-	         
-
-	        // now get the protein structure.
-	        Structure fullpdb = consumer.getStructure();
-	        
-	        br.close();
+			startPhase(LoadHandle.Phase.PARSE);
+	        // parse the file or take the parsed structure from the on-disk cache, 
+	        // for huge files only read the selected chain
+	        Structure fullpdb;
+	        int modelIndex = modelSerial-1;
+	        if(isReadChainOnly()) {
+	        	fullpdb = Start.getStructureCache().getChainReader(cifFile).read(pdbChainCode, loadEnsembleGraph?0:modelSerial);
+	        	if(!loadEnsembleGraph) modelIndex = 0;	// the only model read
+	        } else {
+	        	fullpdb = StructureCache.readCifFile(cifFile);
+	        }
 	        
 	        
 	        
@@ -142,7 +122,7 @@ public class PdbFtpModel extends Model {
 			if(pdbChainCode == null) {
 				//this.pdb = fullpdb.getFirstChain();
 				//pdbChainCode = this.pdb.getPdbChainCode(); 
-				this.pdb = fullpdb.getChains(modelSerial-1).get(0);
+				this.pdb = fullpdb.getChains(modelIndex).get(0);
 			
 				
 			//} else if(!fullpdb.containsPdbChainCode(pdbChainCode)) {
@@ -150,28 +130,24 @@ public class PdbFtpModel extends Model {
 				throw new ModelConstructionError("Chain '" + pdbChainCode + "' not found");
 			} else {
 				//this.pdb = fullpdb.getChain(pdbChainCode);	
-				this.pdb = fullpdb.getPolyChainByPDB(pdbChainCode, modelSerial-1);
+				this.pdb = fullpdb.getPolyChainByPDB(pdbChainCode, modelIndex);
 			}
 			
 			
-			this.secondaryStructure = Utils.convertSecondStruc(fullpdb, pdb);
+			setSecondaryStructureFromPdb();	// calculated on first use
 			//this.secondaryStructure = pdb.getSecondaryStructure();	// in case, dssp is n/a, use ss from pdb
 			//super.checkAndAssignSecondaryStructure();				// if dssp is a/, recalculate ss
-			if(loadEnsembleGraph == false || this.parser.getModels().length == 1) {
+			startPhase(LoadHandle.Phase.CONTACTS);
+			if(loadEnsembleGraph == false || fullpdb.nrModels() == 1) {
 			
 				
 				this.graph = Utils.getRIGraph(pdb, edgeType, distCutoff, modelSerial);
 			} else {
-				RIGEnsemble e = new RIGEnsemble(edgeType, distCutoff);
-				try {
-					e.loadFromMultiModelFile(this.cifFile);
-					this.graph = e.getAverageGraph();
-					this.graph.setPdbCode(this.pdb.getStructure().getPDBCode());
-					this.graph.setChainCode(pdbChainCode);
-					this.setIsGraphWeighted(true);
-				} catch (IOException e1) {
-					throw new ModelConstructionError("Error loading ensemble graph: " + e1.getMessage());
-				}
+				// all models come from the structure parsed above
+				this.graph = Utils.getEnsembleGraph(fullpdb, pdbChainCode, edgeType, distCutoff);
+				this.graph.setPdbCode(this.pdb.getStructure().getPDBCode());
+				this.graph.setChainCode(pdbChainCode);
+				this.setIsGraphWeighted(true);
 			}
 			
 			// this.graph and this.residues are now available
@@ -188,11 +164,13 @@ public class PdbFtpModel extends Model {
 			if (this.graph.getPdbCode().equals(PdbAsymUnit.NO_PDB_CODE)) {
 				name = DEFAULT_LOADEDGRAPHID;
 			} 
-			this.loadedGraphID = Start.setLoadedGraphID(name, this);
+			registerLoadedGraphID(name);
 
+			startPhase(LoadHandle.Phase.OVERLAYS);
 			super.writeTempPdbFile();
 			
 			super.filterContacts(minSeqSep, maxSeqSep);
+			super.initResidueCoordinates();
 			super.printWarnings(pdbChainCode);
 			
 		} catch (PdbLoadException e) {
@@ -201,9 +179,6 @@ public class PdbFtpModel extends Model {
 		} catch (IOException e) {
 			System.err.println("Failed to load structure.");
 			throw new ModelConstructionError(e.getMessage());
-		} catch (FileFormatException e) {
-			System.err.println("Failed to load structure.");
-			throw new ModelConstructionError(e.getMessage());
 		}
 	}
 	
@@ -213,7 +188,14 @@ public class PdbFtpModel extends Model {
 	 * @throws GetterError
 	 */
 	public String[] getChains() throws PdbLoadException {
-		return parser.getChains();
+		if(isReadChainOnly()) {
+			try {
+				return Start.getStructureCache().getChainReader(cifFile).getChainCodes();
+			} catch (IOException e) {
+				throw new PdbLoadException("Could not read " + cifFile + ": " + e.getMessage());
+			}
+		}
+		return Utils.getChainCodes(getStructure());
 	}
 
 	/**
@@ -223,6 +205,36 @@ public class PdbFtpModel extends Model {
 	 * @throws GetterError
 	 */
 	public Integer[] getModels() throws PdbLoadException {
-		return parser.getModels();
+		if(isReadChainOnly()) {
+			try {
+				return Start.getStructureCache().getChainReader(cifFile).getModelSerials();
+			} catch (IOException e) {
+				throw new PdbLoadException("Could not read " + cifFile + ": " + e.getMessage());
+			}
+		}
+		return Utils.getModelSerials(getStructure());
+	}
+	
+	/**
+	 * Returns true if the cif file is so large that only the selected chain is to 
+	 * be read (see {@link Start#CIF_CHAIN_READING_SIZE}), unless the whole file 
+	 * has been parsed already anyway.
+	 */
+	private boolean isReadChainOnly() {
+		return Start.CIF_CHAIN_READING_SIZE > 0 
+			&& cifFile.length() > Start.CIF_CHAIN_READING_SIZE * 1024L * 1024L
+			&& Start.getStructureCache().getParsedStructure(cifFile) == null;
+	}
+	
+	/**
+	 * Returns the parsed structure of the cif file. The file is parsed once for
+	 * listing chains and models and loading, see {@link StructureCache}.
+	 */
+	private Structure getStructure() throws PdbLoadException {
+		try {
+			return StructureCache.readCifFile(cifFile);
+		} catch (IOException e) {
+			throw new PdbLoadException("Could not read " + cifFile + ": " + e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,240 @@
+package cmview.datasources;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches the mmCIF files of PDB entries into a local directory (usually the
+ * temp directory, where files downloaded for loading are kept as well), so that
+ * a batch of structures can be opened without waiting for each download.
+ * <p>
+ * Files are taken from a local mirror of the PDB if possible, in the flat
+ * layout (1abc.cif.gz) or the divided layout of the PDB archive (ab/1abc.cif.gz),
+ * gzipped or not. Otherwise they are downloaded from the given base URL, as
+ * &lt;base url&gt;1abc.cif.gz, which may also be a file: URL or a local HTTP server.
+ * Entries are fetched concurrently by at most as many tasks as simultaneous
+ * connections are allowed, each taking the next entry from a shared queue. The
+ * limit applies to copies from the mirror as well. Failed downloads are retried
+ * after a growing delay, except if the entry does not exist.
+ * <p>
+ * Files are written to a temporary file and renamed when complete. Files already
+ * in the target directory are not fetched again.
+ */
+public class PdbPrefetcher {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final String[] SUFFIXES = {".cif.gz", ".cif"};
+	private static final long RETRY_DELAY = 1000;		// ms before the first retry, doubled for every further one
+	private static final int CONNECT_TIMEOUT = 30000;	// ms
+	private static final int READ_TIMEOUT = 60000;		// ms
+
+	/*--------------------------- member variables --------------------------*/
+	private final File mirrorDir;			// null if there is no local mirror
+	private final String baseUrl;			// null to use the mirror only
+	private final File targetDir;
+	private final int retries;
+	private final int maxConnections;
+	private final Semaphore connections;
+	private final Executor executor;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a prefetcher.
+	 * @param mirrorDir root of a local PDB mirror or null
+	 * @param baseUrl the URL of the directory to download from or null
+	 * @param targetDir the directory to write the files to
+	 * @param maxConnections the maximum number of simultaneous downloads
+	 * @param retries how often a failed download is repeated
+	 * @param executor the executor fetching the entries, at most maxConnections tasks are given to it at a time
+	 */
+	public PdbPrefetcher(File mirrorDir, String baseUrl, File targetDir, int maxConnections, int retries, Executor executor) {
+		this.mirrorDir = mirrorDir;
+		this.baseUrl = baseUrl;
+		this.targetDir = targetDir;
+		this.retries = retries;
+		this.maxConnections = Math.max(1, maxConnections);
+		this.connections = new Semaphore(this.maxConnections);
+		this.executor = executor;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Fetches the files of the given PDB entries concurrently and waits for all
+	 * of them. At most maxConnections tasks are given to the executor, no matter
+	 * how many entries there are. Failures are reported on stderr, the other
+	 * entries are fetched anyway.
+	 * @return the local files of the entries which could be fetched, by lower case PDB code
+	 * @throws InterruptedException if interrupted while waiting, the fetching is stopped then
+	 */
+	public Map<String, File> prefetch(Collection<String> pdbCodes) throws InterruptedException {
+		LinkedHashSet<String> codes = new LinkedHashSet<String>();
+		for(String pdbCode:pdbCodes) {
+			String code = pdbCode.trim().toLowerCase();
+			if(code.length() > 0) codes.add(code);
+		}
+		final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>(codes);
+		final ConcurrentHashMap<String, File> fetched = new ConcurrentHashMap<String, File>();
+		ArrayList<FutureTask<Void>> workers = new ArrayList<FutureTask<Void>>();
+		for(int k = 0; k < Math.min(maxConnections, codes.size()); k++) {
+			FutureTask<Void> worker = new FutureTask<Void>(new Runnable() {
+				public void run() {
+					String code;
+					while((code = queue.poll()) != null) {
+						try {
+							fetched.put(code, fetch(code));
+						} catch (IOException e) {
+							System.err.println("Warning: Could not fetch PDB entry " + code + ": " + e.getMessage());
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, null);
+			workers.add(worker);
+			executor.execute(worker);
+		}
+		try {
+			for(FutureTask<Void> worker:workers) {
+				worker.get();
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			queue.clear();
+			for(FutureTask<Void> worker:workers) {
+				worker.cancel(true);
+			}
+		}
+		LinkedHashMap<String, File> files = new LinkedHashMap<String, File>();
+		for(String code:codes) {
+			File file = fetched.get(code);
+			if(file != null) files.put(code, file);
+		}
+		return files;
+	}
+
+	/**
+	 * Fetches the file of one PDB entry unless it is in the target directory already.
+	 * @return the local file
+	 * @throws FileNotFoundException if the entry is neither in the mirror nor online
+	 * @throws IOException if the file could not be fetched
+	 * @throws InterruptedException if interrupted while waiting for a connection or a retry or while copying
+	 */
+	public File fetch(String pdbCode) throws IOException, InterruptedException {
+		String code = pdbCode.toLowerCase();
+		File target = new File(targetDir, code + ".cif");
+		if(target.length() > 0) {
+			return target;
+		}
+		File mirrored = findInMirror(code);
+		if(mirrored != null) {
+			connections.acquire();
+			try {
+				copy(new FileInputStream(mirrored), mirrored.getName().endsWith(".gz"), target);
+			} finally {
+				connections.release();
+			}
+			return target;
+		}
+		if(baseUrl == null) {
+			throw new FileNotFoundException("PDB entry " + code + " not found in local mirror " + mirrorDir);
+		}
+		IOException error = null;
+		for(int attempt = 0; attempt <= retries; attempt++) {
+			if(attempt > 0) {
+				Thread.sleep(RETRY_DELAY << (attempt - 1));
+			}
+			connections.acquire();
+			try {
+				URLConnection conn = new URL(baseUrl + code + ".cif.gz").openConnection();
+				conn.setConnectTimeout(CONNECT_TIMEOUT);
+				conn.setReadTimeout(READ_TIMEOUT);
+				copy(conn.getInputStream(), true, target);
+				return target;
+			} catch (FileNotFoundException e) {
+				// no such entry, retrying won't help
+				throw e;
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				connections.release();
+			}
+		}
+		throw error;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Returns the file of the given entry in the local mirror or null.
+	 */
+	private File findInMirror(String code) {
+		if(mirrorDir == null) return null;
+		File[] dirs = {new File(mirrorDir, code.substring(1, 3)), mirrorDir};
+		for(File dir:dirs) {
+			for(String suffix:SUFFIXES) {
+				File file = new File(dir, code + suffix);
+				if(file.isFile()) return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the given stream to the target file, via a temporary file which is
+	 * renamed at the end. Closes the stream.
+	 * @throws InterruptedException if the current thread is interrupted while copying
+	 */
+	private void copy(InputStream in, boolean gzipped, File target) throws IOException, InterruptedException {
+		File tmpFile = null;
+		try {
+			if(gzipped) {
+				in = new GZIPInputStream(in);
+			}
+			if(!targetDir.isDirectory() && !targetDir.mkdirs()) {
+				throw new IOException("Could not create directory " + targetDir);
+			}
+			tmpFile = File.createTempFile(target.getName(), ".tmp", targetDir);
+			OutputStream out = new FileOutputStream(tmpFile);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while((n = in.read(buffer)) > 0) {
+					if(Thread.interrupted()) {
+						throw new InterruptedException("Fetching of " + target.getName() + " interrupted");
+					}
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+			if(!tmpFile.renameTo(target) && !target.isFile()) {
+				throw new IOException("Could not rename " + tmpFile + " to " + target);
+			}
+		} finally {
+			in.close();
+			if(tmpFile != null) tmpFile.delete();
+		}
+	}
+}
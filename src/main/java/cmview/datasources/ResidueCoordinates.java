@@ -0,0 +1,156 @@
+package cmview.datasources;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.Group;
+
+/**
+ * An immutable snapshot of the per-residue coordinates of a chain, extracted once
+ * so that geometric computations do not have to walk the BioJava object tree.
+ * For every residue serial (1-based position in the seqres) we store the
+ * C-alpha, the C-beta and the side chain centroid in one flat double array,
+ * 9 values per residue. Coordinates which are not available (unobserved
+ * residues, glycine C-beta, ...) are NaN. The side chain centroid of glycine
+ * is its C-alpha.
+ */
+public class ResidueCoordinates {
+
+	/*------------------------------ constants ------------------------------*/
+	public static final int CA = 0;				// C-alpha
+	public static final int CB = 1;				// C-beta
+	public static final int CENTROID = 2;		// side chain centroid
+
+	private static final int VALUES_PER_RESIDUE = 9;
+
+	/*--------------------------- member variables --------------------------*/
+	private final int length;				// number of residues (highest serial)
+	private final double[] coords;			// index (serial-1)*9 + type*3 + dim
+	private final boolean[] observed;		// index serial-1, standard aa with coordinates
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Extracts the coordinates of all observed residues of the given chain.
+	 * @param chain the chain, residues are numbered by their seqres position
+	 */
+	public ResidueCoordinates(Chain chain) {
+		IdentityHashMap<Group,Integer> group2serial = Utils.getSeqResSerials(chain);
+		int len = chain.getSeqResLength();
+		// first pass: find the serial of every observed group
+		int[] serials = new int[chain.getAtomGroups().size()];
+		int k = 0;
+		for(Group g: chain.getAtomGroups()) {
+			Integer serial = group2serial.get(g);
+			int s = (serial != null) ? serial : Utils.getResSerial(g.getResidueNumber(), chain);
+			serials[k++] = s;
+			len = Math.max(len, s);
+		}
+		this.length = len;
+		this.coords = new double[VALUES_PER_RESIDUE * len];
+		this.observed = new boolean[len];
+		Arrays.fill(coords, Double.NaN);
+
+		// second pass: copy the coordinates
+		k = 0;
+		for(Group g: chain.getAtomGroups()) {
+			int serial = serials[k++];
+			if(serial < 1 || !g.isAminoAcid()) continue;
+			int offset = (serial - 1) * VALUES_PER_RESIDUE;
+			Atom ca = g.getAtom("CA");
+			Atom cb = g.getAtom("CB");
+			if(ca != null) {
+				setPoint(offset + 3*CA, ca.getX(), ca.getY(), ca.getZ());
+				observed[serial - 1] = true;
+			}
+			if(cb != null) {
+				setPoint(offset + 3*CB, cb.getX(), cb.getY(), cb.getZ());
+			}
+			double x = 0, y = 0, z = 0;
+			int n = 0;
+			for(Atom a: g.getAtoms()) {
+				if(isBackboneAtom(a.getName()) || a.getElement().isHydrogen()) continue;
+				x += a.getX();
+				y += a.getY();
+				z += a.getZ();
+				n++;
+			}
+			if(n > 0) {
+				setPoint(offset + 3*CENTROID, x/n, y/n, z/n);
+			} else if(ca != null) {
+				setPoint(offset + 3*CENTROID, ca.getX(), ca.getY(), ca.getZ());
+			}
+		}
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/** Returns the number of residues, i.e. the highest valid residue serial */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns true if the residue with the given serial is a standard amino acid
+	 * with a C-alpha atom.
+	 */
+	public boolean isObserved(int serial) {
+		return serial >= 1 && serial <= length && observed[serial - 1];
+	}
+
+	/**
+	 * Returns true if coordinates of the given type are available for the residue.
+	 * @param type one of {@link #CA}, {@link #CB}, {@link #CENTROID}
+	 */
+	public boolean hasCoordinates(int serial, int type) {
+		return isObserved(serial) && !Double.isNaN(coords[(serial - 1) * VALUES_PER_RESIDUE + 3*type]);
+	}
+
+	/**
+	 * Returns the x, y or z coordinate (dim 0, 1 or 2) of the given point of a
+	 * residue or NaN if not available.
+	 */
+	public double getCoordinate(int serial, int type, int dim) {
+		return coords[(serial - 1) * VALUES_PER_RESIDUE + 3*type + dim];
+	}
+
+	/**
+	 * Returns the distance between the given points of residues i and j or NaN
+	 * if either of them is not available.
+	 */
+	public double getDistance(int i, int j, int type) {
+		int a = (i - 1) * VALUES_PER_RESIDUE + 3*type;
+		int b = (j - 1) * VALUES_PER_RESIDUE + 3*type;
+		double dx = coords[a]   - coords[b];
+		double dy = coords[a+1] - coords[b+1];
+		double dz = coords[a+2] - coords[b+2];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	/**
+	 * Returns one coordinate (dim 0, 1 or 2) of the given point of all residues as 
+	 * a new array indexed by serial-1. Unavailable coordinates are NaN. Separate 
+	 * x, y and z arrays give simple, vectorizable loops over many residues. 
+	 */
+	public double[] getCoordinates(int type, int dim) {
+		double[] c = new double[length];
+		for(int k = 0; k < length; k++) {
+			c[k] = observed[k] ? coords[k * VALUES_PER_RESIDUE + 3*type + dim] : Double.NaN;
+		}
+		return c;
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private void setPoint(int offset, double x, double y, double z) {
+		coords[offset]   = x;
+		coords[offset+1] = y;
+		coords[offset+2] = z;
+	}
+
+	private static boolean isBackboneAtom(String name) {
+		return name.equals("N") || name.equals("CA") || name.equals("C") || name.equals("O") || name.equals("OXT");
+	}
+}
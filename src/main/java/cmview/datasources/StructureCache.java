@@ -0,0 +1,389 @@
+package cmview.datasources;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.io.PDBFileParser;
+import org.biojava.nbio.structure.io.mmcif.MMcifParser;
+import org.biojava.nbio.structure.io.mmcif.SimpleMMcifConsumer;
+import org.biojava.nbio.structure.io.mmcif.SimpleMMcifParser;
+import org.biojava.nbio.structure.io.mmtf.MmtfStructureReader;
+import org.biojava.nbio.structure.io.mmtf.MmtfStructureWriter;
+import org.rcsb.mmtf.decoder.GenericDecoder;
+import org.rcsb.mmtf.decoder.ReaderUtils;
+import org.rcsb.mmtf.decoder.StructureDataToAdapter;
+import org.rcsb.mmtf.encoder.AdapterToStructureData;
+import org.rcsb.mmtf.encoder.WriterUtils;
+
+import cmview.Start;
+
+/**
+ * Cache of parsed structure files. Parsing a large mmCIF file takes seconds, so
+ * every file should be parsed once only, even though listing its chains, listing
+ * its models and loading a chain are done by different model objects.
+ * <p>
+ * The most recently parsed structures are kept in memory, keyed by file name,
+ * modification time and size. In addition mmCIF files can be cached on disk: the
+ * parsed structure (coordinates, sequences, residue numbering, secondary
+ * structure annotation) is stored in the binary MMTF encoding next to the other
+ * temporary files and read from there on the next load of the same file.
+ * <p>
+ * Cache files are content addressed: they are named after the SHA-1 of the
+ * mmCIF file, so a changed or re-downloaded file with different content never
+ * hits a stale entry. Each cache file starts with a small header (magic number,
+ * format version, payload length and CRC-32 of the payload). Cache files are
+ * memory mapped for reading and validated against the checksum, corrupt or
+ * outdated files are deleted and the mmCIF file is parsed again.
+ * <p>
+ * Structures are shared between all models loaded from the same file, just like
+ * the chain of a model is shared by its copies. The cache is only locked to look
+ * up and insert entries, parsing and disk access happen outside of the lock. A
+ * thread asking for a file that is being parsed waits for that parse instead of
+ * starting a second one.
+ */
+public class StructureCache {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final int MAGIC = 0x434d5643;		// "CMVC"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+	private static final String SUFFIX = ".cmvc";
+	private static final int MEMORY_ENTRIES = 4;		// number of parsed structures kept in memory
+
+	/*--------------------------- member variables --------------------------*/
+	private final File dir;
+	private final LinkedHashMap<String, SoftReference<Structure>> recent;	// in access order, eldest first
+	private final HashMap<String, FutureTask<Structure>> pending;			// files being parsed right now
+	private final LinkedHashMap<String, ChainCifReader> readers;			// chain selective readers with their listings
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a cache storing its files in the given directory, which is created
+	 * if needed.
+	 * @param dir the directory for cache files, null to keep structures in memory only
+	 */
+	public StructureCache(File dir) {
+		this.dir = dir;
+		this.recent = new LinkedHashMap<String, SoftReference<Structure>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, SoftReference<Structure>> eldest) {
+				return size() > MEMORY_ENTRIES;
+			}
+		};
+		this.pending = new HashMap<String, FutureTask<Structure>>();
+		this.readers = new LinkedHashMap<String, ChainCifReader>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, ChainCifReader> eldest) {
+				return size() > MEMORY_ENTRIES;
+			}
+		};
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Returns the structure of the given mmCIF file, from the cache if possible.
+	 * Otherwise the file is parsed and the result is added to the cache.
+	 * @throws IOException if the file can not be read
+	 */
+	public Structure getCifStructure(final File cifFile) throws IOException {
+		return getStructure(cifFile, new Callable<Structure>() {
+			public Structure call() throws IOException {
+				return (dir == null) ? parseCifFile(cifFile) : readThroughDisk(cifFile);
+			}
+		});
+	}
+
+	/**
+	 * Returns the structure of the given file if it is still in memory from a
+	 * recent parse, null otherwise. Never reads the file.
+	 */
+	public synchronized Structure getParsedStructure(File file) {
+		return getRecent(file);
+	}
+
+	/**
+	 * Returns the chain selective reader of the given mmCIF file. The reader is
+	 * shared by all models of the file, so chains and models are listed once.
+	 */
+	public synchronized ChainCifReader getChainReader(File cifFile) {
+		String key = getFileKey(cifFile);
+		ChainCifReader reader = readers.get(key);
+		if(reader == null) {
+			reader = new ChainCifReader(cifFile);
+			readers.put(key, reader);
+		}
+		return reader;
+	}
+
+	/**
+	 * Returns the structure of the given PDB file, parsing it unless it has been
+	 * parsed recently.
+	 * @throws IOException if the file can not be read
+	 */
+	public Structure getPdbStructure(final File pdbFile) throws IOException {
+		return getStructure(pdbFile, new Callable<Structure>() {
+			public Structure call() throws IOException {
+				return parsePdbFile(pdbFile);
+			}
+		});
+	}
+
+	/*---------------------------- static methods ---------------------------*/
+
+	/**
+	 * Returns the structure of the given mmCIF file, using the structure cache of
+	 * this session (see {@link Start#USE_STRUCTURE_CACHE}).
+	 * @throws IOException if the file can not be read
+	 */
+	public static Structure readCifFile(File cifFile) throws IOException {
+		return Start.getStructureCache().getCifStructure(cifFile);
+	}
+
+	/**
+	 * Returns the structure of the given PDB file, using the structure cache of
+	 * this session.
+	 * @throws IOException if the file can not be read
+	 */
+	public static Structure readPdbFile(File pdbFile) throws IOException {
+		return Start.getStructureCache().getPdbStructure(pdbFile);
+	}
+
+	/**
+	 * Parses the given mmCIF file into a BioJava structure (without any caching).
+	 * @throws IOException if the file can not be read
+	 */
+	public static Structure parseCifFile(File cifFile) throws IOException {
+		MMcifParser parser = new SimpleMMcifParser();
+		// the consumer builds up the BioJava structure object
+		SimpleMMcifConsumer consumer = new SimpleMMcifConsumer();
+		parser.addMMcifConsumer(consumer);
+		BufferedReader br = new BufferedReader(new FileReader(cifFile));
+		try {
+			parser.parse(br);
+		} finally {
+			br.close();
+		}
+		return consumer.getStructure();
+	}
+
+	/**
+	 * Parses the given PDB file into a BioJava structure (without any caching).
+	 * @throws IOException if the file can not be read
+	 */
+	public static Structure parsePdbFile(File pdbFile) throws IOException {
+		InputStream in = new FileInputStream(pdbFile);
+		try {
+			return new PDBFileParser().parsePDBFile(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	private static String getFileKey(File file) {
+		return file.getAbsolutePath() + "@" + file.lastModified() + ":" + file.length();
+	}
+
+	/**
+	 * Returns the recently parsed structure of the given file or the result of
+	 * the given reader. Concurrent calls for the same file share one reader run.
+	 */
+	private Structure getStructure(File file, Callable<Structure> reader) throws IOException {
+		String key = getFileKey(file);
+		FutureTask<Structure> task;
+		boolean owner = false;
+		synchronized(this) {
+			Structure structure = getRecent(file);
+			if(structure != null) {
+				return structure;
+			}
+			task = pending.get(key);
+			if(task == null) {
+				task = new FutureTask<Structure>(reader);
+				pending.put(key, task);
+				owner = true;
+			}
+		}
+		if(owner) {
+			task.run();
+		}
+		try {
+			Structure structure = task.get();
+			if(owner) {
+				synchronized(this) {
+					pending.remove(key);
+					putRecent(file, structure);
+				}
+			}
+			return structure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + file + " to be parsed");
+		} catch (ExecutionException e) {
+			if(owner) {
+				synchronized(this) {
+					pending.remove(key);
+				}
+			}
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
+	private Structure getRecent(File file) {
+		SoftReference<Structure> ref = recent.get(getFileKey(file));
+		return ref == null ? null : ref.get();
+	}
+
+	private void putRecent(File file, Structure structure) {
+		recent.put(getFileKey(file), new SoftReference<Structure>(structure));
+	}
+
+	/**
+	 * Reads the structure of the given mmCIF file from its cache file, or parses
+	 * it and writes the cache file.
+	 */
+	private Structure readThroughDisk(File cifFile) throws IOException {
+		File cacheFile = new File(dir, getContentHash(cifFile) + SUFFIX);
+		if(cacheFile.exists()) {
+			Structure structure = read(cacheFile);
+			if(structure != null) {
+				return structure;
+			}
+			System.err.println("Warning: Discarding invalid structure cache file " + cacheFile);
+			cacheFile.delete();
+		}
+		Structure structure = parseCifFile(cifFile);
+		try {
+			write(cacheFile, structure);
+		} catch (IOException e) {
+			System.err.println("Warning: Could not write structure cache file " + cacheFile + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			// the encoder does not support every structure, we can do without the cache file
+			System.err.println("Warning: Could not encode structure for cache file " + cacheFile + ": " + e.getMessage());
+		}
+		return structure;
+	}
+
+	/**
+	 * Returns the hex encoded SHA-1 of the content of the given file.
+	 */
+	private static String getContentHash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available: " + e.getMessage());
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			while(channel.read(buffer) > 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			raf.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for(byte b:digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Reads a cache file, returns null if it is not valid.
+	 */
+	private static Structure read(File cacheFile) {
+		try {
+			byte[] payload;
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				if(channel.size() < HEADER_SIZE) return null;
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+				long length = buffer.getLong();
+				long checksum = buffer.getLong();
+				if(length != channel.size() - HEADER_SIZE) return null;
+				CRC32 crc = new CRC32();
+				crc.update(buffer.duplicate());
+				if(crc.getValue() != checksum) return null;
+				payload = new byte[(int) length];
+				buffer.get(payload);
+			} finally {
+				raf.close();
+			}
+			MmtfStructureReader reader = new MmtfStructureReader();
+			new StructureDataToAdapter(new GenericDecoder(ReaderUtils.getDataFromInputStream(new ByteArrayInputStream(payload))), reader);
+			return reader.getStructure();
+		} catch (IOException e) {
+			System.err.println("Warning: Could not read structure cache file " + cacheFile + ": " + e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			// undecodable payload despite a valid checksum, e.g. written by an incompatible version
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the structure to a cache file. A temporary file is renamed at the
+	 * end, so concurrent readers never see a partially written file.
+	 */
+	private void write(File cacheFile, Structure structure) throws IOException {
+		AdapterToStructureData encoder = new AdapterToStructureData();
+		new MmtfStructureWriter(structure, encoder);
+		byte[] payload = WriterUtils.getDataAsByteArr(encoder);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		File tmpFile = File.createTempFile("structure", SUFFIX + ".tmp", dir);
+		RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(payload.length).putLong(crc.getValue());
+			header.flip();
+			FileChannel channel = raf.getChannel();
+			channel.write(header);
+			channel.write(ByteBuffer.wrap(payload));
+		} finally {
+			raf.close();
+		}
+		if(!tmpFile.renameTo(cacheFile)) {
+			tmpFile.delete();
+			throw new IOException("Could not rename " + tmpFile + " to " + cacheFile);
+		}
+	}
+}
@@ -7,31 +7,37 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-
-import javax.vecmath.Point3d;
+import java.util.WeakHashMap;
 
 import org.biojava.nbio.structure.Chain;
 import org.biojava.nbio.structure.Group;
 import org.biojava.nbio.structure.ResidueNumber;
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureImpl;
 import org.biojava.nbio.structure.StructureTools;
-import org.biojava.nbio.structure.contact.AtomContactSet;
-import org.biojava.nbio.structure.contact.GroupContact;
-import org.biojava.nbio.structure.contact.GroupContactSet;
 import org.biojava.nbio.structure.secstruc.SecStrucCalc;
+import org.biojava.nbio.structure.secstruc.SecStrucInfo;
 import org.biojava.nbio.structure.secstruc.SecStrucTools;
 
-import edu.uci.ics.jung.graph.util.Pair;
 import owl.core.sequence.Sequence;
 import owl.core.sequence.alignment.MultipleSequenceAlignment;
 import owl.core.structure.AaResidue;
 import owl.core.structure.Atom;
+import owl.core.structure.ContactType;
 import owl.core.structure.PdbChain;
+import owl.core.structure.PdbLoadException;
 import owl.core.structure.Residue;
 import owl.core.structure.features.SecStrucElement;
 import owl.core.structure.features.SecondaryStructure;
@@ -41,24 +47,25 @@ import owl.core.util.Interval;
 import owl.core.util.IntervalSet;
 import owl.core.util.MySQLConnection;
 
+import cmview.Start;
+
 
 public class Utils {
 	
+	private static final double SS_ENVIRONMENT_CUTOFF = 9.0;	// C-alpha distance up to which DSSP considers hydrogen bonds
+	
+	// secondary structure per chain, see getSecondaryStructure
+	private static final Map<Chain,SecondaryStructure> ssCache = Collections.synchronizedMap(new WeakHashMap<Chain,SecondaryStructure>());
+	
 
+	/**
+	 * Computes the residue interaction graph of the given chain for any contact 
+	 * type known to {@link ContactType}, including crossed types like "BB/SC". 
+	 * Atom pairs within the cutoff are found with a {@link NeighbourGrid}.
+	 * Nodes and edges are indexed by residue serials (positions in the seqres).
+	 */
 	public static RIGraph getRIGraph(Chain chain, String edgeType, double cutoff, int modelSerial) {
 		
-		String[] atomNames = null;
-		
-		if (edgeType.equals("Ca")) {
-			atomNames = new String[1];
-			atomNames[0] = "CA";
-		}
-		// TODO add other cases for edgeType "Cb", "ALL", etc.
-		
-		AtomContactSet atomContacts = StructureTools.getAtomsInContact(chain, atomNames, cutoff);
-		
-		GroupContactSet groupContacts = new GroupContactSet(atomContacts);
-		
 		RIGraph graph = new RIGraph();
 		
 		graph.setCutoff(cutoff);
@@ -73,20 +80,143 @@ public class Utils {
 		//graph.setSecondaryStructure(this.secondaryStructure);
 		
 		List<Group> seqresgroups = chain.getSeqResGroups();
+		IdentityHashMap<Group,Integer> group2serial = getSeqResSerials(chain);
 		
+		int serial = 1;
 		for (Group group : seqresgroups) {
-			graph.addVertex(new RIGNode(seqresgroups.indexOf(group)+1, group.getPDBName()));
+			graph.addVertex(new RIGNode(serial, group.getPDBName()));
+			serial++;
 		}
 		
-		for (GroupContact contact : groupContacts) {
-			Group igroup = contact.getPair().getFirst();
-			Group jgroup = contact.getPair().getSecond();
-			graph.addEdgeIJ(seqresgroups.indexOf(igroup)+1, seqresgroups.indexOf(jgroup)+1);
+		// crossed contact types (e.g. BB/SC) use different atoms for i and j
+		String[] cts = edgeType.split("/");
+		String iCt = cts[0];
+		String jCt = cts[cts.length-1];
+		
+		ContactAtoms iAtoms = new ContactAtoms(chain, iCt, group2serial);
+		ContactAtoms jAtoms = iCt.equals(jCt) ? iAtoms : new ContactAtoms(chain, jCt, group2serial);
+		
+		NeighbourGrid grid = new NeighbourGrid(jAtoms.coords, jAtoms.size, cutoff);
+		int[] pairs = (iAtoms == jAtoms) ? grid.getPairsWithinCutoff() : grid.getPairsWithinCutoff(iAtoms.coords, iAtoms.size);
+		
+		int n = seqresgroups.size();
+		HashSet<Long> added = new HashSet<Long>();
+		for (int k = 0; k < pairs.length; k += 2) {
+			int i = iAtoms.serials[pairs[k]];
+			int j = jAtoms.serials[pairs[k+1]];
+			if (i == j) continue;
+			// several atom pairs may put the same two residues in contact
+			long key = (iAtoms == jAtoms) ? (long) Math.min(i,j) * (n+1) + Math.max(i,j) : (long) i * (n+1) + j;
+			if (added.add(key)) {
+				graph.addEdgeIJ(i, j);
+			}
 		}
 		
 		return graph;
 	}
 	
+	/**
+	 * Computes the average residue interaction graph over all models of the given
+	 * structure for the chain with the given pdb chain code (or the first chain
+	 * of each model if null). Uses the already parsed structure, i.e. the file 
+	 * does not have to be read again for the other models.
+	 * @throws PdbLoadException if no model contains the chain
+	 */
+	public static RIGraph getEnsembleGraph(Structure fullpdb, String pdbChainCode, String edgeType, double cutoff) throws PdbLoadException {
+		List<Chain> chains = new ArrayList<Chain>();
+		int[] modelSerials = new int[fullpdb.nrModels()];
+		for (int model = 0; model < fullpdb.nrModels(); model++) {
+			Chain chain = (pdbChainCode == null) ? fullpdb.getChains(model).get(0) : fullpdb.getPolyChainByPDB(pdbChainCode, model);
+			if (chain == null) continue;
+			modelSerials[chains.size()] = model+1;
+			chains.add(chain);
+		}
+		if (chains.isEmpty()) {
+			throw new PdbLoadException("Chain '" + pdbChainCode + "' not found in any model");
+		}
+		// the models' contacts are computed in parallel
+		ContactFrequencyAccumulator acc = EnsembleGraphCalculator.calculate(chains, modelSerials, edgeType, cutoff, Start.getComputePool());
+		return acc.getAverageGraph(edgeType, cutoff);
+	}
+	
+	/**
+	 * Returns the pdb chain codes of the polymer chains of the given structure, in
+	 * the order of the file.
+	 * @throws PdbLoadException if there are no polymer chains
+	 */
+	public static String[] getChainCodes(Structure fullpdb) throws PdbLoadException {
+		LinkedHashSet<String> chainCodes = new LinkedHashSet<String>();
+		for (Chain chain : fullpdb.getPolyChains()) {
+			chainCodes.add(chain.getName());
+		}
+		if (chainCodes.isEmpty()) {
+			throw new PdbLoadException("No polymer chains found");
+		}
+		return chainCodes.toArray(new String[chainCodes.size()]);
+	}
+	
+	/**
+	 * Returns the model serials (starting with 1) of the given structure.
+	 */
+	public static Integer[] getModelSerials(Structure fullpdb) {
+		Integer[] models = new Integer[fullpdb.nrModels()];
+		for (int i = 0; i < models.length; i++) {
+			models[i] = i+1;
+		}
+		return models;
+	}
+	
+	/**
+	 * Maps every seqres group of the given chain to its residue serial (1-based 
+	 * position in the seqres). Observed groups are the same objects in the seqres
+	 * and in the atom groups, so this also maps atom groups to serials.
+	 */
+	public static IdentityHashMap<Group,Integer> getSeqResSerials(Chain chain) {
+		IdentityHashMap<Group,Integer> group2serial = new IdentityHashMap<Group,Integer>();
+		int serial = 1;
+		for (Group group : chain.getSeqResGroups()) {
+			group2serial.put(group, serial++);
+		}
+		return group2serial;
+	}
+	
+	/**
+	 * The coordinates of the atoms of the observed residues of a chain which are 
+	 * relevant for a (non-crossed) contact type, together with the residue serial 
+	 * of each atom.
+	 */
+	private static class ContactAtoms {
+		double[] coords;
+		int[] serials;
+		int size;
+		
+		ContactAtoms(Chain chain, String ct, IdentityHashMap<Group,Integer> group2serial) {
+			List<Group> groups = chain.getAtomGroups();
+			coords = new double[3*groups.size()];
+			serials = new int[groups.size()];
+			size = 0;
+			for (Group group : groups) {
+				Integer serial = group2serial.get(group);
+				if (serial == null) continue;	// not part of the seqres, e.g. ligands
+				Set<String> atomNames = ContactType.getAtomsForCTAndRes(ct, group.getPDBName());
+				if (atomNames == null) continue;
+				for (String atomName : atomNames) {
+					org.biojava.nbio.structure.Atom atom = group.getAtom(atomName);
+					if (atom == null) continue;
+					if (size == serials.length) {
+						coords = Arrays.copyOf(coords, 6*size);
+						serials = Arrays.copyOf(serials, 2*size);
+					}
+					coords[3*size]   = atom.getX();
+					coords[3*size+1] = atom.getY();
+					coords[3*size+2] = atom.getZ();
+					serials[size] = serial;
+					size++;
+				}
+			}
+		}
+	}
+	
 	
 
 	
@@ -100,6 +230,55 @@ public class Utils {
 	
 
 	
+	/**
+	 * Returns a new structure with copies of the given chain and of the chains of 
+	 * the same model with a C-alpha atom within {@link #SS_ENVIRONMENT_CUTOFF} of 
+	 * one of its C-alpha atoms. 
+	 */
+	private static Structure getChainEnvironment(Chain pdb) {
+		Structure fullpdb = pdb.getStructure();
+		List<Chain> chains = null;
+		for (int model = 0; fullpdb != null && model < fullpdb.nrModels(); model++) {
+			if (fullpdb.getModel(model).contains(pdb)) {
+				chains = fullpdb.getModel(model);
+				break;
+			}
+		}
+		Structure env = new StructureImpl();
+		if (fullpdb != null) env.setPDBCode(fullpdb.getPDBCode());
+		env.addChain((Chain) pdb.clone());
+		if (chains == null) return env;
+		
+		double[] coords = getCACoords(pdb);
+		NeighbourGrid grid = new NeighbourGrid(coords, coords.length/3, SS_ENVIRONMENT_CUTOFF);
+		for (Chain chain : chains) {
+			if (chain == pdb) continue;
+			double[] other = getCACoords(chain);
+			if (other.length > 0 && grid.getPairsWithinCutoff(other, other.length/3).length > 0) {
+				env.addChain((Chain) chain.clone());
+			}
+		}
+		return env;
+	}
+	
+	/**
+	 * Returns the coordinates (x0,y0,z0,x1,...) of the C-alpha atoms of the given chain.
+	 */
+	private static double[] getCACoords(Chain chain) {
+		List<Group> groups = chain.getAtomGroups();
+		double[] coords = new double[3*groups.size()];
+		int size = 0;
+		for (Group group : groups) {
+			org.biojava.nbio.structure.Atom ca = group.getAtom("CA");
+			if (ca == null) continue;
+			coords[3*size]   = ca.getX();
+			coords[3*size+1] = ca.getY();
+			coords[3*size+2] = ca.getZ();
+			size++;
+		}
+		return Arrays.copyOf(coords, 3*size);
+	}
+	
 	public static int getResSerial(ResidueNumber resNum, Chain pdb) {
 		try {
 			Group g = pdb.getGroupByPDB(resNum);
@@ -110,21 +289,34 @@ public class Utils {
 		}
 	}
 	
-	public static SecondaryStructure convertSecondStruc(Structure fullpdb, Chain pdb){
-		
-		
+	/**
+	 * Returns the secondary structure of the given chain, calculated with BioJava's
+	 * DSSP implementation. Only the chain and the chains in contact with it (which
+	 * may form sheets with it) are considered, not the whole structure. The result
+	 * is memoized per chain object, i.e. models sharing a chain (copies, reloads
+	 * from the {@link StructureCache}) calculate it only once.
+	 */
+	public static SecondaryStructure getSecondaryStructure(Chain pdb) {
+		SecondaryStructure ss = ssCache.get(pdb);
+		if (ss == null) {
+			ss = calcSecondaryStructure(pdb);
+			ssCache.put(pdb, ss);
+		}
+		return ss;
+	}
+	
+	private static SecondaryStructure calcSecondaryStructure(Chain pdb) {
+		List<SecStrucInfo> states = new ArrayList<SecStrucInfo>();
 		SecStrucCalc ssp = new SecStrucCalc();
 		try{
-			ssp.calculate(fullpdb, true);
+			states.addAll(ssp.calculate(getChainEnvironment(pdb), false));
 		}
 		catch(StructureException e){
 			System.err.println("Warning: Cannot calculate and assign secondarystructure ");
 		}
 		
-		
+		List<org.biojava.nbio.structure.secstruc.SecStrucElement> sse = SecStrucTools.getSecStrucElements(states);
 
-		
-		List<org.biojava.nbio.structure.secstruc.SecStrucElement> sse = SecStrucTools.getSecStrucElements(fullpdb);
 		//SecondaryStructure secondaryStructure = new SecondaryStructure(pdb.getSequence().getSeq());
 		String seq = pdb.getSeqResSequence();
 		SecondaryStructure owlss = new SecondaryStructure(seq);
@@ -177,33 +369,21 @@ public class Utils {
 	
 	
 	
-	public static HashMap<Pair<Integer>, Double> calcDistMatrixbjv(Chain pdb){
-		HashMap<Pair<Integer>,Double> distMatrixRes = new HashMap<Pair<Integer>, Double>();
-		for(Group gi: pdb.getAtomGroups()){
-			//getting gi atom information
-			org.biojava.nbio.structure.Atom i = gi.getAtom("CA");
-			Point3d icoord = i.getCoordsAsPoint3d();
-			ResidueNumber resgi = gi.getResidueNumber();
-			int resnumgi = getResSerial(resgi, pdb);
-			
-			for(Group gj: pdb.getAtomGroups()){
-				//getting gj atom information
-				org.biojava.nbio.structure.Atom j = gj.getAtom("CA");
-				Point3d jcoord = j.getCoordsAsPoint3d();
-				ResidueNumber resgj = gj.getResidueNumber();
-				int resnumgj = getResSerial(resgj, pdb);
-				
-				//calculating the distance between 
-				double distance = icoord.distance(jcoord);
-				
-				//storing the lower left bottom information into the HashMap
-				if(resnumgj > resnumgi){
-					Pair<Integer> edge = new Pair<Integer>(resnumgi,resnumgj);
-					distMatrixRes.put(edge, distance);	
-				}
-			}
-		}
-		return distMatrixRes;
+	/**
+	 * Calculates the C-alpha distance matrix of the given chain. Cells are indexed
+	 * by residue serials, cells involving residues without a C-alpha atom are left 
+	 * undefined.
+	 */
+	public static DistanceMatrix calcDistMatrixbjv(Chain pdb){
+		return calcDistMatrix(new ResidueCoordinates(pdb));
+	}
+	
+	/**
+	 * Calculates the C-alpha distance matrix from the given coordinate snapshot. 
+	 * Cells involving unobserved residues are left undefined.
+	 */
+	public static DistanceMatrix calcDistMatrix(ResidueCoordinates coords){
+		return DistanceMatrixCalculator.calculate(coords, ResidueCoordinates.CA, Start.getComputePool());
 	}
 	
 	
@@ -246,13 +426,12 @@ public class Utils {
 	
 
 	//contacttype = Ca
-	public static HashMap<Pair<Integer>,Double> getDiffDistMapbiojchain(String contactType1, Chain pdb1,
-			Chain pdb2, String contactType2, MultipleSequenceAlignment ali, String name1, String name2){
-		HashMap<Pair<Integer>,Double> otherDistMatrix = calcDistMatrixbjv(pdb2);
-		HashMap<Pair<Integer>,Double> thisDistMatrix = calcDistMatrixbjv(pdb1);
-		//get sequence length = getSeqResLength?
-		//System.out.println("pdb1.length: " + pdb1.getSeqResLength() + " pdb2.length: " + pdb2.getSeqResLength());
-		HashMap<Pair<Integer>,Double> alignedDistMatrix = new HashMap<Pair<Integer>, Double>(Math.min(pdb1.getSeqResLength(), pdb2.getSeqResLength()));
+	public static DistanceMatrix getDiffDistMapbiojchain(String contactType1, ResidueCoordinates pdb1,
+			ResidueCoordinates pdb2, String contactType2, MultipleSequenceAlignment ali, String name1, String name2){
+		DistanceMatrix otherDistMatrix = calcDistMatrix(pdb2);
+		DistanceMatrix thisDistMatrix = calcDistMatrix(pdb1);
+		// cells are indexed by alignment columns
+		DistanceMatrix alignedDistMatrix = new DistanceMatrix(ali.getAlignmentLength());
 		
 		int i1,i2,j1,j2;
 		TreeSet<Integer> unobserved1 = new TreeSet<Integer>();
@@ -270,11 +449,11 @@ public class Utils {
 			i1 = ali.al2seq(name1, i);
 			i2 = ali.al2seq(name2, i);
 			//containsStdAaResidue(i1)
-			if( i1 != -1 &&	!containstdAaResidueBioj(i1,pdb1)) {
+			if( i1 != -1 &&	!pdb1.isObserved(i1)) {
 				unobserved1.add(i1);
 			}
 			
-			if( i2 != -1 && !containstdAaResidueBioj(i2,pdb2)) {
+			if( i2 != -1 && !pdb2.isObserved(i2)) {
 				unobserved2.add(i2);
 			}
 		}
@@ -309,15 +488,11 @@ public class Utils {
 					continue;
 				}
 
-				// make the edges
-				Pair<Integer> e1 = new Pair<Integer>(i1,j1);
-				Pair<Integer> e2 = new Pair<Integer>(i2,j2);
-
-				if(thisDistMatrix.get(e1) == null || otherDistMatrix.get(e2) == null){
-					System.err.println("Warning: edge value equals null, e1: " + e1 + " e2: " + e2);
+				if(!thisDistMatrix.isDefined(i1,j1) || !otherDistMatrix.isDefined(i2,j2)){
+					System.err.println("Warning: edge value undefined, e1: <" + i1 + "," + j1 + "> e2: <" + i2 + "," + j2 + ">");
 					continue;
 				}
-				alignedDistMatrix.put(new Pair<Integer>(i,j),Math.abs(thisDistMatrix.get(e1)-otherDistMatrix.get(e2)));
+				alignedDistMatrix.set(i,j,Math.abs(thisDistMatrix.get(i1,j1)-otherDistMatrix.get(i2,j2)));
 			}
 		}
 		return alignedDistMatrix;
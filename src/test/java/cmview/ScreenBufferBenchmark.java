@@ -0,0 +1,151 @@
+package cmview;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.swing.JPanel;
+
+/**
+ * Measures the cost of clearing a screen buffer before each repaint of the
+ * contact map, comparing reusing the image (see {@link ScreenBuffer}) with
+ * allocating a new image and calling System.gc() on every update as done
+ * before. Reports the time per update, the allocation rate and the garbage
+ * collection pauses. Runs without a display.
+ * <pre>
+ * java cmview.ScreenBufferBenchmark [size [updates]]
+ * </pre>
+ */
+public class ScreenBufferBenchmark {
+
+	/*------------------------------ constants ------------------------------*/
+	private static final int DEFAULT_SIZE = 650;		// the initial screen size
+	private static final int DEFAULT_UPDATES = 100;
+
+	/*--------------------------- member variables --------------------------*/
+	private int size;
+	private int updates;
+
+	/*----------------------------- constructors ----------------------------*/
+
+	/**
+	 * Creates a benchmark clearing buffers of the given size the given number
+	 * of times.
+	 */
+	public ScreenBufferBenchmark(int size, int updates) {
+		this.size = size;
+		this.updates = updates;
+	}
+
+	/*---------------------------- public methods ---------------------------*/
+
+	/**
+	 * Runs both variants (after a warm up) and prints the results.
+	 */
+	public void run() {
+		System.out.println("Clearing a " + size + "x" + size + " screen buffer " + updates + " times");
+		measure(true);
+		measure(false);
+		report("allocate + gc", measure(true));
+		report("reuse", measure(false));
+	}
+
+	/*--------------------------- private methods ---------------------------*/
+
+	/**
+	 * Clears the buffer and fills it with the background, as done when updating
+	 * the screen buffer.
+	 * @param allocate whether to allocate a new image on every update
+	 * @return time per update (ns), allocated bytes, gc count, gc time (ms),
+	 * longest update (ns)
+	 */
+	private long[] measure(boolean allocate) {
+		JPanel parent = new JPanel() {
+			private static final long serialVersionUID = 1L;
+			public boolean isDisplayable() {
+				return true;
+			}
+		};
+		parent.setPreferredSize(new Dimension(size, size));
+		ScreenBuffer buffer = new ScreenBuffer(parent);
+		BufferedImage image = null;
+
+		long allocated = getAllocatedBytes();
+		long[] gc = getGcStats();
+		long[] times = new long[updates];
+		for(int k = 0; k < updates; k++) {
+			long start = System.nanoTime();
+			Graphics2D g2d;
+			if(allocate) {
+				if(image != null) {
+					image.flush();
+					System.gc();
+				}
+				image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+				g2d = image.createGraphics();
+			} else {
+				buffer.clear();
+				g2d = buffer.getGraphics();
+			}
+			g2d.setColor(Color.white);
+			g2d.fillRect(0, 0, size, size);
+			g2d.dispose();
+			times[k] = System.nanoTime() - start;
+		}
+		allocated = (allocated < 0) ? -1 : getAllocatedBytes() - allocated;
+		long[] gcAfter = getGcStats();
+
+		long total = 0;
+		long max = 0;
+		for(long time:times) {
+			total += time;
+			max = Math.max(max, time);
+		}
+		return new long[] {total / updates, allocated, gcAfter[0] - gc[0], gcAfter[1] - gc[1], max};
+	}
+
+	private void report(String name, long[] result) {
+		System.out.printf("%-15s %8.3f ms/update (max %8.3f ms), %8.3f MB/update allocated, %d collections (%d ms)%n",
+				name, result[0] / 1e6, result[4] / 1e6, result[1] < 0 ? Double.NaN : result[1] / 1e6 / updates,
+				result[2], result[3]);
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread so far, -1 if
+	 * not supported by the JVM.
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of garbage collections and their total time in
+	 * milliseconds so far.
+	 */
+	private static long[] getGcStats() {
+		long count = 0;
+		long time = 0;
+		for(GarbageCollectorMXBean bean:ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, bean.getCollectionCount());
+			time += Math.max(0, bean.getCollectionTime());
+		}
+		return new long[] {count, time};
+	}
+
+	/*--------------------------------- main --------------------------------*/
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+		int updates = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_UPDATES;
+		System.setProperty("java.awt.headless", "true");
+		new ScreenBufferBenchmark(size, updates).run();
+	}
+}
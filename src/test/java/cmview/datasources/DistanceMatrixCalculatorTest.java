@@ -0,0 +1,76 @@
+package cmview.datasources;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Checks that the tiled parallel distance matrix is bit for bit identical to
+ * the sequential one and to a plain loop over all cells.
+ */
+public class DistanceMatrixCalculatorTest {
+
+	// sizes below, at and above the parallel threshold, multiples of the tile size and not
+	private static final int[] SIZES = {1, 2, 255, 257, 511, 512, 513, 768, 1001};
+	private static final int[] PARALLELISM = {1, 2, 3, 8};
+
+	@Test
+	public void parallelMatchesSequential() {
+		Random random = new Random(42);
+		for(int n:SIZES) {
+			double[][] points = randomPoints(n, random);
+			DistanceMatrix sequential = DistanceMatrixCalculator.calculate(points[0], points[1], points[2], null);
+			assertSameAsPlainLoop(points, sequential);
+			for(int parallelism:PARALLELISM) {
+				ForkJoinPool pool = new ForkJoinPool(parallelism);
+				try {
+					DistanceMatrix parallel = DistanceMatrixCalculator.calculate(points[0], points[1], points[2], pool);
+					assertSameBits("size " + n + ", parallelism " + parallelism, sequential, parallel);
+				} finally {
+					pool.shutdown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns x, y and z coordinates of n points, some of them unobserved (NaN).
+	 */
+	private static double[][] randomPoints(int n, Random random) {
+		double[][] points = new double[3][n];
+		for(int k = 0; k < n; k++) {
+			boolean observed = random.nextInt(20) != 0;
+			for(int dim = 0; dim < 3; dim++) {
+				points[dim][k] = observed ? random.nextDouble() * 200 - 100 : Double.NaN;
+			}
+		}
+		return points;
+	}
+
+	private static void assertSameAsPlainLoop(double[][] points, DistanceMatrix matrix) {
+		int n = points[0].length;
+		DistanceMatrix expected = new DistanceMatrix(n);
+		for(int i = 0; i < n; i++) {
+			for(int j = i + 1; j < n; j++) {
+				double dx = points[0][i] - points[0][j];
+				double dy = points[1][i] - points[1][j];
+				double dz = points[2][i] - points[2][j];
+				expected.set(i + 1, j + 1, (float) Math.sqrt(dx*dx + dy*dy + dz*dz));
+			}
+		}
+		assertSameBits("size " + n + ", plain loop", expected, matrix);
+	}
+
+	private static void assertSameBits(String message, DistanceMatrix expected, DistanceMatrix actual) {
+		assertEquals(message, expected.getSize(), actual.getSize());
+		for(int i = 1; i <= expected.getSize(); i++) {
+			for(int j = i + 1; j <= expected.getSize(); j++) {
+				assertEquals(message + ", cell " + i + "," + j,
+						Float.floatToRawIntBits(expected.get(i, j)), Float.floatToRawIntBits(actual.get(i, j)));
+			}
+		}
+	}
+}
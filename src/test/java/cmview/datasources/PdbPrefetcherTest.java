@@ -0,0 +1,199 @@
+package cmview.datasources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that prefetching gets every entry from a local mirror or a loopback
+ * HTTP server without exceeding the connection limit, neither in tasks given
+ * to the executor nor in simultaneous requests.
+ */
+public class PdbPrefetcherTest {
+
+	private static final int MAX_CONNECTIONS = 3;
+	private static final String MISSING = "0bad";
+
+	@Test
+	public void prefetchFromHttpServer() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		ExecutorService serverPool = Executors.newCachedThreadPool();
+		server.setExecutor(serverPool);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				int now = running.incrementAndGet();
+				try {
+					synchronized(maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), now));
+					}
+					String name = new File(exchange.getRequestURI().getPath()).getName();
+					String code = name.substring(0, 4);
+					Thread.sleep(20);
+					if(code.equals(MISSING)) {
+						exchange.sendResponseHeaders(404, -1);
+					} else {
+						byte[] body = gzip(content(code));
+						exchange.sendResponseHeaders(200, body.length);
+						exchange.getResponseBody().write(body);
+					}
+				} catch (InterruptedException e) {
+					exchange.sendResponseHeaders(500, -1);
+				} finally {
+					running.decrementAndGet();
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		File targetDir = createTempDir();
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			CountingExecutor executor = new CountingExecutor(pool);
+			String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+			PdbPrefetcher prefetcher = new PdbPrefetcher(null, baseUrl, targetDir, MAX_CONNECTIONS, 0, executor);
+			List<String> codes = codes(12);
+			List<String> requested = new ArrayList<String>(codes);
+			requested.add(MISSING);
+			requested.add(codes.get(0).toUpperCase());	// duplicate
+
+			Map<String, File> files = prefetcher.prefetch(requested);
+
+			assertEquals(codes, new ArrayList<String>(files.keySet()));
+			for(String code:codes) {
+				assertEquals(content(code), new String(Files.readAllBytes(files.get(code).toPath()), "US-ASCII"));
+			}
+			assertFalse(new File(targetDir, MISSING + ".cif").exists());
+			assertTrue("simultaneous requests: " + maxRunning.get(), maxRunning.get() <= MAX_CONNECTIONS);
+			assertTrue("tasks: " + executor.count.get(), executor.count.get() <= MAX_CONNECTIONS);
+		} finally {
+			pool.shutdownNow();
+			server.stop(0);
+			serverPool.shutdownNow();
+			delete(targetDir);
+		}
+	}
+
+	@Test
+	public void prefetchFromMirror() throws Exception {
+		File mirrorDir = createTempDir();
+		File targetDir = createTempDir();
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			List<String> codes = codes(10);
+			for(int k = 0; k < codes.size(); k++) {
+				String code = codes.get(k);
+				if(k % 2 == 0) {
+					// divided layout, gzipped
+					File dir = new File(mirrorDir, code.substring(1, 3));
+					dir.mkdirs();
+					write(new File(dir, code + ".cif.gz"), gzip(content(code)));
+				} else {
+					// flat layout, not gzipped
+					write(new File(mirrorDir, code + ".cif"), content(code).getBytes("US-ASCII"));
+				}
+			}
+			CountingExecutor executor = new CountingExecutor(pool);
+			PdbPrefetcher prefetcher = new PdbPrefetcher(mirrorDir, null, targetDir, MAX_CONNECTIONS, 0, executor);
+			List<String> requested = new ArrayList<String>(codes);
+			requested.add(MISSING);
+
+			Map<String, File> files = prefetcher.prefetch(requested);
+
+			assertEquals(codes, new ArrayList<String>(files.keySet()));
+			for(String code:codes) {
+				assertEquals(content(code), new String(Files.readAllBytes(files.get(code).toPath()), "US-ASCII"));
+			}
+			assertTrue("tasks: " + executor.count.get(), executor.count.get() <= MAX_CONNECTIONS);
+		} finally {
+			pool.shutdownNow();
+			delete(mirrorDir);
+			delete(targetDir);
+		}
+	}
+
+	/**
+	 * Counts the tasks given to the wrapped executor.
+	 */
+	private static class CountingExecutor implements Executor {
+		final AtomicInteger count = new AtomicInteger();
+		private final Executor executor;
+
+		CountingExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		public void execute(Runnable task) {
+			count.incrementAndGet();
+			executor.execute(task);
+		}
+	}
+
+	private static List<String> codes(int n) {
+		String[] codes = new String[n];
+		for(int k = 0; k < n; k++) {
+			codes[k] = String.format("%da%cc", 1 + k % 9, (char) ('a' + k));
+		}
+		return Arrays.asList(codes);
+	}
+
+	private static String content(String code) {
+		return "data_" + code.toUpperCase() + "\n#\n";
+	}
+
+	private static byte[] gzip(String text) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(text.getBytes("US-ASCII"));
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static File createTempDir() throws IOException {
+		return Files.createTempDirectory("prefetch").toFile();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child:children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}